@@ -0,0 +1,294 @@
+/**
+ *
+ */
+package com.wikispaces.jtextmode;
+
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures how fast terminals paint, write, scroll, clear and load code
+ * pages, and how much each operation allocates, so that changes made for
+ * speed can be checked. It is kept out of the library, in the bench source
+ * folder. Run it with the benchmarks to run, or part of their names, as
+ * arguments, or none to run them all:
+ *
+ * <pre>
+ * java -Djava.awt.headless=true com.wikispaces.jtextmode.JTextModeBenchmark paint
+ * </pre>
+ *
+ * Each benchmark is warmed up, then timed over several rounds, and reported
+ * in operations a second with the spread between rounds, and in bytes
+ * allocated per operation where the JVM can count them.
+ */
+public class JTextModeBenchmark {
+	private static final long WARMUP_MILLIS = 2000;
+	private static final long ROUND_MILLIS = 1000;
+	private static final int ROUNDS = 5;
+
+	/**
+	 * The size of a character on the default code page, in pixels.
+	 */
+	private static final int CHAR_WIDTH = 9;
+	private static final int CHAR_HEIGHT = 16;
+
+	/**
+	 * The grid sizes painting is measured at, as columns and rows.
+	 */
+	private static final int[][] GRID_SIZES = { { 80, 25 }, { 200, 60 },
+			{ 400, 120 } };
+
+	/**
+	 * One operation to measure, set up ready to be run over and over.
+	 */
+	private static abstract class Benchmark {
+		final String name;
+
+		Benchmark(String name) {
+			this.name = name;
+		}
+
+		abstract void run(int iteration) throws Exception;
+	}
+
+	public static void main(String[] args) throws Exception {
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+		for (int[] size : GRID_SIZES) {
+			addPaintBenchmarks(benchmarks, size[0], size[1]);
+		}
+		addWriteBenchmarks(benchmarks);
+		addScrollBenchmarks(benchmarks);
+		addCodePageBenchmarks(benchmarks);
+
+		System.out.printf("%-32s %14s %9s %14s%n", "Benchmark", "ops/s",
+				"+-%", "bytes/op");
+		for (Benchmark benchmark : benchmarks) {
+			if (isSelected(benchmark, args)) {
+				measure(benchmark);
+			}
+		}
+	}
+
+	private static boolean isSelected(Benchmark benchmark, String[] args) {
+		if (args.length == 0) {
+			return true;
+		}
+		for (String arg : args) {
+			if (benchmark.name.contains(arg)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Painting a component into an offscreen image at its natural size: with
+	 * nothing changed, one cell changed, and every cell changed. The last is
+	 * also measured scaled to twice the natural size.
+	 */
+	private static void addPaintBenchmarks(List<Benchmark> benchmarks,
+			final int columns, final int rows) {
+		String size = columns + "x" + rows;
+
+		final JTextModeComponent idle = createPaintedComponent(columns, rows,
+				1);
+		final Graphics idleGraphics = createGraphics(idle);
+		benchmarks.add(new Benchmark("paint.idle " + size) {
+			@Override
+			void run(int iteration) {
+				idle.paint(idleGraphics);
+			}
+		});
+
+		final JTextModeComponent typing = createPaintedComponent(columns,
+				rows, 1);
+		final Graphics typingGraphics = createGraphics(typing);
+		benchmarks.add(new Benchmark("paint.cell " + size) {
+			@Override
+			void run(int iteration) {
+				typing.setCharAt(iteration % columns, (iteration / columns)
+						% rows, 'A' + iteration % 26);
+				typing.paint(typingGraphics);
+			}
+		});
+
+		final JTextModeComponent full = createPaintedComponent(columns, rows,
+				1);
+		final Graphics fullGraphics = createGraphics(full);
+		benchmarks.add(new Benchmark("paint.full " + size) {
+			@Override
+			void run(int iteration) {
+				full.fillRect(0, 0, columns, rows, 'A' + iteration % 26,
+						iteration % 16, 0, false);
+				full.paint(fullGraphics);
+			}
+		});
+
+		if (columns == GRID_SIZES[0][0]) {
+			final JTextModeComponent scaled = createPaintedComponent(columns,
+					rows, 2);
+			final Graphics scaledGraphics = createGraphics(scaled);
+			benchmarks.add(new Benchmark("paint.full.scaled2x " + size) {
+				@Override
+				void run(int iteration) {
+					scaled.fillRect(0, 0, columns, rows,
+							'A' + iteration % 26, iteration % 16, 0, false);
+					scaled.paint(scaledGraphics);
+				}
+			});
+		}
+	}
+
+	private static JTextModeComponent createPaintedComponent(int columns,
+			int rows, int scale) {
+		JTextModeComponent component = new JTextModeComponent(rows, columns,
+				false, true, false);
+		component.setSize(columns * CHAR_WIDTH * scale, rows * CHAR_HEIGHT
+				* scale);
+		for (int y = 0; y < rows; y++) {
+			component.setStringAt(0, y, "The quick brown fox jumps over "
+					+ "the lazy dog " + y, y % 16, 0, false);
+		}
+		// Draw the first frame, which draws everything
+		component.paint(createGraphics(component));
+		return component;
+	}
+
+	private static Graphics createGraphics(JTextModeComponent component) {
+		return new BufferedImage(component.getWidth(), component.getHeight(),
+				BufferedImage.TYPE_INT_ARGB).createGraphics();
+	}
+
+	/**
+	 * Writing a line at a time to an offscreen terminal, which scrolls once
+	 * the screen is full.
+	 */
+	private static void addWriteBenchmarks(List<Benchmark> benchmarks) {
+		final String line = "2026-10-17 12:00:00 INFO  com.example.Service - "
+				+ "processed request";
+		final char[] chars = (line + line).toCharArray();
+
+		final OffscreenTerminal writeLnTerminal = new OffscreenTerminal(25,
+				80, false);
+		benchmarks.add(new Benchmark("writeLn 80x25") {
+			@Override
+			void run(int iteration) {
+				writeLnTerminal.writeLn(line);
+			}
+		});
+
+		final OffscreenTerminal writeTerminal = new OffscreenTerminal(25, 80,
+				false);
+		benchmarks.add(new Benchmark("write.chars 80x25") {
+			@Override
+			void run(int iteration) {
+				writeTerminal.write(chars, 0, chars.length);
+			}
+		});
+
+		final OffscreenTerminal setCharTerminal = new OffscreenTerminal(25,
+				80, false);
+		benchmarks.add(new Benchmark("setCharAt 80x25") {
+			@Override
+			void run(int iteration) {
+				setCharTerminal.setCharAt(iteration % 80, (iteration / 80) % 25,
+						'A' + iteration % 26);
+			}
+		});
+	}
+
+	private static void addScrollBenchmarks(List<Benchmark> benchmarks) {
+		final OffscreenTerminal scrollTerminal = new OffscreenTerminal(25, 80,
+				false);
+		benchmarks.add(new Benchmark("scrollScreen 80x25") {
+			@Override
+			void run(int iteration) {
+				scrollTerminal.scrollScreen(1);
+			}
+		});
+
+		final OffscreenTerminal scrollbackTerminal = new OffscreenTerminal(25,
+				80, false);
+		scrollbackTerminal.setScrollbackSize(10000);
+		final String[] lines = new String[100];
+		for (int i = 0; i < lines.length; i++) {
+			lines[i] = "Row " + i + " of text kept in the scrollback";
+		}
+		benchmarks.add(new Benchmark("scrollScreen.scrollback 80x25") {
+			@Override
+			void run(int iteration) {
+				scrollbackTerminal.scrollScreen(1);
+				scrollbackTerminal.setStringAt(0, 24, lines[iteration
+						% lines.length], 7, 0, false);
+			}
+		});
+
+		final OffscreenTerminal clearTerminal = new OffscreenTerminal(25, 80,
+				false);
+		benchmarks.add(new Benchmark("clearScreen 80x25") {
+			@Override
+			void run(int iteration) {
+				clearTerminal.clearScreen();
+			}
+		});
+	}
+
+	private static void addCodePageBenchmarks(List<Benchmark> benchmarks) {
+		final OffscreenTerminal terminal = new OffscreenTerminal(25, 80, false);
+		benchmarks.add(new Benchmark("setCodePage") {
+			@Override
+			void run(int iteration) throws IOException {
+				terminal.setCodePage(null, 9, 16, 32, 8);
+			}
+		});
+	}
+
+	/**
+	 * Warms a benchmark up, then times it over several rounds and prints the
+	 * results.
+	 */
+	private static void measure(Benchmark benchmark) throws Exception {
+		// Warm up, finding how many operations fill a round
+		int iteration = 0;
+		long start = System.nanoTime();
+		while (System.nanoTime() - start < WARMUP_MILLIS * 1000000) {
+			benchmark.run(iteration++);
+		}
+		long opsPerRound = Math.max(1, iteration * ROUND_MILLIS
+				/ WARMUP_MILLIS);
+
+		double[] opsPerSecond = new double[ROUNDS];
+		long allocatedBefore = RenderStatistics.getThreadAllocatedBytes();
+		long totalOps = 0;
+		for (int round = 0; round < ROUNDS; round++) {
+			start = System.nanoTime();
+			for (long i = 0; i < opsPerRound; i++) {
+				benchmark.run(iteration++);
+			}
+			long elapsed = System.nanoTime() - start;
+			opsPerSecond[round] = opsPerRound * 1e9 / elapsed;
+			totalOps += opsPerRound;
+		}
+		long allocatedAfter = RenderStatistics.getThreadAllocatedBytes();
+
+		double mean = 0;
+		for (double ops : opsPerSecond) {
+			mean += ops / ROUNDS;
+		}
+		double variance = 0;
+		for (double ops : opsPerSecond) {
+			variance += (ops - mean) * (ops - mean) / ROUNDS;
+		}
+
+		String bytesPerOp = "n/a";
+		if (allocatedBefore >= 0 && allocatedAfter >= 0) {
+			bytesPerOp = String.format("%.1f",
+					(double) (allocatedAfter - allocatedBefore) / totalOps);
+		}
+		System.out.printf("%-32s %14.1f %9.1f %14s%n", benchmark.name, mean,
+				100 * Math.sqrt(variance) / mean, bytesPerOp);
+	}
+}
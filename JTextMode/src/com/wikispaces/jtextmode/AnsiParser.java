@@ -0,0 +1,804 @@
+/**
+ *
+ */
+package com.wikispaces.jtextmode;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads output written for a VT100/ANSI terminal, such as the output of a
+ * process, and draws it on an ExtendedTerminal: text, cursor movement,
+ * erasing, inserting and deleting, and colors and blinking set with SGR.<br>
+ * <br>
+ * Output may be given in chunks of any size; an escape sequence split between
+ * two chunks is carried over to the next one. Each chunk is drawn as one
+ * update of the terminal. Bytes other than control characters are drawn as
+ * the character at that position on the code page (code page 437 by
+ * default); UTF-8 is not decoded.<br>
+ * <br>
+ * Line feeds also return the cursor to the start of the line, as most
+ * programs writing to a pipe expect. Sequences not understood are read and
+ * ignored.<br>
+ * <br>
+ * A parser keeps the state of the sequence being read, so it must not be
+ * given output from more than one thread at once.
+ */
+public class AnsiParser {
+	/**
+	 * The palette color for each ANSI color: black, red, green, yellow, blue,
+	 * magenta, cyan and white.
+	 */
+	private static final int[] ANSI_TO_PALETTE = { 0, 4, 2, 6, 1, 5, 3, 7 };
+
+	private static final int MAX_PARAMS = 16;
+	private static final int MAX_PARAM_VALUE = 9999;
+	private static final int TAB_WIDTH = 8;
+
+	private static final byte ESC = 0x1B;
+
+	// What the parser is in the middle of reading
+	private static final int GROUND = 0;
+	private static final int ESCAPE = 1;
+	private static final int ESCAPE_INTERMEDIATE = 2;
+	private static final int CSI = 3;
+	private static final int CSI_IGNORE = 4;
+	private static final int STRING = 5;
+	private static final int STRING_ESCAPE = 6;
+
+	private final ExtendedTerminal terminal;
+
+	private int state = GROUND;
+
+	/**
+	 * The parameters of the control sequence being read; -1 where a
+	 * parameter was left out.
+	 */
+	private final int[] params = new int[MAX_PARAMS];
+	private int paramCount;
+
+	/**
+	 * Whether the control sequence being read is a private one, starting
+	 * with '?', '<', '=' or '>', or has intermediate characters. Those are not
+	 * carried out.
+	 */
+	private boolean privateSequence;
+
+	/**
+	 * Characters to be written at the cursor, gathered so that they can be
+	 * written all at once.
+	 */
+	private final char[] text = new char[1024];
+	private int textLength = 0;
+
+	/**
+	 * Whether a character has been written in the last column and the next
+	 * one goes at the start of the next line. The terminal itself wraps as
+	 * soon as the last column is written, which would leave a blank line after
+	 * lines exactly as wide as the screen.
+	 */
+	private boolean wrapPending = false;
+
+	// Graphic rendition, as set by SGR
+	private int defaultColor = 7;
+	private int defaultBGColor = 0;
+	private int color = defaultColor;
+	private int bgColor = defaultBGColor;
+	private int colorRGB = -1;
+	private int bgColorRGB = -1;
+	private boolean bold = false;
+	private boolean blink = false;
+	private boolean reverse = false;
+
+	// The colors text is being drawn in, after bold and reverse
+	private int drawColor;
+	private int drawBGColor;
+	private int drawColorRGB;
+	private int drawBGColorRGB;
+
+	// The draw colors last set on the terminal, so that unchanged ones aren't
+	// set again
+	private int appliedColor = -1;
+	private int appliedBGColor = -1;
+	private int appliedColorRGB = -1;
+	private int appliedBGColorRGB = -1;
+	private boolean appliedBlink = false;
+
+	// Saved by DECSC and restored by DECRC
+	private int savedX = 0;
+	private int savedY = 0;
+	private int savedColor = defaultColor;
+	private int savedBGColor = defaultBGColor;
+	private int savedColorRGB = -1;
+	private int savedBGColorRGB = -1;
+	private boolean savedBold = false;
+	private boolean savedBlink = false;
+	private boolean savedReverse = false;
+
+	/**
+	 * Creates a parser drawing on the given terminal, and sets the terminal's
+	 * draw colors to the default colors. From then on the parser expects to
+	 * be the only one setting the terminal's draw colors.
+	 *
+	 * @param terminal
+	 */
+	public AnsiParser(ExtendedTerminal terminal) {
+		this.terminal = terminal;
+		terminal.setDrawBlinking(false);
+		applyRendition();
+	}
+
+	public ExtendedTerminal getTerminal() {
+		return terminal;
+	}
+
+	/**
+	 * Sets the colors text is drawn in when no colors have been set, and
+	 * after SGR 0, 39 or 49.
+	 *
+	 * @param color
+	 *            The foreground color index, 0-15. Default is 7: light gray.
+	 * @param bgColor
+	 *            The background color index, 0-15. Default is 0: black.
+	 */
+	public void setDefaultColors(int color, int bgColor) {
+		if (this.color == defaultColor && colorRGB < 0) {
+			this.color = color;
+		}
+		if (this.bgColor == defaultBGColor && bgColorRGB < 0) {
+			this.bgColor = bgColor;
+		}
+		defaultColor = color;
+		defaultBGColor = bgColor;
+		applyRendition();
+	}
+
+	/**
+	 * Reads and draws a chunk of output.
+	 *
+	 * @param data
+	 * @param offset
+	 *            The index in data of the first byte to read
+	 * @param length
+	 *            The number of bytes to read
+	 */
+	public void parse(byte[] data, int offset, int length) {
+		if (offset < 0 || length < 0 || offset + length > data.length) {
+			throw new IndexOutOfBoundsException("offset " + offset
+					+ ", length " + length + ", array length " + data.length);
+		}
+
+		terminal.beginUpdate();
+		try {
+			for (int i = offset; i < offset + length; i++) {
+				parseByte(data[i] & 0xFF);
+			}
+			flushText();
+		} finally {
+			terminal.endUpdate();
+		}
+	}
+
+	/**
+	 * Reads and draws a chunk of output: the bytes remaining in a buffer,
+	 * leaving its position at its limit.
+	 *
+	 * @param buffer
+	 */
+	public void parse(ByteBuffer buffer) {
+		if (buffer.hasArray()) {
+			int length = buffer.remaining();
+			parse(buffer.array(), buffer.arrayOffset() + buffer.position(),
+					length);
+			buffer.position(buffer.position() + length);
+			return;
+		}
+
+		terminal.beginUpdate();
+		try {
+			while (buffer.hasRemaining()) {
+				parseByte(buffer.get() & 0xFF);
+			}
+			flushText();
+		} finally {
+			terminal.endUpdate();
+		}
+	}
+
+	private void parseByte(int c) {
+		// Text goes straight into the text waiting to be written
+		if (state == GROUND && c >= 0x20 && c != 0x7F) {
+			text[textLength++] = (char) c;
+			if (textLength == text.length) {
+				flushText();
+			}
+			return;
+		}
+
+		// Control characters are carried out even in the middle of a sequence
+		if (c < 0x20 && state != STRING && state != STRING_ESCAPE) {
+			flushText();
+			if (c == ESC) {
+				state = ESCAPE;
+			} else if (c == 0x18 || c == 0x1A) {
+				// CAN and SUB cancel the sequence
+				state = GROUND;
+			} else {
+				control(c);
+			}
+			return;
+		}
+
+		switch (state) {
+		case GROUND:
+			// DEL
+			break;
+		case ESCAPE:
+			escape(c);
+			break;
+		case ESCAPE_INTERMEDIATE:
+			if (c >= 0x30 && c < 0x7F) {
+				// Such as character set designations: ignored
+				state = GROUND;
+			}
+			break;
+		case CSI:
+			controlSequence(c);
+			break;
+		case CSI_IGNORE:
+			if (c >= 0x40 && c < 0x7F) {
+				state = GROUND;
+			}
+			break;
+		case STRING:
+			if (c == 0x07) {
+				state = GROUND;
+			} else if (c == ESC) {
+				state = STRING_ESCAPE;
+			}
+			break;
+		case STRING_ESCAPE:
+			// ESC \ ends the string; any other escape sequence starts anew
+			if (c == '\\') {
+				state = GROUND;
+			} else {
+				escape(c);
+			}
+			break;
+		}
+	}
+
+	/**
+	 * Writes the text gathered at the cursor, wrapping after the last column
+	 * only once there is more text for the next line.
+	 */
+	private void flushText() {
+		if (textLength == 0) {
+			return;
+		}
+
+		int columns = terminal.getColumns();
+		int x = terminal.getCursorX();
+		int written = 0;
+		while (written < textLength) {
+			if (wrapPending) {
+				terminal.writeLn();
+				wrapPending = false;
+				x = 0;
+			}
+
+			// Write up to the last column, where the terminal would wrap
+			int length = Math.min(columns - 1 - x, textLength - written);
+			if (length > 0) {
+				terminal.write(text, written, length);
+				written += length;
+				x += length;
+			}
+
+			if (written < textLength) {
+				// Put the character in the last column without wrapping yet
+				int y = terminal.getCursorY();
+				terminal.fillRect(x, y, 1, 1, text[written], drawColor,
+						drawBGColor, drawColorRGB, drawBGColorRGB, blink);
+				written++;
+				wrapPending = true;
+			}
+		}
+		textLength = 0;
+	}
+
+	/**
+	 * Carries out a C0 control character.
+	 */
+	private void control(int c) {
+		switch (c) {
+		case 0x08:
+			// BS
+			moveCursor(terminal.getCursorX() - 1, terminal.getCursorY());
+			break;
+		case 0x09:
+			// HT
+			moveCursor((terminal.getCursorX() / TAB_WIDTH + 1) * TAB_WIDTH,
+					terminal.getCursorY());
+			break;
+		case 0x0A:
+		case 0x0B:
+		case 0x0C:
+			// LF, VT and FF
+			wrapPending = false;
+			terminal.writeLn();
+			break;
+		case 0x0D:
+			// CR
+			moveCursor(0, terminal.getCursorY());
+			break;
+		default:
+			// BEL and the rest are ignored
+			break;
+		}
+	}
+
+	private void escape(int c) {
+		state = GROUND;
+		switch (c) {
+		case '[':
+			state = CSI;
+			paramCount = 1;
+			params[0] = -1;
+			privateSequence = false;
+			break;
+		case ']':
+		case 'P':
+		case 'X':
+		case '^':
+		case '_':
+			// OSC, DCS, SOS, PM and APC strings are skipped
+			state = STRING;
+			break;
+		case '7':
+			saveCursor();
+			break;
+		case '8':
+			restoreCursor();
+			break;
+		case 'D':
+			// IND
+			index();
+			break;
+		case 'E':
+			// NEL
+			wrapPending = false;
+			terminal.writeLn();
+			break;
+		case 'M':
+			// RI
+			reverseIndex();
+			break;
+		case 'c':
+			// RIS
+			reset();
+			break;
+		default:
+			if (c >= 0x20 && c < 0x30) {
+				state = ESCAPE_INTERMEDIATE;
+			}
+			break;
+		}
+	}
+
+	/**
+	 * Reads the next character of a control sequence after ESC [.
+	 */
+	private void controlSequence(int c) {
+		if (c >= '0' && c <= '9') {
+			int param = Math.max(params[paramCount - 1], 0);
+			params[paramCount - 1] = Math.min(param * 10 + c - '0',
+					MAX_PARAM_VALUE);
+		} else if (c == ';' || c == ':') {
+			if (paramCount < MAX_PARAMS) {
+				params[paramCount++] = -1;
+			}
+		} else if (c >= 0x3C && c <= 0x3F) {
+			privateSequence = true;
+		} else if (c >= 0x20 && c < 0x30) {
+			privateSequence = true;
+		} else if (c >= 0x40 && c < 0x7F) {
+			state = GROUND;
+			if (!privateSequence) {
+				dispatch(c);
+			}
+		} else {
+			state = CSI_IGNORE;
+		}
+	}
+
+	/**
+	 * @return parameter i of the control sequence, or the default if it was
+	 *         left out or 0
+	 */
+	private int param(int i, int defaultValue) {
+		if (i >= paramCount || params[i] <= 0) {
+			return defaultValue;
+		}
+		return params[i];
+	}
+
+	/**
+	 * Carries out a control sequence.
+	 *
+	 * @param c
+	 *            The character ending it
+	 */
+	private void dispatch(int c) {
+		if (c == 'm') {
+			selectGraphicRendition();
+			return;
+		}
+
+		int x = terminal.getCursorX();
+		int y = terminal.getCursorY();
+		int columns = terminal.getColumns();
+		int rows = terminal.getRows();
+		int n = param(0, 1);
+		switch (c) {
+		case 'A':
+			// CUU
+			moveCursor(x, y - n);
+			break;
+		case 'B':
+			// CUD
+			moveCursor(x, y + n);
+			break;
+		case 'C':
+			// CUF
+			moveCursor(x + n, y);
+			break;
+		case 'D':
+			// CUB
+			moveCursor(x - n, y);
+			break;
+		case 'E':
+			// CNL
+			moveCursor(0, y + n);
+			break;
+		case 'F':
+			// CPL
+			moveCursor(0, y - n);
+			break;
+		case 'G':
+		case '`':
+			// CHA and HPA
+			moveCursor(n - 1, y);
+			break;
+		case 'H':
+		case 'f':
+			// CUP and HVP
+			moveCursor(param(1, 1) - 1, n - 1);
+			break;
+		case 'd':
+			// VPA
+			moveCursor(x, n - 1);
+			break;
+		case 'J':
+			// ED
+			switch (param(0, 0)) {
+			case 0:
+				erase(x, y, columns - x, 1);
+				erase(0, y + 1, columns, rows - y - 1);
+				break;
+			case 1:
+				erase(0, 0, columns, y);
+				erase(0, y, x + 1, 1);
+				break;
+			case 2:
+			case 3:
+				erase(0, 0, columns, rows);
+				break;
+			}
+			break;
+		case 'K':
+			// EL
+			switch (param(0, 0)) {
+			case 0:
+				erase(x, y, columns - x, 1);
+				break;
+			case 1:
+				erase(0, y, x + 1, 1);
+				break;
+			case 2:
+				erase(0, y, columns, 1);
+				break;
+			}
+			break;
+		case 'X':
+			// ECH
+			erase(x, y, Math.min(n, columns - x), 1);
+			break;
+		case '@':
+			// ICH
+			n = Math.min(n, columns - x);
+			terminal.copyRect(x, y, columns - x - n, 1, x + n, y);
+			erase(x, y, n, 1);
+			break;
+		case 'P':
+			// DCH
+			n = Math.min(n, columns - x);
+			terminal.copyRect(x + n, y, columns - x - n, 1, x, y);
+			erase(columns - n, y, n, 1);
+			break;
+		case 'L':
+			// IL
+			n = Math.min(n, rows - y);
+			terminal.copyRect(0, y, columns, rows - y - n, 0, y + n);
+			erase(0, y, columns, n);
+			moveCursor(0, y);
+			break;
+		case 'M':
+			// DL
+			n = Math.min(n, rows - y);
+			terminal.copyRect(0, y + n, columns, rows - y - n, 0, y);
+			erase(0, rows - n, columns, n);
+			moveCursor(0, y);
+			break;
+		case 'S':
+			// SU
+			scrollUp(n);
+			break;
+		case 'T':
+			// SD
+			n = Math.min(n, rows);
+			terminal.copyRect(0, 0, columns, rows - n, 0, n);
+			erase(0, 0, columns, n);
+			break;
+		case 's':
+			saveCursor();
+			break;
+		case 'u':
+			restoreCursor();
+			break;
+		default:
+			// Not understood: ignored
+			break;
+		}
+	}
+
+	private void selectGraphicRendition() {
+		for (int i = 0; i < paramCount; i++) {
+			int p = Math.max(params[i], 0);
+			if (p == 0) {
+				color = defaultColor;
+				bgColor = defaultBGColor;
+				colorRGB = -1;
+				bgColorRGB = -1;
+				bold = false;
+				blink = false;
+				reverse = false;
+			} else if (p == 1) {
+				bold = true;
+			} else if (p == 5 || p == 6) {
+				blink = true;
+			} else if (p == 7) {
+				reverse = true;
+			} else if (p == 22) {
+				bold = false;
+			} else if (p == 25) {
+				blink = false;
+			} else if (p == 27) {
+				reverse = false;
+			} else if (p >= 30 && p <= 37) {
+				color = ANSI_TO_PALETTE[p - 30];
+				colorRGB = -1;
+			} else if (p == 39) {
+				color = defaultColor;
+				colorRGB = -1;
+			} else if (p >= 40 && p <= 47) {
+				bgColor = ANSI_TO_PALETTE[p - 40];
+				bgColorRGB = -1;
+			} else if (p == 49) {
+				bgColor = defaultBGColor;
+				bgColorRGB = -1;
+			} else if (p >= 90 && p <= 97) {
+				color = ANSI_TO_PALETTE[p - 90] + 8;
+				colorRGB = -1;
+			} else if (p >= 100 && p <= 107) {
+				bgColor = ANSI_TO_PALETTE[p - 100] + 8;
+				bgColorRGB = -1;
+			} else if (p == 38 || p == 48) {
+				i = extendedColor(i, p == 38);
+			}
+		}
+		applyRendition();
+	}
+
+	/**
+	 * Reads a 256 color (38;5;n) or RGB (38;2;r;g;b) color from the
+	 * parameters of an SGR sequence.
+	 *
+	 * @param i
+	 *            The index of the 38 or 48 parameter
+	 * @param foreground
+	 *            Whether it is 38
+	 * @return the index of the last parameter read
+	 */
+	private int extendedColor(int i, boolean foreground) {
+		int index = -1;
+		int rgb = -1;
+		if (i + 2 < paramCount && params[i + 1] == 5) {
+			index = Math.max(params[i + 2], 0) & 0xFF;
+			i += 2;
+		} else if (i + 4 < paramCount && params[i + 1] == 2) {
+			rgb = (clampColorLevel(params[i + 2]) << 16)
+					| (clampColorLevel(params[i + 3]) << 8)
+					| clampColorLevel(params[i + 4]);
+			i += 4;
+		} else {
+			// Malformed: skip the rest of the sequence
+			return paramCount;
+		}
+
+		// The first 16 of the 256 colors are the palette, in ANSI order
+		int paletteColor = -1;
+		if (index >= 0 && index < 16) {
+			paletteColor = ANSI_TO_PALETTE[index & 7] + (index & 8);
+		} else if (index >= 16) {
+			rgb = Palette.xterm256ToRGB(index);
+		}
+
+		if (foreground) {
+			if (paletteColor >= 0) {
+				color = paletteColor;
+			}
+			colorRGB = rgb;
+		} else {
+			if (paletteColor >= 0) {
+				bgColor = paletteColor;
+			}
+			bgColorRGB = rgb;
+		}
+		return i;
+	}
+
+	private static int clampColorLevel(int level) {
+		return Math.min(Math.max(level, 0), 255);
+	}
+
+	/**
+	 * Sets the terminal's draw colors from the graphic rendition.
+	 */
+	private void applyRendition() {
+		int foreground = color;
+		if (bold && foreground < 8) {
+			foreground += 8;
+		}
+		if (reverse) {
+			drawColor = bgColor;
+			drawBGColor = foreground;
+			drawColorRGB = bgColorRGB;
+			drawBGColorRGB = colorRGB;
+		} else {
+			drawColor = foreground;
+			drawBGColor = bgColor;
+			drawColorRGB = colorRGB;
+			drawBGColorRGB = bgColorRGB;
+		}
+
+		if (drawColor != appliedColor || drawColorRGB != appliedColorRGB) {
+			terminal.setDrawColor(drawColor);
+			if (drawColorRGB >= 0) {
+				terminal.setDrawColorRGB(drawColorRGB);
+			}
+			appliedColor = drawColor;
+			appliedColorRGB = drawColorRGB;
+		}
+		if (drawBGColor != appliedBGColor || drawBGColorRGB != appliedBGColorRGB) {
+			terminal.setDrawBGColor(drawBGColor);
+			if (drawBGColorRGB >= 0) {
+				terminal.setDrawBGColorRGB(drawBGColorRGB);
+			}
+			appliedBGColor = drawBGColor;
+			appliedBGColorRGB = drawBGColorRGB;
+		}
+		if (blink != appliedBlink) {
+			terminal.setDrawBlinking(blink);
+			appliedBlink = blink;
+		}
+	}
+
+	/**
+	 * Fills a rectangle with blanks in the current background color.
+	 */
+	private void erase(int x, int y, int width, int height) {
+		if (width <= 0 || height <= 0) {
+			return;
+		}
+		terminal.fillRect(x, y, width, height, terminal.getBlankChar(),
+				drawColor, drawBGColor, -1, drawBGColorRGB, false);
+	}
+
+	private void moveCursor(int x, int y) {
+		wrapPending = false;
+		terminal.setCursorPos(Math.max(0, Math.min(x, terminal.getColumns() - 1)),
+				Math.max(0, Math.min(y, terminal.getRows() - 1)));
+	}
+
+	/**
+	 * Moves the cursor down a row, scrolling the screen up if it is on the
+	 * bottom row.
+	 */
+	private void index() {
+		int x = terminal.getCursorX();
+		int y = terminal.getCursorY();
+		if (y + 1 >= terminal.getRows()) {
+			scrollUp(1);
+		} else {
+			moveCursor(x, y + 1);
+		}
+	}
+
+	/**
+	 * Moves the cursor up a row, scrolling the screen down if it is on the top
+	 * row.
+	 */
+	private void reverseIndex() {
+		int x = terminal.getCursorX();
+		int y = terminal.getCursorY();
+		if (y == 0) {
+			int columns = terminal.getColumns();
+			terminal.copyRect(0, 0, columns, terminal.getRows() - 1, 0, 1);
+			erase(0, 0, columns, 1);
+		} else {
+			moveCursor(x, y - 1);
+		}
+	}
+
+	/**
+	 * Scrolls the screen up, filling the rows uncovered with blanks in the
+	 * current background color, and leaves the cursor where it was.
+	 */
+	private void scrollUp(int rows) {
+		int x = terminal.getCursorX();
+		int y = terminal.getCursorY();
+		terminal.scrollScreen(rows);
+		moveCursor(x, y);
+	}
+
+	private void saveCursor() {
+		savedX = terminal.getCursorX();
+		savedY = terminal.getCursorY();
+		savedColor = color;
+		savedBGColor = bgColor;
+		savedColorRGB = colorRGB;
+		savedBGColorRGB = bgColorRGB;
+		savedBold = bold;
+		savedBlink = blink;
+		savedReverse = reverse;
+	}
+
+	private void restoreCursor() {
+		color = savedColor;
+		bgColor = savedBGColor;
+		colorRGB = savedColorRGB;
+		bgColorRGB = savedBGColorRGB;
+		bold = savedBold;
+		blink = savedBlink;
+		reverse = savedReverse;
+		applyRendition();
+		moveCursor(savedX, savedY);
+	}
+
+	/**
+	 * Puts the terminal and parser back as they started: default colors, a
+	 * blank screen and the cursor at the top left.
+	 */
+	private void reset() {
+		color = defaultColor;
+		bgColor = defaultBGColor;
+		colorRGB = -1;
+		bgColorRGB = -1;
+		bold = false;
+		blink = false;
+		reverse = false;
+		applyRendition();
+		erase(0, 0, terminal.getColumns(), terminal.getRows());
+		moveCursor(0, 0);
+	}
+}
@@ -0,0 +1,114 @@
+/**
+ *
+ */
+package com.wikispaces.jtextmode;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The one clock that makes every terminal's cursor and blinking characters
+ * blink. It ticks on a single daemon thread, and only while some terminal is
+ * listening.
+ */
+class BlinkClock {
+	/**
+	 * How long blinking characters spend shown, then hidden, in milliseconds.
+	 */
+	public static final int BLINK_PERIOD = 500;
+
+	/**
+	 * Told each time the blink phase flips.
+	 */
+	public interface Listener {
+		/**
+		 * Called on the clock's thread, not the event dispatch thread.
+		 */
+		public void blinkPhaseChanged();
+	}
+
+	private static final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+	private static final ScheduledExecutorService executor = Executors
+			.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "JTextMode Blink Thread");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	/**
+	 * Ticks, then schedules itself to tick again, for as long as it is the
+	 * clock's current tick. Each run of ticking gets a new one, so a tick
+	 * already running when ticking stops can't carry on alongside the next
+	 * run.
+	 */
+	private static class Tick implements Runnable {
+		@Override
+		public void run() {
+			for (Listener listener : listeners) {
+				listener.blinkPhaseChanged();
+			}
+			scheduleNextTick(this);
+		}
+	}
+
+	/**
+	 * The tick of the current run of ticking, or null while the clock is
+	 * stopped.
+	 */
+	private static Tick currentTick;
+
+	private static ScheduledFuture<?> nextTick;
+
+	private BlinkClock() {
+	}
+
+	/**
+	 * @return true while blinking characters are hidden and the cursor shows
+	 *         as blank
+	 */
+	public static boolean isBlinkOn() {
+		return System.currentTimeMillis() % (2 * BLINK_PERIOD) < BLINK_PERIOD;
+	}
+
+	public static synchronized void addListener(Listener listener) {
+		listeners.addIfAbsent(listener);
+		if (currentTick == null) {
+			currentTick = new Tick();
+			scheduleNextTick(currentTick);
+		}
+	}
+
+	public static synchronized void removeListener(Listener listener) {
+		listeners.remove(listener);
+		if (listeners.isEmpty() && currentTick != null) {
+			nextTick.cancel(false);
+			nextTick = null;
+			currentTick = null;
+		}
+	}
+
+	/**
+	 * Schedules a tick just after the next phase flip, or stops ticking if no
+	 * one is listening. Does nothing if the tick is no longer current.
+	 */
+	private static synchronized void scheduleNextTick(Tick tick) {
+		if (tick != currentTick) {
+			return;
+		}
+		if (listeners.isEmpty()) {
+			nextTick = null;
+			currentTick = null;
+			return;
+		}
+		long delay = BLINK_PERIOD - System.currentTimeMillis() % BLINK_PERIOD;
+		nextTick = executor.schedule(tick, delay + 1, TimeUnit.MILLISECONDS);
+	}
+}
@@ -0,0 +1,743 @@
+/**
+ *
+ */
+package com.wikispaces.jtextmode;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * The contents of a text screen: one packed int per cell, stored row by row
+ * in a single array. Rows are kept in a ring so that scrolling only moves the
+ * index of the top row instead of copying the screen.<br>
+ * <br>
+ * A packed cell holds the character in bits 0-15, the foreground color in
+ * bits 16-19, the background color in bits 20-23 and the blinking bit in bit
+ * 24. If bit 25 or 26 is set, the cell's foreground or background is instead
+ * an RGB color kept alongside the cells; those are only allocated once a
+ * cell is given an RGB color.<br>
+ * <br>
+ * The number of blinking cells in each row is kept up to date so that
+ * blinking can be redrawn without searching the whole screen.
+ */
+public class CellBuffer {
+	public static final int GLYPH_MASK = 0xFFFF;
+	public static final int FG_SHIFT = 16;
+	public static final int BG_SHIFT = 20;
+	public static final int COLOR_MASK = 0xF;
+	public static final int BLINK_BIT = 1 << 24;
+	public static final int FG_RGB_BIT = 1 << 25;
+	public static final int BG_RGB_BIT = 1 << 26;
+
+	private final int columns;
+	private final int rows;
+
+	/**
+	 * The packed cells, row-major: the cell at x, y is at
+	 * rowOffset(y) + x.
+	 */
+	private final int[] cells;
+
+	/**
+	 * The row of the cells array holding the top row of the screen.
+	 */
+	private int topRow = 0;
+
+	/**
+	 * The RGB colors of cells with FG_RGB_BIT or BG_RGB_BIT set, laid out the
+	 * same as cells. Null until first used.
+	 */
+	private int[] colorsRGB;
+	private int[] bgColorsRGB;
+
+	/**
+	 * The number of cells with BLINK_BIT set in each row of the cells array,
+	 * and on the whole screen.
+	 */
+	private final int[] blinkingInRow;
+	private int blinkingCount = 0;
+
+	/**
+	 * Creates a new buffer with every cell set to the given packed cell.
+	 *
+	 * @param columns
+	 * @param rows
+	 * @param blankCell
+	 */
+	public CellBuffer(int columns, int rows, int blankCell) {
+		this.columns = columns;
+		this.rows = rows;
+		cells = new int[columns * rows];
+		blinkingInRow = new int[rows];
+		fillRange(0, cells.length, blankCell, 0, 0);
+	}
+
+	/**
+	 * Packs a character and its metadata into a single cell.
+	 *
+	 * @param character
+	 * @param color
+	 * @param bgColor
+	 * @param blink
+	 * @return
+	 */
+	public static int pack(int character, int color, int bgColor,
+			boolean blink) {
+		return (character & GLYPH_MASK)
+				| ((color & COLOR_MASK) << FG_SHIFT)
+				| ((bgColor & COLOR_MASK) << BG_SHIFT)
+				| (blink ? BLINK_BIT : 0);
+	}
+
+	public static int glyphOf(int cell) {
+		return cell & GLYPH_MASK;
+	}
+
+	public static int colorOf(int cell) {
+		return (cell >>> FG_SHIFT) & COLOR_MASK;
+	}
+
+	public static int bgColorOf(int cell) {
+		return (cell >>> BG_SHIFT) & COLOR_MASK;
+	}
+
+	public static boolean isBlinking(int cell) {
+		return (cell & BLINK_BIT) != 0;
+	}
+
+	public static boolean hasColorRGB(int cell) {
+		return (cell & FG_RGB_BIT) != 0;
+	}
+
+	public static boolean hasBGColorRGB(int cell) {
+		return (cell & BG_RGB_BIT) != 0;
+	}
+
+	public int getColumns() {
+		return columns;
+	}
+
+	public int getRows() {
+		return rows;
+	}
+
+	/**
+	 * @param x
+	 * @param y
+	 * @return whether x, y is a cell in this buffer
+	 */
+	public boolean contains(int x, int y) {
+		return x >= 0 && x < columns && y >= 0 && y < rows;
+	}
+
+	/**
+	 * @return the number of blinking cells on the screen
+	 */
+	public int getBlinkingCount() {
+		return blinkingCount;
+	}
+
+	/**
+	 * @param y
+	 * @return the number of blinking cells in a row of the screen. The row is
+	 *         not range checked.
+	 */
+	public int getBlinkingCount(int y) {
+		return blinkingInRow[rowOffset(y) / columns];
+	}
+
+	/**
+	 * Returns the index in the cells array of the first cell of a row on the
+	 * screen. The row is not range checked.
+	 *
+	 * @param y
+	 * @return
+	 */
+	public int rowOffset(int y) {
+		int row = topRow + y;
+		if (row >= rows) {
+			row -= rows;
+		}
+		return row * columns;
+	}
+
+	/**
+	 * Returns the packed cell at x, y. Coordinates are not range checked.
+	 */
+	public int get(int x, int y) {
+		return cells[rowOffset(y) + x];
+	}
+
+	/**
+	 * Replaces the packed cell at x, y. Coordinates are not range checked.
+	 */
+	public void set(int x, int y, int cell) {
+		int i = rowOffset(y) + x;
+		countBlinking(i, cells[i], cell);
+		cells[i] = cell;
+	}
+
+	/**
+	 * Replaces the packed cell at x, y, with the given RGB colors if the cell
+	 * has FG_RGB_BIT or BG_RGB_BIT set. Coordinates are not range checked.
+	 */
+	public void set(int x, int y, int cell, int colorRGB, int bgColorRGB) {
+		int i = rowOffset(y) + x;
+		fillRange(i, i + 1, cell, colorRGB, bgColorRGB);
+	}
+
+	public void setGlyph(int x, int y, int character) {
+		int i = rowOffset(y) + x;
+		cells[i] = (cells[i] & ~GLYPH_MASK) | (character & GLYPH_MASK);
+	}
+
+	public void setColor(int x, int y, int color) {
+		int i = rowOffset(y) + x;
+		cells[i] = (cells[i] & ~(COLOR_MASK << FG_SHIFT | FG_RGB_BIT))
+				| ((color & COLOR_MASK) << FG_SHIFT);
+	}
+
+	public void setBGColor(int x, int y, int bgColor) {
+		int i = rowOffset(y) + x;
+		cells[i] = (cells[i] & ~(COLOR_MASK << BG_SHIFT | BG_RGB_BIT))
+				| ((bgColor & COLOR_MASK) << BG_SHIFT);
+	}
+
+	/**
+	 * Gives a cell an RGB foreground color in place of its color index.
+	 *
+	 * @param x
+	 * @param y
+	 * @param rgb
+	 *            The color as 0xRRGGBB
+	 */
+	public void setColorRGB(int x, int y, int rgb) {
+		if (colorsRGB == null) {
+			colorsRGB = new int[cells.length];
+		}
+		int i = rowOffset(y) + x;
+		colorsRGB[i] = rgb & 0xFFFFFF;
+		cells[i] |= FG_RGB_BIT;
+	}
+
+	/**
+	 * Gives a cell an RGB background color in place of its color index.
+	 *
+	 * @param x
+	 * @param y
+	 * @param rgb
+	 *            The color as 0xRRGGBB
+	 */
+	public void setBGColorRGB(int x, int y, int rgb) {
+		if (bgColorsRGB == null) {
+			bgColorsRGB = new int[cells.length];
+		}
+		int i = rowOffset(y) + x;
+		bgColorsRGB[i] = rgb & 0xFFFFFF;
+		cells[i] |= BG_RGB_BIT;
+	}
+
+	/**
+	 * Returns the foreground of a cell as RGB, whether it was given as a color
+	 * index or in RGB. Coordinates are not range checked.
+	 *
+	 * @return the color as 0xRRGGBB
+	 */
+	public int getColorRGB(int x, int y) {
+		int i = rowOffset(y) + x;
+		if (hasColorRGB(cells[i])) {
+			return colorsRGB[i];
+		}
+		return Palette.toARGB(colorOf(cells[i])) & 0xFFFFFF;
+	}
+
+	/**
+	 * Returns the background of a cell as RGB, whether it was given as a color
+	 * index or in RGB. Coordinates are not range checked.
+	 *
+	 * @return the color as 0xRRGGBB
+	 */
+	public int getBGColorRGB(int x, int y) {
+		int i = rowOffset(y) + x;
+		if (hasBGColorRGB(cells[i])) {
+			return bgColorsRGB[i];
+		}
+		return Palette.toARGB(bgColorOf(cells[i])) & 0xFFFFFF;
+	}
+
+	/**
+	 * Copies the characters of a row of the screen. The row is not range
+	 * checked.
+	 *
+	 * @param y
+	 * @param dest
+	 *            Receives a character for each column
+	 */
+	public void copyGlyphs(int y, int[] dest) {
+		int from = rowOffset(y);
+		for (int x = 0; x < columns; x++) {
+			dest[x] = cells[from + x] & GLYPH_MASK;
+		}
+	}
+
+	/**
+	 * Copies a row of the screen into arrays laid out without the ring, with
+	 * the colors of every cell as opaque ARGB whether they were given as color
+	 * indexes or in RGB. The row is not range checked.
+	 *
+	 * @param y
+	 * @param destCells
+	 *            Receives the packed cells
+	 * @param destColorsARGB
+	 *            Receives the foreground colors
+	 * @param destBGColorsARGB
+	 *            Receives the background colors
+	 * @param destOffset
+	 *            Where in the arrays to put the first cell of the row
+	 */
+	public void copyRow(int y, int[] destCells, int[] destColorsARGB,
+			int[] destBGColorsARGB, int destOffset) {
+		int from = rowOffset(y);
+		System.arraycopy(cells, from, destCells, destOffset, columns);
+		for (int x = 0; x < columns; x++) {
+			int cell = cells[from + x];
+			if (hasColorRGB(cell)) {
+				destColorsARGB[destOffset + x] = 0xFF000000 | colorsRGB[from + x];
+			} else {
+				destColorsARGB[destOffset + x] = Palette.toARGB(colorOf(cell));
+			}
+			if (hasBGColorRGB(cell)) {
+				destBGColorsARGB[destOffset + x] = 0xFF000000 | bgColorsRGB[from
+						+ x];
+			} else {
+				destBGColorsARGB[destOffset + x] = Palette
+						.toARGB(bgColorOf(cell));
+			}
+		}
+	}
+
+	public void setBlinking(int x, int y, boolean blink) {
+		int i = rowOffset(y) + x;
+		int cell = cells[i];
+		if (blink) {
+			cells[i] |= BLINK_BIT;
+		} else {
+			cells[i] &= ~BLINK_BIT;
+		}
+		countBlinking(i, cell, cells[i]);
+	}
+
+	/**
+	 * Sets the colors and blinking bit of a cell, leaving its character.
+	 */
+	public void setAttributes(int x, int y, int color, int bgColor,
+			boolean blink) {
+		int i = rowOffset(y) + x;
+		int cell = cells[i];
+		cells[i] = pack(cell, color, bgColor, blink);
+		countBlinking(i, cell, cells[i]);
+	}
+
+	/**
+	 * Updates the blinking counts after the cell at index i has changed.
+	 */
+	private void countBlinking(int i, int oldCell, int newCell) {
+		if (((oldCell ^ newCell) & BLINK_BIT) != 0) {
+			int change = isBlinking(newCell) ? 1 : -1;
+			blinkingInRow[i / columns] += change;
+			blinkingCount += change;
+		}
+	}
+
+	/**
+	 * Sets every cell in the buffer to the given packed cell.
+	 *
+	 * @param cell
+	 */
+	public void fill(int cell) {
+		fill(cell, 0, 0);
+	}
+
+	/**
+	 * Sets every cell in the buffer to the given packed cell, with the given
+	 * RGB colors if the cell has FG_RGB_BIT or BG_RGB_BIT set.
+	 *
+	 * @param cell
+	 * @param colorRGB
+	 * @param bgColorRGB
+	 */
+	public void fill(int cell, int colorRGB, int bgColorRGB) {
+		fillRange(0, cells.length, cell, colorRGB, bgColorRGB);
+		topRow = 0;
+	}
+
+	private void fillRange(int from, int to, int cell, int colorRGB,
+			int bgColorRGB) {
+		// Recount the blinking cells in each row the range covers
+		for (int row = from / columns; row * columns < to; row++) {
+			int rowFrom = Math.max(from, row * columns);
+			int rowTo = Math.min(to, (row + 1) * columns);
+			int removed = 0;
+			if (rowTo - rowFrom == columns) {
+				removed = blinkingInRow[row];
+			} else if (blinkingInRow[row] > 0) {
+				for (int i = rowFrom; i < rowTo; i++) {
+					if (isBlinking(cells[i])) {
+						removed++;
+					}
+				}
+			}
+			int added = isBlinking(cell) ? rowTo - rowFrom : 0;
+			blinkingInRow[row] += added - removed;
+			blinkingCount += added - removed;
+		}
+
+		Arrays.fill(cells, from, to, cell);
+		if (hasColorRGB(cell)) {
+			if (colorsRGB == null) {
+				colorsRGB = new int[cells.length];
+			}
+			Arrays.fill(colorsRGB, from, to, colorRGB & 0xFFFFFF);
+		}
+		if (hasBGColorRGB(cell)) {
+			if (bgColorsRGB == null) {
+				bgColorsRGB = new int[cells.length];
+			}
+			Arrays.fill(bgColorsRGB, from, to, bgColorRGB & 0xFFFFFF);
+		}
+	}
+
+	/**
+	 * Sets every cell in a rectangle to the given packed cell, with the given
+	 * RGB colors if the cell has FG_RGB_BIT or BG_RGB_BIT set. The rectangle
+	 * is not range checked.
+	 */
+	public void fillRect(int x, int y, int width, int height, int cell,
+			int colorRGB, int bgColorRGB) {
+		for (int row = y; row < y + height; row++) {
+			int from = rowOffset(row) + x;
+			fillRange(from, from + width, cell, colorRGB, bgColorRGB);
+		}
+	}
+
+	/**
+	 * Copies a rectangle of cells to another place, which may overlap it, as
+	 * if through a temporary copy. Neither rectangle is range checked.
+	 */
+	public void copyRect(int x, int y, int width, int height, int toX, int toY) {
+		if (width <= 0) {
+			return;
+		}
+
+		// Copy rows in the order that doesn't overwrite rows still to be copied
+		int first = 0;
+		int last = height;
+		int step = 1;
+		if (toY > y) {
+			first = height - 1;
+			last = -1;
+			step = -1;
+		}
+		for (int row = first; row != last; row += step) {
+			int from = rowOffset(y + row) + x;
+			int to = rowOffset(toY + row) + toX;
+			int blinkingBefore = blinkingInRow[to / columns] == 0 ? 0
+				: countBlinkingIn(to, to + width);
+			System.arraycopy(cells, from, cells, to, width);
+			if (colorsRGB != null) {
+				System.arraycopy(colorsRGB, from, colorsRGB, to, width);
+			}
+			if (bgColorsRGB != null) {
+				System.arraycopy(bgColorsRGB, from, bgColorsRGB, to, width);
+			}
+			addBlinking(to, countBlinkingIn(to, to + width) - blinkingBefore);
+		}
+	}
+
+	/**
+	 * Writes characters along a row from x, all with the same colors and
+	 * blinking bit. Cells past the end of the row are not written. The
+	 * starting cell is not range checked.
+	 *
+	 * @param text
+	 * @param start
+	 *            The index in text of the first character to write
+	 * @param end
+	 *            The index in text after the last character to write
+	 * @param attributes
+	 *            A packed cell giving the colors and blinking bit; its
+	 *            character is ignored
+	 * @return the number of characters written
+	 */
+	public int setString(int x, int y, CharSequence text, int start, int end,
+			int attributes) {
+		int length = Math.min(end - start, columns - x);
+		if (length <= 0) {
+			return 0;
+		}
+
+		int from = rowOffset(y) + x;
+		int blinkingBefore = blinkingInRow[from / columns] == 0 ? 0
+				: countBlinkingIn(from, from + length);
+		attributes &= ~(GLYPH_MASK | FG_RGB_BIT | BG_RGB_BIT);
+		for (int i = 0; i < length; i++) {
+			cells[from + i] = attributes | text.charAt(start + i);
+		}
+		addBlinking(from, countBlinkingIn(from, from + length) - blinkingBefore);
+		return length;
+	}
+
+	/**
+	 * Sets the characters of cells along a row from x, leaving their colors.
+	 * The cells are not range checked.
+	 */
+	public void setGlyphs(int x, int y, CharSequence text, int start,
+			int length) {
+		int to = rowOffset(y) + x;
+		for (int i = 0; i < length; i++) {
+			cells[to + i] = (cells[to + i] & ~GLYPH_MASK) | text.charAt(start + i);
+		}
+	}
+
+	/**
+	 * Sets the characters of cells along a row from x, leaving their colors.
+	 * The cells are not range checked.
+	 */
+	public void setGlyphs(int x, int y, char[] chars, int offset, int length) {
+		int to = rowOffset(y) + x;
+		for (int i = 0; i < length; i++) {
+			cells[to + i] = (cells[to + i] & ~GLYPH_MASK) | chars[offset + i];
+		}
+	}
+
+	/**
+	 * Copies a rectangle of packed cells into the buffer. The rectangle is
+	 * not range checked.
+	 *
+	 * @param source
+	 *            The packed cells, row by row
+	 * @param sourceColorsRGB
+	 *            The RGB foreground colors of cells with FG_RGB_BIT set, laid
+	 *            out the same as source; if null, source cells are given their
+	 *            color indexes instead
+	 * @param sourceBGColorsRGB
+	 *            The RGB background colors of cells with BG_RGB_BIT set, laid
+	 *            out the same as source; if null, source cells are given their
+	 *            color indexes instead
+	 * @param offset
+	 *            The index in the source arrays of the rectangle's top left
+	 *            cell
+	 * @param scanline
+	 *            The distance in the source arrays from one row to the next
+	 */
+	public void blit(int x, int y, int width, int height, int[] source,
+			int[] sourceColorsRGB, int[] sourceBGColorsRGB, int offset,
+			int scanline) {
+		if (width <= 0) {
+			return;
+		}
+
+		int rgbBits = 0;
+		if (sourceColorsRGB != null) {
+			rgbBits |= FG_RGB_BIT;
+			if (colorsRGB == null) {
+				colorsRGB = new int[cells.length];
+			}
+		}
+		if (sourceBGColorsRGB != null) {
+			rgbBits |= BG_RGB_BIT;
+			if (bgColorsRGB == null) {
+				bgColorsRGB = new int[cells.length];
+			}
+		}
+
+		for (int row = 0; row < height; row++) {
+			int from = offset + row * scanline;
+			int to = rowOffset(y + row) + x;
+			int blinkingBefore = blinkingInRow[to / columns] == 0 ? 0
+				: countBlinkingIn(to, to + width);
+			System.arraycopy(source, from, cells, to, width);
+			if (sourceColorsRGB != null) {
+				System.arraycopy(sourceColorsRGB, from, colorsRGB, to, width);
+			}
+			if (sourceBGColorsRGB != null) {
+				System.arraycopy(sourceBGColorsRGB, from, bgColorsRGB, to,
+						width);
+			}
+			if (rgbBits != (FG_RGB_BIT | BG_RGB_BIT)) {
+				// Only keep RGB bits that came with colors
+				int clear = ~(FG_RGB_BIT | BG_RGB_BIT) | rgbBits;
+				for (int i = to; i < to + width; i++) {
+					cells[i] &= clear;
+				}
+			}
+			addBlinking(to, countBlinkingIn(to, to + width) - blinkingBefore);
+		}
+	}
+
+	/**
+	 * @return the number of blinking cells between two indexes in the cells
+	 *         array
+	 */
+	private int countBlinkingIn(int from, int to) {
+		int count = 0;
+		for (int i = from; i < to; i++) {
+			if (isBlinking(cells[i])) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Adds to the number of blinking cells in the row holding index i of the
+	 * cells array.
+	 */
+	private void addBlinking(int i, int change) {
+		blinkingInRow[i / columns] += change;
+		blinkingCount += change;
+	}
+
+	/**
+	 * @return the bytes saveState writes: the cells, then their RGB colors,
+	 *         then their background RGB colors, four bytes each
+	 */
+	public int getStateSize() {
+		return 12 * cells.length;
+	}
+
+	/**
+	 * Writes every cell, row by row from the top of the screen, and then
+	 * their RGB colors, at the buffer's position, advancing it.
+	 *
+	 * @throws java.nio.BufferOverflowException
+	 *             if there are fewer than getStateSize() bytes left
+	 */
+	public void saveState(ByteBuffer buffer) {
+		IntBuffer ints = buffer.asIntBuffer();
+		putRows(ints, cells);
+		putRows(ints, colorsRGB);
+		putRows(ints, bgColorsRGB);
+		buffer.position(buffer.position() + getStateSize());
+	}
+
+	/**
+	 * Puts the rows of an array laid out as cells, from the top of the
+	 * screen, or zeros if it is null.
+	 */
+	private void putRows(IntBuffer ints, int[] array) {
+		if (array == null) {
+			for (int i = 0; i < cells.length; i++) {
+				ints.put(0);
+			}
+			return;
+		}
+		int top = topRow * columns;
+		ints.put(array, top, array.length - top);
+		ints.put(array, 0, top);
+	}
+
+	/**
+	 * Reads every cell and their RGB colors as written by saveState, at the
+	 * buffer's position, advancing it.
+	 *
+	 * @throws java.nio.BufferUnderflowException
+	 *             if there are fewer than getStateSize() bytes left
+	 */
+	public void restoreState(ByteBuffer buffer) {
+		if (buffer.remaining() < getStateSize()) {
+			throw new BufferUnderflowException();
+		}
+		IntBuffer ints = buffer.asIntBuffer();
+		topRow = 0;
+		ints.get(cells);
+		// Only allocate the RGB colors if they are used
+		if (colorsRGB != null || bgColorsRGB != null || hasRGBCells()) {
+			if (colorsRGB == null) {
+				colorsRGB = new int[cells.length];
+			}
+			if (bgColorsRGB == null) {
+				bgColorsRGB = new int[cells.length];
+			}
+			ints.get(colorsRGB);
+			ints.get(bgColorsRGB);
+		}
+		buffer.position(buffer.position() + getStateSize());
+
+		blinkingCount = 0;
+		for (int row = 0; row < rows; row++) {
+			blinkingInRow[row] = countBlinkingIn(row * columns, (row + 1)
+					* columns);
+			blinkingCount += blinkingInRow[row];
+		}
+	}
+
+	/**
+	 * Checks the cells saved at the buffer's position, without reading them
+	 * in or moving the position.
+	 *
+	 * @return false if any has bits set that no packed cell has
+	 */
+	public boolean isValidState(ByteBuffer buffer) {
+		int unused = ~((BG_RGB_BIT << 1) - 1);
+		int position = buffer.position();
+		for (int i = 0; i < cells.length; i++) {
+			if ((buffer.getInt(position + 4 * i) & unused) != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean hasRGBCells() {
+		for (int cell : cells) {
+			if ((cell & (FG_RGB_BIT | BG_RGB_BIT)) != 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Moves every row up by the given number of rows, discarding the top rows
+	 * and filling the rows uncovered at the bottom with the given packed cell.
+	 *
+	 * @param scrollRows
+	 * @param blankCell
+	 */
+	public void scrollUp(int scrollRows, int blankCell) {
+		scrollUp(scrollRows, blankCell, 0, 0);
+	}
+
+	/**
+	 * Moves every row up by the given number of rows, filling the rows
+	 * uncovered at the bottom with the given packed cell and RGB colors.
+	 *
+	 * @param scrollRows
+	 * @param blankCell
+	 * @param blankColorRGB
+	 *            Used if blankCell has FG_RGB_BIT set
+	 * @param blankBGColorRGB
+	 *            Used if blankCell has BG_RGB_BIT set
+	 */
+	public void scrollUp(int scrollRows, int blankCell, int blankColorRGB,
+			int blankBGColorRGB) {
+		if (scrollRows <= 0) {
+			return;
+		}
+		if (scrollRows >= rows) {
+			fill(blankCell, blankColorRGB, blankBGColorRGB);
+			return;
+		}
+
+		// The top rows become the bottom rows once the ring is turned
+		for (int y = 0; y < scrollRows; y++) {
+			int offset = rowOffset(y);
+			fillRange(offset, offset + columns, blankCell, blankColorRGB,
+					blankBGColorRGB);
+		}
+		topRow = (topRow + scrollRows) % rows;
+	}
+}
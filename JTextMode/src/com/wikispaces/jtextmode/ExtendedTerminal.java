@@ -0,0 +1,424 @@
+/**
+ *
+ */
+package com.wikispaces.jtextmode;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * A Terminal that can also batch its changes, draw in bulk, use RGB colors,
+ * keep a scrollback, search it, and save and restore its screen. Both
+ * terminals in this package are ExtendedTerminals, and the classes that draw
+ * on a terminal, such as AnsiParser, need one.<br>
+ * <br>
+ * These methods are kept out of Terminal so that classes outside this
+ * package that implement Terminal still compile.
+ */
+public interface ExtendedTerminal extends Terminal {
+
+	/**
+	 * Starts a batch of changes to the screen. Until the matching endUpdate,
+	 * nothing this thread changes is drawn, and other threads wait to change
+	 * the screen; the whole batch is then drawn as one frame with one repaint.
+	 * Batches may be nested, and only the outermost endUpdate draws them.<br>
+	 * <br>
+	 * Always call endUpdate in a finally block:
+	 * 
+	 * <pre>
+	 * terminal.beginUpdate();
+	 * try {
+	 * 	// Draw the whole table
+	 * } finally {
+	 * 	terminal.endUpdate();
+	 * }
+	 * </pre>
+	 */
+	public void beginUpdate();
+
+	/**
+	 * Ends a batch of changes started with beginUpdate.
+	 * 
+	 * @throws IllegalStateException
+	 *             if this thread has not begun a batch
+	 */
+	public void endUpdate();
+
+	/**
+	 * Writes text at the cursor, then moves the cursor to the start of the
+	 * next line.
+	 * 
+	 * @param text
+	 */
+	public void writeLn(CharSequence text);
+
+	/**
+	 * Writes text at the cursor.
+	 * 
+	 * @param text
+	 */
+	public void write(CharSequence text);
+
+	/**
+	 * Writes part of some text at the cursor, without copying it.
+	 * 
+	 * @param text
+	 * @param start
+	 *            The index of the first character to write
+	 * @param end
+	 *            The index after the last character to write
+	 * @throws IndexOutOfBoundsException
+	 *             if start and end are not a range within text
+	 */
+	public void write(CharSequence text, int start, int end);
+
+	/**
+	 * Writes part of an array of characters at the cursor, without copying
+	 * it.
+	 * 
+	 * @param chars
+	 * @param offset
+	 *            The index of the first character to write
+	 * @param length
+	 *            The number of characters to write
+	 * @throws IndexOutOfBoundsException
+	 *             if offset and length are not a range within chars
+	 */
+	public void write(char[] chars, int offset, int length);
+
+	/**
+	 * Sets the color of a character as RGB instead of a color index.
+	 * 
+	 * @param x
+	 * @param y
+	 * @param rgb
+	 *            The color as 0xRRGGBB
+	 * @return false if the x and y are out of bounds
+	 */
+	public boolean setColorRGBAt(int x, int y, int rgb);
+
+	/**
+	 * Sets the background color of a character as RGB instead of a color
+	 * index.
+	 * 
+	 * @param x
+	 * @param y
+	 * @param rgb
+	 *            The color as 0xRRGGBB
+	 * @return false if the x and y are out of bounds
+	 */
+	public boolean setBGColorRGBAt(int x, int y, int rgb);
+
+	/**
+	 * Fills a rectangle of the text screen with one character, all in the
+	 * same colors. Any part of the rectangle off the screen is left out.
+	 * 
+	 * @param x
+	 * @param y
+	 * @param width
+	 * @param height
+	 * @param character
+	 * @param color
+	 * @param bgColor
+	 * @param blink
+	 * @return false if any of the rectangle is out of bounds
+	 */
+	public boolean fillRect(int x, int y, int width, int height,
+			int character, int color, int bgColor, boolean blink);
+
+	/**
+	 * Fills a rectangle of the text screen with one character, all in the
+	 * same colors, either of which may be RGB. Any part of the rectangle off
+	 * the screen is left out.
+	 * 
+	 * @param x
+	 * @param y
+	 * @param width
+	 * @param height
+	 * @param character
+	 * @param color
+	 *            Used if colorRGB is -1
+	 * @param bgColor
+	 *            Used if bgColorRGB is -1
+	 * @param colorRGB
+	 *            The color as 0xRRGGBB, or -1 to use color
+	 * @param bgColorRGB
+	 *            The background color as 0xRRGGBB, or -1 to use bgColor
+	 * @param blink
+	 * @return false if any of the rectangle is out of bounds
+	 */
+	public boolean fillRect(int x, int y, int width, int height,
+			int character, int color, int bgColor, int colorRGB,
+			int bgColorRGB, boolean blink);
+
+	/**
+	 * Copies a rectangle of the text screen, colors and all, so that its top
+	 * left corner is at toX, toY. The rectangles may overlap. Any part of the
+	 * rectangle that would be copied from or to off the screen is left out.
+	 * 
+	 * @param x
+	 * @param y
+	 * @param width
+	 * @param height
+	 * @param toX
+	 * @param toY
+	 * @return false if any of either rectangle is out of bounds
+	 */
+	public boolean copyRect(int x, int y, int width, int height, int toX,
+			int toY);
+
+	/**
+	 * Writes text on one row of the text screen starting at x, y, all in the
+	 * same colors, without moving the cursor. Text past the end of the row is
+	 * left out rather than wrapped.
+	 * 
+	 * @param x
+	 * @param y
+	 * @param text
+	 * @param color
+	 * @param bgColor
+	 * @param blink
+	 * @return false if any of the text is out of bounds
+	 */
+	public boolean setStringAt(int x, int y, String text, int color,
+			int bgColor, boolean blink);
+
+	/**
+	 * Copies a rectangle of cells packed as by CellBuffer.pack onto the text
+	 * screen. Any part of the rectangle off the screen is left out.
+	 * 
+	 * @param x
+	 * @param y
+	 * @param width
+	 * @param height
+	 * @param cells
+	 *            The packed cells, row by row
+	 * @param offset
+	 *            The index in cells of the rectangle's top left cell
+	 * @param scanline
+	 *            The distance in cells from one row of the rectangle to the
+	 *            next
+	 * @return false if any of the rectangle is out of bounds
+	 */
+	public boolean blit(int x, int y, int width, int height, int[] cells,
+			int offset, int scanline);
+
+	/**
+	 * 
+	 * @param x
+	 * @param y
+	 * @return the color at x, y as 0xRRGGBB, whether set by index or in RGB,
+	 *         or -1 if coords are out of bounds
+	 */
+	public int getColorRGBAt(int x, int y);
+
+	/**
+	 * 
+	 * @param x
+	 * @param y
+	 * @return the background color at x, y as 0xRRGGBB, whether set by index
+	 *         or in RGB, or -1 if coords are out of bounds
+	 */
+	public int getBGColorRGBAt(int x, int y);
+
+	/**
+	 * @return the column the cursor is in
+	 */
+	public int getCursorX();
+
+	/**
+	 * @return the row the cursor is in
+	 */
+	public int getCursorY();
+
+	/**
+	 * @return the most rows kept in the scrollback
+	 */
+	public int getScrollbackSize();
+
+	/**
+	 * Sets how many of the rows scrolled off the top of the screen are kept,
+	 * to be shown by scrolling the viewport back. Any rows already kept are
+	 * forgotten, and the viewport returns to the screen.
+	 * 
+	 * @param rows
+	 *            The most rows to keep, or 0 to keep none. Default is 0.
+	 */
+	public void setScrollbackSize(int rows);
+
+	/**
+	 * Sets how many of the rows scrolled off the top of the screen are kept,
+	 * to be shown by scrolling the viewport back. Any rows already kept are
+	 * forgotten, and the viewport returns to the screen.<br>
+	 * <br>
+	 * Rows are kept compressed: a row of plain text takes about a byte per
+	 * character up to the last one that isn't blank, and blank rows take a
+	 * few bytes, or none when repeated.
+	 * 
+	 * @param rows
+	 *            The most rows to keep, or 0 to keep none. Default is 0.
+	 * @param offHeap
+	 *            Whether to keep the rows in memory outside the Java heap
+	 */
+	public void setScrollbackSize(int rows, boolean offHeap);
+
+	/**
+	 * @return the number of rows kept in the scrollback
+	 */
+	public int getScrollbackRowCount();
+
+	/**
+	 * @return how many rows of the scrollback are shown above the screen
+	 */
+	public int getViewportOffset();
+
+	/**
+	 * Scrolls the view back through the scrollback, showing the given number
+	 * of its newest rows above the screen and the screen that many rows
+	 * further down. While scrolled back, the same rows stay in view as more
+	 * rows scroll off the screen. Takes time in proportion to the rows shown,
+	 * however many are kept.
+	 * 
+	 * @param offset
+	 *            The number of rows to show above the screen, or 0 to show
+	 *            only the screen
+	 * @return false if offset is negative or more than the rows kept; will
+	 *         set as close as possible to it anyway
+	 */
+	public boolean setViewportOffset(int offset);
+
+	/**
+	 * @return the line number of the top row of the screen; the rows of the
+	 *         scrollback are the lines before it
+	 */
+	public long getScreenLine();
+
+	/**
+	 * Scrolls the viewport so that a line is shown: to the top of the view if
+	 * it is in the scrollback, or back to the screen if it is on the screen.
+	 * 
+	 * @param line
+	 * @return false if the line is no longer kept
+	 */
+	public boolean scrollToLine(long line);
+
+	/**
+	 * Finds every place some text appears in the scrollback and on the
+	 * screen, from the oldest line to the bottom of the screen. Text is
+	 * matched within a line, not across the end of one line into the next,
+	 * and matches do not overlap. Output is not held up for the whole search,
+	 * so lines scrolled away meanwhile may be missed.
+	 * 
+	 * @param text
+	 *            The characters to find, as characters on the code page
+	 * @param ignoreCase
+	 *            Whether to match the letters A-Z in either case
+	 * @return the matches, in order
+	 */
+	public List<TextMatch> findAll(CharSequence text, boolean ignoreCase);
+
+	/**
+	 * Finds the next or previous place some text appears in the scrollback
+	 * and on the screen. Text is matched within a line, not across the end of
+	 * one line into the next.
+	 * 
+	 * @param text
+	 *            The characters to find, as characters on the code page
+	 * @param fromLine
+	 *            The line to start searching on. Lines no longer kept are
+	 *            skipped.
+	 * @param fromColumn
+	 *            Searching forwards, the first column a match may start in;
+	 *            backwards, the last
+	 * @param forwards
+	 *            Whether to search towards the bottom of the screen, or back
+	 *            towards the oldest line
+	 * @param ignoreCase
+	 *            Whether to match the letters A-Z in either case
+	 * @return the match, or null if the text was not found
+	 */
+	public TextMatch find(CharSequence text, long fromLine, int fromColumn,
+			boolean forwards, boolean ignoreCase);
+
+	/**
+	 * Shows text in reverse video wherever it is in the scrollback or on the
+	 * screen, such as the matches found by a search, until other text is
+	 * highlighted. A highlight stays on its line as the line scrolls.
+	 * 
+	 * @param matches
+	 *            The text to highlight, or null to highlight nothing
+	 */
+	public void setHighlights(List<TextMatch> matches);
+
+	/**
+	 * @return the bytes saveState writes
+	 */
+	public long getStateSize();
+
+	/**
+	 * Writes everything on the screen at the buffer's position, advancing it,
+	 * in a fixed binary layout restoreState reads back: the cells with their
+	 * colors and blinking, the cursor, the draw colors, the viewport and the
+	 * scrollback. The code page isn't saved. Cells are copied in bulk, without
+	 * creating an object per cell.
+	 * 
+	 * @param buffer
+	 *            Needs getStateSize() bytes left
+	 * @throws java.nio.BufferOverflowException
+	 *             if it has fewer
+	 */
+	public void saveState(ByteBuffer buffer);
+
+	/**
+	 * Replaces everything on the screen with what saveState wrote, at the
+	 * buffer's position, advancing it. The screen must be the same size as
+	 * the one saved. Search highlights are cleared.
+	 * 
+	 * @throws IOException
+	 *             If the buffer doesn't hold a saved screen of this size; the
+	 *             screen is left unchanged
+	 */
+	public void restoreState(ByteBuffer buffer) throws IOException;
+
+	/**
+	 * Saves the screen into a file at the channel's position, through a
+	 * MappedByteBuffer, and moves the position past it, so that many screens
+	 * can be saved one after another in one file.
+	 * 
+	 * @param channel
+	 *            Must be open for reading and writing. Call force on it to be
+	 *            sure the screen is on disk.
+	 * @throws IOException
+	 */
+	public void saveState(FileChannel channel) throws IOException;
+
+	/**
+	 * Restores the screen from a file saved by saveState, at the channel's
+	 * position, through a MappedByteBuffer, and moves the position past it.
+	 * 
+	 * @throws IOException
+	 *             If the file doesn't hold a saved screen of this size there;
+	 *             the screen is left unchanged
+	 */
+	public void restoreState(FileChannel channel) throws IOException;
+
+	/**
+	 * Draws characters written at the cursor in an RGB color until
+	 * setDrawColor is called. See Palette.xterm256ToRGB for 256 color indexes.
+	 * 
+	 * @param rgb
+	 *            The color as 0xRRGGBB
+	 */
+	public void setDrawColorRGB(int rgb);
+
+	/**
+	 * Draws characters written at the cursor on an RGB background color until
+	 * setDrawBGColor is called.
+	 * 
+	 * @param rgb
+	 *            The color as 0xRRGGBB
+	 */
+	public void setDrawBGColorRGB(int rgb);
+}
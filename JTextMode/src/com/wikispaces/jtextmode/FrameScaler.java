@@ -0,0 +1,178 @@
+/**
+ *
+ */
+package com.wikispaces.jtextmode;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+
+/**
+ * Keeps a nearest-neighbor scaled copy of a rendered text screen, rescaling
+ * only the parts of it that have changed. Each scaled pixel takes its color
+ * from the source pixel under its center, the same as Java2D's
+ * nearest-neighbor interpolation. When the scale is a whole number each
+ * source pixel is simply replicated.
+ */
+class FrameScaler {
+	private int sourceWidth;
+	private int sourceHeight;
+	private int scaledWidth;
+	private int scaledHeight;
+
+	private BufferedImage scaledImage;
+	private int[] scaledPixels;
+
+	/**
+	 * For each scaled column or row, the source column or row it shows.
+	 */
+	private int[] sourceXForScaledX;
+	private int[] sourceYForScaledY;
+
+	/**
+	 * For each source column or row, the first scaled column or row that shows
+	 * it or any later column or row; one longer than the source.
+	 */
+	private int[] firstScaledXForSourceX;
+	private int[] firstScaledYForSourceY;
+
+	/**
+	 * Whether the scaled image no longer matches the source at all.
+	 */
+	private boolean invalid = true;
+
+	/**
+	 * Sets the size of the source and scaled images, discarding the scaled
+	 * image if either has changed.
+	 *
+	 * @return true if the scaled image needs to be redrawn in full
+	 */
+	public boolean setSize(int sourceWidth, int sourceHeight, int scaledWidth,
+			int scaledHeight) {
+		if (scaledImage != null && sourceWidth == this.sourceWidth
+				&& sourceHeight == this.sourceHeight
+				&& scaledWidth == this.scaledWidth
+				&& scaledHeight == this.scaledHeight) {
+			return invalid;
+		}
+
+		this.sourceWidth = sourceWidth;
+		this.sourceHeight = sourceHeight;
+		this.scaledWidth = scaledWidth;
+		this.scaledHeight = scaledHeight;
+
+		scaledImage = new BufferedImage(scaledWidth, scaledHeight,
+				BufferedImage.TYPE_INT_ARGB);
+		scaledPixels = ((DataBufferInt) scaledImage.getRaster()
+				.getDataBuffer()).getData();
+		sourceXForScaledX = mapScaledToSource(sourceWidth, scaledWidth);
+		sourceYForScaledY = mapScaledToSource(sourceHeight, scaledHeight);
+		firstScaledXForSourceX = mapSourceToScaled(sourceXForScaledX,
+				sourceWidth);
+		firstScaledYForSourceY = mapSourceToScaled(sourceYForScaledY,
+				sourceHeight);
+
+		invalid = true;
+		return true;
+	}
+
+	private static int[] mapScaledToSource(int sourceSize, int scaledSize) {
+		int[] map = new int[scaledSize];
+		for (int i = 0; i < scaledSize; i++) {
+			map[i] = (int) (((2L * i + 1) * sourceSize) / (2L * scaledSize));
+		}
+		return map;
+	}
+
+	private static int[] mapSourceToScaled(int[] scaledToSource, int sourceSize) {
+		int[] map = new int[sourceSize + 1];
+		int scaled = 0;
+		for (int i = 0; i <= sourceSize; i++) {
+			while (scaled < scaledToSource.length
+					&& scaledToSource[scaled] < i) {
+				scaled++;
+			}
+			map[i] = scaled;
+		}
+		return map;
+	}
+
+	/**
+	 * Marks the scaled image as needing to be redrawn in full, such as when
+	 * the source has changed without it being told.
+	 */
+	public void invalidate() {
+		invalid = true;
+	}
+
+	public BufferedImage getImage() {
+		return scaledImage;
+	}
+
+	/**
+	 * Follows the source as it is shifted up by a number of rows, if that
+	 * comes out to a whole number of scaled rows. Otherwise the scaled image
+	 * is invalidated.
+	 *
+	 * @param sourceRows
+	 *            The number of rows of pixels the source has moved up
+	 */
+	public void scrollUp(int sourceRows) {
+		if (invalid || sourceRows <= 0) {
+			return;
+		}
+		if (sourceRows >= sourceHeight
+				|| (scaledHeight * sourceRows) % sourceHeight != 0) {
+			invalid = true;
+			return;
+		}
+
+		int scaledRows = firstScaledYForSourceY[sourceRows];
+		System.arraycopy(scaledPixels, scaledRows * scaledWidth, scaledPixels,
+				0, (scaledHeight - scaledRows) * scaledWidth);
+	}
+
+	/**
+	 * Rescales a rectangle of the source, or the whole source if the scaled
+	 * image has been invalidated.
+	 *
+	 * @param source
+	 *            The source pixels, sourceWidth wide
+	 */
+	public void update(int[] source, int x, int y, int width, int height) {
+		if (invalid) {
+			x = 0;
+			y = 0;
+			width = sourceWidth;
+			height = sourceHeight;
+			invalid = false;
+		}
+		if (width <= 0 || height <= 0) {
+			return;
+		}
+
+		int scaledLeft = firstScaledXForSourceX[x];
+		int scaledRight = firstScaledXForSourceX[x + width];
+		int scaledTop = firstScaledYForSourceY[y];
+		int scaledBottom = firstScaledYForSourceY[y + height];
+		int spanWidth = scaledRight - scaledLeft;
+
+		int lastSourceY = -1;
+		for (int scaledY = scaledTop; scaledY < scaledBottom; scaledY++) {
+			int sourceY = sourceYForScaledY[scaledY];
+			int rowStart = scaledY * scaledWidth + scaledLeft;
+			if (sourceY == lastSourceY) {
+				// Same source row as the row above: copy it
+				System.arraycopy(scaledPixels, rowStart - scaledWidth,
+						scaledPixels, rowStart, spanWidth);
+				continue;
+			}
+			lastSourceY = sourceY;
+
+			int sourceRowStart = sourceY * sourceWidth;
+			for (int scaledX = scaledLeft; scaledX < scaledRight; scaledX++) {
+				scaledPixels[rowStart++] = source[sourceRowStart
+						+ sourceXForScaledX[scaledX]];
+			}
+		}
+	}
+}
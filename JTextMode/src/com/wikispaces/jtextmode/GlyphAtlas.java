@@ -0,0 +1,242 @@
+/**
+ *
+ */
+package com.wikispaces.jtextmode;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+
+/**
+ * A code page rasterized into one coverage mask per character, drawn straight
+ * into an int ARGB pixel array without going through Java2D.<br>
+ * <br>
+ * Every pixel in the code page image that is neither white nor transparent is
+ * part of a character; every other pixel is background.<br>
+ * <br>
+ * Atlases loaded with {@link #load(InputStream, int, int, int, int)} are
+ * shared by every terminal in the process that uses the same code page.
+ */
+public class GlyphAtlas {
+	/**
+	 * The most code pages kept loaded for reuse; the least recently loaded is
+	 * dropped first.
+	 */
+	private static final int MAX_CACHED_ATLASES = 8;
+
+	/**
+	 * Loaded atlases by code page image content and grid size.
+	 */
+	private static final Map<String, GlyphAtlas> cache = new LinkedHashMap<String, GlyphAtlas>(
+			16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, GlyphAtlas> eldest) {
+			return size() > MAX_CACHED_ATLASES;
+		}
+	};
+
+	private final int charWidth;
+	private final int charHeight;
+	private final int glyphCount;
+
+	/**
+	 * One byte per pixel per character, 1 where the character is drawn in the
+	 * foreground color and 0 where the background shows. The mask for
+	 * character c starts at c * charWidth * charHeight.
+	 */
+	private final byte[] masks;
+
+	/**
+	 * Rasterizes a code page image.
+	 *
+	 * @param codePageImage
+	 *            The code page: black characters on a white background
+	 * @param charWidth
+	 *            The width of one character in pixels on the grid
+	 * @param charHeight
+	 *            The height of one character in pixels on the grid
+	 * @param pageWidthInChars
+	 *            The width of the grid in characters
+	 * @param pageHeightInChars
+	 *            The height of the grid in characters
+	 */
+	public GlyphAtlas(BufferedImage codePageImage, int charWidth,
+			int charHeight, int pageWidthInChars, int pageHeightInChars) {
+		this.charWidth = charWidth;
+		this.charHeight = charHeight;
+		this.glyphCount = pageWidthInChars * pageHeightInChars;
+
+		int glyphSize = charWidth * charHeight;
+		masks = new byte[glyphCount * glyphSize];
+
+		int imageWidth = codePageImage.getWidth();
+		int imageHeight = codePageImage.getHeight();
+		int[] row = new int[charWidth];
+		int white = Color.white.getRGB();
+		for (int glyph = 0; glyph < glyphCount; glyph++) {
+			int pageX = (glyph % pageWidthInChars) * charWidth;
+			int pageY = (glyph / pageWidthInChars) * charHeight;
+			int maskOffset = glyph * glyphSize;
+
+			// Parts of the grid off the image are left blank
+			int width = Math.min(charWidth, imageWidth - pageX);
+			int height = Math.min(charHeight, imageHeight - pageY);
+			for (int y = 0; y < height; y++) {
+				codePageImage.getRGB(pageX, pageY + y, width, 1, row, 0,
+						charWidth);
+				for (int x = 0; x < width; x++) {
+					int rgb = row[x];
+					if ((rgb >>> 24) != 0 && (rgb | 0xFF000000) != white) {
+						masks[maskOffset + y * charWidth + x] = 1;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the atlas for a code page image, reading and rasterizing it only
+	 * if the same image has not already been loaded with the same grid.
+	 *
+	 * @param imageStream
+	 *            A stream connected to the code page image
+	 * @param charWidth
+	 *            The width of one character in pixels on the grid
+	 * @param charHeight
+	 *            The height of one character in pixels on the grid
+	 * @param pageWidthInChars
+	 *            The width of the grid in characters
+	 * @param pageHeightInChars
+	 *            The height of the grid in characters
+	 * @return
+	 * @throws IOException
+	 *             if the stream can't be read or isn't an image
+	 */
+	public static GlyphAtlas load(InputStream imageStream, int charWidth,
+			int charHeight, int pageWidthInChars, int pageHeightInChars)
+			throws IOException {
+		// Read the whole image so it can be identified by its content
+		ByteArrayOutputStream imageBytes = new ByteArrayOutputStream();
+		byte[] readBuffer = new byte[8192];
+		int bytesRead;
+		while ((bytesRead = imageStream.read(readBuffer)) >= 0) {
+			imageBytes.write(readBuffer, 0, bytesRead);
+		}
+		byte[] image = imageBytes.toByteArray();
+
+		String key = digest(image) + ":" + charWidth + "x" + charHeight + ":"
+				+ pageWidthInChars + "x" + pageHeightInChars;
+		synchronized (cache) {
+			GlyphAtlas atlas = cache.get(key);
+			if (atlas == null) {
+				BufferedImage codePageImage = ImageIO
+						.read(new ByteArrayInputStream(image));
+				if (codePageImage == null) {
+					throw new IOException("Code page is not a readable image");
+				}
+				atlas = new GlyphAtlas(codePageImage, charWidth, charHeight,
+						pageWidthInChars, pageHeightInChars);
+				cache.put(key, atlas);
+			}
+			return atlas;
+		}
+	}
+
+	private static String digest(byte[] data) {
+		MessageDigest sha1;
+		try {
+			sha1 = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform is required to provide SHA-1
+			throw new IllegalStateException(e);
+		}
+		StringBuilder hex = new StringBuilder();
+		for (byte b : sha1.digest(data)) {
+			hex.append(Integer.toHexString((b & 0xFF) | 0x100).substring(1));
+		}
+		return hex.toString();
+	}
+
+	public int getCharWidth() {
+		return charWidth;
+	}
+
+	public int getCharHeight() {
+		return charHeight;
+	}
+
+	public int getGlyphCount() {
+		return glyphCount;
+	}
+
+	/**
+	 * Draws a character into an ARGB pixel array. Characters not on the code
+	 * page are drawn as blank space.
+	 *
+	 * @param pixels
+	 *            The pixels to draw into
+	 * @param scanline
+	 *            The width of a row of pixels in the array
+	 * @param px
+	 *            The x position of the character's top left pixel
+	 * @param py
+	 *            The y position of the character's top left pixel
+	 * @param glyph
+	 *            The character to draw
+	 * @param fgARGB
+	 *            The color the character is drawn in
+	 * @param bgARGB
+	 *            The color behind the character
+	 */
+	public void draw(int[] pixels, int scanline, int px, int py, int glyph,
+			int fgARGB, int bgARGB) {
+		if (glyph < 0 || glyph >= glyphCount) {
+			fill(pixels, scanline, px, py, bgARGB);
+			return;
+		}
+
+		int maskIndex = glyph * charWidth * charHeight;
+		int rowStart = py * scanline + px;
+		for (int y = 0; y < charHeight; y++) {
+			for (int x = 0; x < charWidth; x++) {
+				pixels[rowStart + x] = masks[maskIndex++] != 0 ? fgARGB
+						: bgARGB;
+			}
+			rowStart += scanline;
+		}
+	}
+
+	/**
+	 * Fills the area of one character in an ARGB pixel array with a color.
+	 *
+	 * @param pixels
+	 *            The pixels to draw into
+	 * @param scanline
+	 *            The width of a row of pixels in the array
+	 * @param px
+	 *            The x position of the character's top left pixel
+	 * @param py
+	 *            The y position of the character's top left pixel
+	 * @param argb
+	 *            The color to fill with
+	 */
+	public void fill(int[] pixels, int scanline, int px, int py, int argb) {
+		int rowStart = py * scanline + px;
+		for (int y = 0; y < charHeight; y++) {
+			Arrays.fill(pixels, rowStart, rowStart + charWidth, argb);
+			rowStart += scanline;
+		}
+	}
+}
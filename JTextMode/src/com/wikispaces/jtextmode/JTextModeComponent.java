@@ -6,39 +6,34 @@ package com.wikispaces.jtextmode;
 import java.awt.Color;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
-import java.awt.Image;
 import java.awt.Point;
 import java.awt.Rectangle;
 import java.awt.RenderingHints;
-import java.awt.Toolkit;
 import java.awt.image.BufferedImage;
-import java.awt.image.ColorModel;
-import java.awt.image.FilteredImageSource;
-import java.awt.image.ImageFilter;
-import java.awt.image.ImageProducer;
-import java.awt.image.RGBImageFilter;
-import java.awt.image.WritableRaster;
+import java.awt.image.DataBufferInt;
+import java.awt.image.VolatileImage;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
 import java.util.Random;
 
-import javax.imageio.ImageIO;
 import javax.swing.JComponent;
 import javax.swing.JFrame;
-
-import org.imgscalr.Scalr;
+import javax.swing.SwingUtilities;
 
 /**
  * 
  *
  */
 @SuppressWarnings("serial")
-public class JTextModeComponent extends JComponent implements Terminal {
+public class JTextModeComponent extends JComponent implements
+		ExtendedTerminal {
 	/**
-	 * The size of the text screen in characters.
+	 * The text screen shown and its render.
 	 */
-	private int rows;
-	private int columns;
+	private final TextScreen screen;
 
 	/**
 	 * Whether to ensure that the characters of this display are never
@@ -46,105 +41,68 @@ public class JTextModeComponent extends JComponent implements Terminal {
 	 */
 	private boolean lockAspect = false;
 
-	/**
-	 * The position of the cursor on the text screen.
-	 */
-	private int cursorX;
-	private int cursorY;
-
 	// Position of the mouse cursor on the text screen
 	private int mouseCursorX = 0;
 	private int mouseCursorY = 0;
 
-	/**
-	 * The character used to draw the cursor
-	 * 
-	 * Default is 95: ASCII underscore
-	 */
-	private int cursorChar = 95;
-
-	/**
-	 * The character used to draw blank space
-	 * 
-	 * Default is 32: ASCII space
-	 */
-	private int blankChar = 32;
-
-	/**
-	 * Whether the cursor is rendered
-	 */
-	private boolean cursorVisible;
-
 	/**
 	 * Whether the mouse cursor is rendered
 	 */
 	private boolean mouseCursorVisible;
 
 	/**
-	 * The characters rendered on the screen. Preferably alter this with
-	 * JTextModeComponent's API.
+	 * Listens to the shared blink clock while this component is displayed and
+	 * blinking is enabled.
 	 */
-	public int[][] charsDisplayed;
+	private final BlinkClock.Listener blinkListener = new BlinkClock.Listener() {
+		@Override
+		public void blinkPhaseChanged() {
+			renderStatistics.blinkTicked();
+			SwingUtilities.invokeLater(repaintBlinkingCells);
+		}
+	};
 
-	/**
-	 * The colors that the characters are rendered in. Preferably alter this
-	 * with JTextModeComponent's API.
-	 */
-	public byte[][] screenForegroundColor;
+	private final Runnable repaintBlinkingCells = new Runnable() {
+		@Override
+		public void run() {
+			screen.damageBlinkingCells();
+		}
+	};
 
 	/**
-	 * Note that on a real DOS display, EITHER 8-15 would be valid background
-	 * colors OR blinking could be enabled. Preferably alter this with
-	 * JTextModeComponent's API.
+	 * Paints the damage reported by the screen, at most once a frame.
 	 */
-	public byte[][] screenBackgroundColor;
+	private final RenderScheduler renderScheduler = new RenderScheduler(
+			new RenderScheduler.Painter() {
+				@Override
+				public void paintCells(int x, int y, int width, int height) {
+					paintImmediately(getComponentRectForCells(x, y, width,
+							height));
+				}
+
+				@Override
+				public void paintScreen() {
+					paintImmediately(0, 0, getWidth(), getHeight());
+				}
+			});
 
 	/**
-	 * The blinking bit for each character on the display. Preferably alter this
-	 * with JTextModeComponent's API.
+	 * Counts the frames painted, and what went into painting them.
 	 */
-	public boolean[][] screenBlinking;
+	private final RenderStatistics renderStatistics = new RenderStatistics();
 
 	/**
-	 * If true, the cursor and blinking characters will be rendered on or
-	 * invisible as the timer has it. Otherwise, such as when you only want to
-	 * redraw the screen occasionally, turn this off to have blinking characters
-	 * always visible.
-	 * */
-	private boolean allBlinkingEnabled;
-
-	// The metadata for characters drawn by the cursor
-	private byte currDrawColor = 15;
-	private byte currDrawBGColor = 0;
-	private boolean currDrawBlinking = false;
-
-	// Info about the code page image being used
-	private int charWidth;
-	private int charHeight;
-	private int pageWidthInChars;
-	private int pageHeightInChars;
+	 * The frameBuffer scaled to the size it is drawn at in the component,
+	 * updated only where the frameBuffer has changed.
+	 */
+	private final FrameScaler frameScaler = new FrameScaler();
 
 	/**
-	 * These are images of the characters to be drawn on the screen. Their
-	 * required dimensions: CHARACTER: 9 px wide, 16 px high. IMAGE: 256
-	 * characters arranged to be 32 wide by 8 high. More than 256 characters to
-	 * still be arranged in 32 wide rows.<br>
-	 * <br>
-	 * One image is required in this array for each color text will be drawn in.
+	 * Whether to scale the frameBuffer with the graphics hardware, into
+	 * scaledVolatileImage, when it is available.
 	 */
-	private Image codePage[];
-
-	private static final Color[] colors = { new Color(0, 0, 0),
-			new Color(0, 0, 127), new Color(0, 127, 0), new Color(0, 127, 127),
-			new Color(127, 0, 0),
-			new Color(127, 0, 127),
-			new Color(127, 127, 0),
-			new Color(127, 127, 127),
-			// High intensity
-			new Color(99, 99, 99), new Color(0, 0, 255), new Color(0, 255, 0),
-			new Color(0, 255, 255), new Color(255, 0, 0),
-			new Color(255, 0, 255), new Color(255, 255, 0),
-			new Color(255, 255, 255) };
+	private boolean hardwareScaling = false;
+	private VolatileImage scaledVolatileImage;
 
 	private static final Color[] invertedColors = { new Color(127, 127, 127),
 			new Color(127, 127, 0), new Color(127, 0, 127),
@@ -173,9 +131,7 @@ public class JTextModeComponent extends JComponent implements Terminal {
 			term.setCharAt(rand.nextInt(term.getColumns()),
 					rand.nextInt(term.getRows()), rand.nextInt(256), 15, 0,
 					false);
-			
-			term.repaint();
-			
+
 			try {
 				Thread.sleep(1000/30);
 			} catch (InterruptedException e) {
@@ -194,242 +150,183 @@ public class JTextModeComponent extends JComponent implements Terminal {
 	 * @param columns
 	 *            The height of the screen simulated. Larger = slightly slower.
 	 * @param blinkingEnabled
-	 *            Whether the screen is re-rendered every 500ms to make cursors
-	 *            and blinking characters blink. Consumes resources if true.
+	 *            Whether the cursor and blinking characters are re-rendered
+	 *            every 500ms to make them blink.
 	 * @param showCursor
 	 *            Whether the cursor is shown.
 	 */
 	public JTextModeComponent(int rows, int columns, boolean blinkingEnabled,
 			boolean showCursor, boolean lockAspectRatio) {
-		if (rows <= 0 || columns <= 0) {
-			rows = 1;
-			columns = 1;
-		}
-
-		// Load default code page
-		try {
-			setCodePage(null, 9, 16, 32, 8);
-		} catch (IOException e1) {
-			e1.printStackTrace();
-		}
+		screen = new TextScreen(rows, columns, blinkingEnabled, showCursor);
+		screen.setDamageListener(new TextScreen.DamageListener() {
+			@Override
+			public void cellsDamaged(int x, int y, int width, int height) {
+				renderStatistics.repaintRequested();
+				renderScheduler.cellsDamaged(x, y, width, height);
+			}
 
-		// Set up the "screen"
-		this.rows = rows;
-		this.columns = columns;
+			@Override
+			public void screenDamaged() {
+				renderStatistics.repaintRequested();
+				renderScheduler.screenDamaged();
+			}
+		});
 
 		setLockAspect(lockAspectRatio);
+	}
 
-		cursorX = 0;
-		cursorY = 0;
-		cursorVisible = showCursor;
-
-		charsDisplayed = new int[columns][rows];
-		screenForegroundColor = new byte[columns][rows];
-		screenBackgroundColor = new byte[columns][rows];
-		screenBlinking = new boolean[columns][rows];
-
-		for (int x = 0; x < columns; x++) {
-			for (int y = 0; y < rows; y++) {
-				charsDisplayed[x][y] = 32;
-				screenForegroundColor[x][y] = 15;
-				screenBackgroundColor[x][y] = 0;
-				screenBlinking[x][y] = false;
-			}
-		}
-
-		if (blinkingEnabled) {
-			allBlinkingEnabled = true;
-			Thread blinkThread = new Thread(new Runnable() {
+	@Override
+	protected void paintComponent(Graphics g) {
+		super.paintComponent(g);
+		long paintStart = System.nanoTime();
+		long allocatedBefore = RenderStatistics.getThreadAllocatedBytes();
 
-				@Override
-				public void run() {
-					boolean lastRunState = false;
-					while (true) {
-						boolean currentState = false;
-						if (System.currentTimeMillis() % 1000 < 500) {
-							currentState = true;
-						}
-						if (currentState != lastRunState) {
-							repaint();
-							lastRunState = currentState;
-						}
-						try {
-							Thread.sleep(100);
-						} catch (InterruptedException e) {
-							break;
-						}
-					}
-				}
+		// Draw every changed character into the framebuffer
+		Rectangle damage = new Rectangle();
+		int scrolledPixelRows = screen.render(screen.isBlinkingEnabled()
+				&& BlinkClock.isBlinkOn(), damage);
+		BufferedImage frameBuffer = screen.getFrameBuffer();
+		long scaleStart = System.nanoTime();
 
-			});
-			blinkThread.setName("JTextMode Blink Thread");
-			blinkThread.start();
+		// Draw and scale the framebuffer into the component
+		Rectangle scaledBufferRect;
+		if (lockAspect) {
+			scaledBufferRect = getAspectLockedScaledBufferSize();
 		} else {
-			allBlinkingEnabled = false;
+			scaledBufferRect = new Rectangle(0, 0, getWidth(), getHeight());
+		}
+		if (scaledBufferRect.width > 0 && scaledBufferRect.height > 0) {
+			boolean damaged = !damage.isEmpty() || scrolledPixelRows > 0;
+			if (scaledBufferRect.width == frameBuffer.getWidth()
+					&& scaledBufferRect.height == frameBuffer.getHeight()) {
+				// No scaling needed
+				g.drawImage(frameBuffer, scaledBufferRect.x,
+						scaledBufferRect.y, null);
+				frameScaler.invalidate();
+				scaledVolatileImage = null;
+			} else if (hardwareScaling
+					&& drawHardwareScaled(g, scaledBufferRect, damaged)) {
+				frameScaler.invalidate();
+			} else {
+				scaledVolatileImage = null;
+				frameScaler.setSize(frameBuffer.getWidth(),
+						frameBuffer.getHeight(), scaledBufferRect.width,
+						scaledBufferRect.height);
+				frameScaler.scrollUp(scrolledPixelRows);
+				frameScaler.update(((DataBufferInt) frameBuffer.getRaster()
+						.getDataBuffer()).getData(), damage.x, damage.y,
+						damage.width, damage.height);
+				g.drawImage(frameScaler.getImage(), scaledBufferRect.x,
+						scaledBufferRect.y, null);
+			}
 		}
+		g.dispose();
+
+		long paintEnd = System.nanoTime();
+		long allocated = -1;
+		if (allocatedBefore >= 0) {
+			allocated = RenderStatistics.getThreadAllocatedBytes()
+					- allocatedBefore;
+		}
+		renderStatistics.framePainted(paintEnd - paintStart, paintEnd
+				- scaleStart, screen.getCellsDrawn(), screen.getRows()
+				* screen.getColumns(), allocated);
 	}
 
 	/**
-	 * Loads a "code page" for this text screen: an image with 256 character
-	 * images laid out in a grid used to draw the text on the screen. The
-	 * characters should be black on an opaque white background with no
-	 * anti-aliasing or shades of gray. Redraws the screen when done.
-	 * 
-	 * If imageStream is null, the default code page is loaded.
+	 * Draws the frameBuffer into the component scaled by the graphics
+	 * hardware, keeping the scaled image in video memory between frames.
 	 * 
-	 * @param imageStream
-	 *            A stream connected to the code page image or null.
-	 * @param charWidth
-	 *            The width of one character in pixels on the grid
-	 * @param charHeight
-	 *            The height of one character in pixels on the grid
-	 * @param pageWidthInChars
-	 *            The width of the grid in characters
-	 * @param pageHeightInChars
-	 *            The height of the grid in characters
-	 * @throws IOException
+	 * @param g
+	 * @param scaledBufferRect
+	 *            Where in the component to draw the frameBuffer
+	 * @param damaged
+	 *            Whether the frameBuffer has changed since the last frame
+	 * @return false if accelerated images aren't available here
 	 */
-	public void setCodePage(InputStream imageStream, int charWidth,
-			int charHeight, int pageWidthInChars, int pageHeightInChars)
-			throws IOException {
-		// If no image stream is given, load default code page
-		if (imageStream == null) {
-			imageStream = JTextModeComponent.class
-					.getResourceAsStream("CodePage437-9x16.png");
-		}
-
-		// Load code page image
-		BufferedImage masterCopy = ImageIO.read(imageStream);
-
-		// Load first code page, or font image in color 0
-		codePage = new Image[16];
-		codePage[0] = makeColorTransparent(deepCopyImage(masterCopy),
-				Color.white);
-
-		// Tint it each of the 15 other foreground colors
-		for (int i = 1; i < 16; i++) {
-			BufferedImage rawCodePage;
-			rawCodePage = deepCopyImage(masterCopy);
-
-			BufferedImage coloredCodePage = new BufferedImage(
-					rawCodePage.getWidth(), rawCodePage.getHeight(),
-					rawCodePage.getType());
-			Graphics2D g2 = (Graphics2D) coloredCodePage.getGraphics();
-			Color xorColor = colors[i];
-			g2.setXORMode(new Color(xorColor.getRed(), xorColor.getGreen(),
-					xorColor.getBlue(), 0));
-			g2.drawImage(makeColorTransparent(rawCodePage, Color.white), 0, 0,
-					null);
-			g2.dispose();
-
-			codePage[i] = makeColorTransparent(coloredCodePage, Color.black);
-		}
+	private boolean drawHardwareScaled(Graphics g, Rectangle scaledBufferRect,
+			boolean damaged) {
+		do {
+			boolean redraw = damaged;
+			int validation = VolatileImage.IMAGE_INCOMPATIBLE;
+			if (scaledVolatileImage != null
+					&& scaledVolatileImage.getWidth() == scaledBufferRect.width
+					&& scaledVolatileImage.getHeight() == scaledBufferRect.height) {
+				validation = scaledVolatileImage
+						.validate(getGraphicsConfiguration());
+			}
+			if (validation == VolatileImage.IMAGE_INCOMPATIBLE) {
+				scaledVolatileImage = createVolatileImage(
+						scaledBufferRect.width, scaledBufferRect.height);
+				if (scaledVolatileImage == null) {
+					return false;
+				}
+				redraw = true;
+			} else if (validation == VolatileImage.IMAGE_RESTORED) {
+				redraw = true;
+			}
 
-		this.charWidth = charWidth;
-		this.charHeight = charHeight;
-		this.pageWidthInChars = pageWidthInChars;
-		this.pageHeightInChars = pageHeightInChars;
+			if (redraw) {
+				Graphics2D scaledGraphics = scaledVolatileImage.createGraphics();
+				scaledGraphics.setRenderingHint(
+						RenderingHints.KEY_INTERPOLATION,
+						RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
+				scaledGraphics.drawImage(screen.getFrameBuffer(), 0, 0,
+						scaledBufferRect.width, scaledBufferRect.height, null);
+				scaledGraphics.dispose();
+			}
 
-		// Repaint everything, disposing of anything drawn with the last code
-		// page
-		repaint();
+			g.drawImage(scaledVolatileImage, scaledBufferRect.x,
+					scaledBufferRect.y, null);
+		} while (scaledVolatileImage.contentsLost());
+		return true;
 	}
 
-	public void resetCodePage() throws MissingCodePageException {
-		// Load default code page
-		try {
-			setCodePage(null, 9, 16, 32, 8);
-		} catch (IOException e1) {
-			e1.printStackTrace();
-			throw new MissingCodePageException();
+	@Override
+	public void addNotify() {
+		super.addNotify();
+		if (screen.isBlinkingEnabled()) {
+			BlinkClock.addListener(blinkListener);
 		}
 	}
 
 	@Override
-	protected void paintComponent(Graphics g) {
-		super.paintComponent(g);
-
-		// Create buffered image: a render of the text screen
-		BufferedImage frameBuffer = new BufferedImage(columns * charWidth, rows
-				* charHeight, BufferedImage.TYPE_INT_ARGB);
-		Graphics2D frameGraphics = frameBuffer.createGraphics();
-		RenderingHints renderingHints = new RenderingHints(
-				RenderingHints.KEY_INTERPOLATION,
-				RenderingHints.VALUE_INTERPOLATION_BICUBIC);
-		frameGraphics.setRenderingHints(renderingHints);
-
-		boolean blinkOnThisFrame = false;
-		// Decide, if blinking, whether to draw or blank blinking characters
-		if (allBlinkingEnabled && (System.currentTimeMillis() % 1000 < 500)) {
-			blinkOnThisFrame = true;
-		}
-
-		// Place each individual character images into the frame
-		for (int x = 0; x < columns; x++) {
-			for (int y = 0; y < rows; y++) {
-				if (allBlinkingEnabled && screenBlinking[x][y]
-						&& blinkOnThisFrame) {
-					// Draw background color only
-					frameGraphics.setColor(colors[screenBackgroundColor[x][y]]);
-					frameGraphics.fillRect(x * charWidth, y * charHeight,
-							charWidth, charHeight);
-				} else {
-					int charToDraw = charsDisplayed[x][y];
-
-					// Handle the cursor
-					if (cursorVisible && x == cursorX && y == cursorY) {
-						if (blinkOnThisFrame) {
-							// Cursor is a space
-							charToDraw = blankChar;
-						} else {
-							// Cursor is an underscore
-							charToDraw = cursorChar;
-						}
-					}
-
-					// Draw character
-					int pageSheetColumn = charToDraw % pageWidthInChars;
-					int pageSheetRow = charToDraw / pageWidthInChars;
-					frameGraphics.drawImage(
-							codePage[screenForegroundColor[x][y]], x
-									* charWidth, y * charHeight, (x + 1)
-									* charWidth, (y + 1) * charHeight,
-							pageSheetColumn * charWidth, pageSheetRow
-									* charHeight, (pageSheetColumn + 1)
-									* charWidth, (pageSheetRow + 1)
-									* charHeight,
-							colors[screenBackgroundColor[x][y]], null);
-
-				}
-			}
-		}
-
-		// When finished with buffer, dispose of the Graphics used to edit it
-		frameGraphics.dispose();
+	public void removeNotify() {
+		BlinkClock.removeListener(blinkListener);
+		super.removeNotify();
+	}
 
-		// Draw and scale the framebuffer into the component
+	/**
+	 * Returns the area of this component that a rectangle of cells on the
+	 * text screen is drawn into, rounded outwards to whole pixels.
+	 */
+	private Rectangle getComponentRectForCells(int x, int y, int width,
+			int height) {
+		Rectangle screenRect;
 		if (lockAspect) {
-			Rectangle scaledBufferRect = getAspectLockedScaledBufferSize();
-			BufferedImage scaledImage = Scalr.resize(frameBuffer,
-					Scalr.Method.SPEED, scaledBufferRect.width,
-					scaledBufferRect.height);
-			g.drawImage(scaledImage, scaledBufferRect.x, scaledBufferRect.y,
-					null);
+			screenRect = getAspectLockedScaledBufferSize();
 		} else {
-			BufferedImage scaledImage = Scalr.resize(frameBuffer,
-					Scalr.Method.SPEED, Scalr.Mode.FIT_EXACT, getWidth(),
-					getHeight());
-			// g.drawImage(frameBuffer, 0, 0, getWidth(), getHeight(), null);
-			g.drawImage(scaledImage, 0, 0, null);
+			screenRect = new Rectangle(0, 0, getWidth(), getHeight());
 		}
-		g.dispose();
+
+		double cellWidth = (double) screenRect.width / (double) screen.getColumns();
+		double cellHeight = (double) screenRect.height / (double) screen.getRows();
+		int left = screenRect.x + (int) Math.floor(x * cellWidth);
+		int top = screenRect.y + (int) Math.floor(y * cellHeight);
+		int right = screenRect.x + (int) Math.ceil((x + width) * cellWidth);
+		int bottom = screenRect.y
+				+ (int) Math.ceil((y + height) * cellHeight);
+
+		// Pad by a pixel to cover any rounding in the scaler
+		return new Rectangle(left - 1, top - 1, right - left + 2, bottom - top
+				+ 2);
 	}
 
 	private Rectangle getAspectLockedScaledBufferSize() {
 		Rectangle scaledBufferRect = new Rectangle();
 
-		int frameBufferHeight = rows * charHeight;
-		int frameBufferWidth = columns * charWidth;
+		int frameBufferHeight = screen.getRows() * screen.getCharHeight();
+		int frameBufferWidth = screen.getColumns() * screen.getCharWidth();
 		double bufferRatio = (double) frameBufferHeight
 				/ (double) frameBufferWidth;
 		double componentRatio = (double) getHeight() / (double) getWidth();
@@ -465,68 +362,81 @@ public class JTextModeComponent extends JComponent implements Terminal {
 	}
 
 	/**
-	 * Takes an image and replaces the given color with the color
-	 * "completely transparent."
+	 * Loads a "code page" for this text screen: an image with 256 character
+	 * images laid out in a grid used to draw the text on the screen. The
+	 * characters should be black on an opaque white background with no
+	 * anti-aliasing or shades of gray. Redraws the screen when done.
 	 * 
-	 * Source: http://stackoverflow.com/questions/665406/how-to-make-a-color-
-	 * transparent-in-a-bufferedimage-and-save-as-png
+	 * If imageStream is null, the default code page is loaded.
 	 * 
-	 * @param im
-	 * @param color
-	 * @return
+	 * @param imageStream
+	 *            A stream connected to the code page image or null.
+	 * @param charWidth
+	 *            The width of one character in pixels on the grid
+	 * @param charHeight
+	 *            The height of one character in pixels on the grid
+	 * @param pageWidthInChars
+	 *            The width of the grid in characters
+	 * @param pageHeightInChars
+	 *            The height of the grid in characters
+	 * @throws IOException
 	 */
-	private static Image makeColorTransparent(BufferedImage im,
-			final Color color) {
-		ImageFilter filter = new RGBImageFilter() {
-
-			// the color we are looking for... Alpha bits are set to opaque
-			public int markerRGB = color.getRGB() | 0xFF000000;
-
-			public final int filterRGB(int x, int y, int rgb) {
-				if ((rgb | 0xFF000000) == markerRGB) {
-					// Mark the alpha bits as zero - transparent
-					return 0x00FFFFFF & rgb;
-				} else {
-					// nothing to do
-					return rgb;
-				}
-			}
-		};
+	public void setCodePage(InputStream imageStream, int charWidth,
+			int charHeight, int pageWidthInChars, int pageHeightInChars)
+			throws IOException {
+		screen.setCodePage(imageStream, charWidth, charHeight, pageWidthInChars, pageHeightInChars);
+	}
 
-		ImageProducer ip = new FilteredImageSource(im.getSource(), filter);
-		return Toolkit.getDefaultToolkit().createImage(ip);
+	public void resetCodePage() throws MissingCodePageException {
+		screen.resetCodePage();
 	}
 
 	/**
-	 * Makes a copy of a BufferedImage and its contents.
+	 * Starts a batch of changes to the screen. Until the matching endUpdate,
+	 * nothing this thread changes is drawn, and other threads wait to change
+	 * the screen; the whole batch is then drawn as one frame with one repaint.
+	 * Batches may be nested, and only the outermost endUpdate draws them.<br>
+	 * <br>
+	 * Always call endUpdate in a finally block:
 	 * 
-	 * Source: http://stackoverflow.com/questions/3514158/how-do-you-clone-a-
-	 * bufferedimage
+	 * <pre>
+	 * terminal.beginUpdate();
+	 * try {
+	 * 	// Draw the whole table
+	 * } finally {
+	 * 	terminal.endUpdate();
+	 * }
+	 * </pre>
+	 */
+	public void beginUpdate() {
+		screen.beginUpdate();
+	}
+
+	/**
+	 * Ends a batch of changes started with beginUpdate.
 	 * 
-	 * @return
+	 * @throws IllegalStateException
+	 *             if this thread has not begun a batch
 	 */
-	private static BufferedImage deepCopyImage(BufferedImage image) {
-		ColorModel colorModel = image.getColorModel();
-		boolean isAlphaPremultiplied = colorModel.isAlphaPremultiplied();
-		WritableRaster raster = image.copyData(null);
-		return new BufferedImage(colorModel, raster, isAlphaPremultiplied, null);
+	public void endUpdate() {
+		screen.endUpdate();
 	}
 
 	/**
 	 * @param text
 	 */
 	public void writeLn(String... text) {
-		for (String currString : text) {
-			char[] textChars = currString.toCharArray();
-			for (int i = 0; i < textChars.length; i++) {
-				putAtCursor(textChars[i]);
-			}
-			cursorMoveNewline();
-		}
+		screen.writeLn(text);
+	}
 
-		if (text.length <= 0) {
-			cursorMoveNewline();
-		}
+	/**
+	 * Writes text at the cursor, then moves the cursor to the start of the
+	 * next line.
+	 * 
+	 * @param text
+	 */
+	public void writeLn(CharSequence text) {
+		screen.writeLn(text);
 	}
 
 	/**
@@ -534,33 +444,59 @@ public class JTextModeComponent extends JComponent implements Terminal {
 	 * @param chars
 	 */
 	public void writeLn(char... chars) {
-		for (char currChar : chars) {
-			putAtCursor(currChar);
-			cursorMoveNewline();
-		}
-
-		if (chars.length <= 0) {
-			cursorMoveNewline();
-		}
+		screen.writeLn(chars);
 	}
 
 	public void writeLn() {
-		cursorMoveNewline();
+		screen.writeLn();
 	}
 
 	public void write(String... text) {
-		for (String currString : text) {
-			char[] textChars = currString.toCharArray();
-			for (int i = 0; i < textChars.length; i++) {
-				putAtCursor(textChars[i]);
-			}
-		}
+		screen.write(text);
 	}
 
 	public void write(char... chars) {
-		for (char currChar : chars) {
-			putAtCursor(currChar);
-		}
+		screen.write(chars);
+	}
+
+	/**
+	 * Writes text at the cursor.
+	 * 
+	 * @param text
+	 */
+	public void write(CharSequence text) {
+		screen.write(text);
+	}
+
+	/**
+	 * Writes part of some text at the cursor, without copying it.
+	 * 
+	 * @param text
+	 * @param start
+	 *            The index of the first character to write
+	 * @param end
+	 *            The index after the last character to write
+	 * @throws IndexOutOfBoundsException
+	 *             if start and end are not a range within text
+	 */
+	public void write(CharSequence text, int start, int end) {
+		screen.write(text, start, end);
+	}
+
+	/**
+	 * Writes part of an array of characters at the cursor, without copying
+	 * it.
+	 * 
+	 * @param chars
+	 * @param offset
+	 *            The index of the first character to write
+	 * @param length
+	 *            The number of characters to write
+	 * @throws IndexOutOfBoundsException
+	 *             if offset and length are not a range within chars
+	 */
+	public void write(char[] chars, int offset, int length) {
+		screen.write(chars, offset, length);
 	}
 
 	/**
@@ -572,16 +508,7 @@ public class JTextModeComponent extends JComponent implements Terminal {
 	 *            return false if the x and y are out of bounds
 	 */
 	public boolean setCharAt(int x, int y, int character) {
-		if (x < 0 || x >= columns) {
-			return false;
-		}
-		if (y < 0 || y >= rows) {
-			return false;
-		}
-
-		charsDisplayed[x][y] = character;
-
-		return true;
+		return screen.setCharAt(x, y, character);
 	}
 
 	/**
@@ -598,216 +525,535 @@ public class JTextModeComponent extends JComponent implements Terminal {
 	 */
 	public boolean setCharAt(int x, int y, int character, int color,
 			int bgColor, boolean blink) {
-		if (x < 0 || x >= columns) {
-			return false;
-		}
-		if (y < 0 || y >= rows) {
-			return false;
-		}
-
-		charsDisplayed[x][y] = character;
-		screenForegroundColor[x][y] = (byte) color;
-		screenBackgroundColor[x][y] = (byte) bgColor;
-		screenBlinking[x][y] = blink;
-
-		return true;
+		return screen.setCharAt(x, y, character, color, bgColor, blink);
 	}
 
 	public boolean setBlinkingAt(int x, int y, boolean blink) {
-		if (x < 0 || x >= columns) {
-			return false;
-		}
-		if (y < 0 || y >= rows) {
-			return false;
-		}
-
-		screenBlinking[x][y] = blink;
-
-		return true;
+		return screen.setBlinkingAt(x, y, blink);
 	}
 
 	public boolean setBGColorAt(int x, int y, int bgColor) {
-		if (x < 0 || x >= columns) {
-			return false;
-		}
-		if (y < 0 || y >= rows) {
-			return false;
-		}
-
-		screenBackgroundColor[x][y] = (byte) bgColor;
-
-		return true;
+		return screen.setBGColorAt(x, y, bgColor);
 	}
 
 	public boolean setColorAt(int x, int y, int color) {
-		if (x < 0 || x >= columns) {
-			return false;
-		}
-		if (y < 0 || y >= rows) {
-			return false;
-		}
-
-		screenForegroundColor[x][y] = (byte) color;
-
-		return true;
+		return screen.setColorAt(x, y, color);
 	}
 
 	public boolean setColorsAt(int x, int y, int color, int bgColor,
 			boolean blink) {
-		if (x < 0 || x >= columns) {
-			return false;
-		}
-		if (y < 0 || y >= rows) {
-			return false;
-		}
-
-		screenForegroundColor[x][y] = (byte) color;
-		screenBackgroundColor[x][y] = (byte) bgColor;
-		screenBlinking[x][y] = blink;
-
-		return true;
+		return screen.setColorsAt(x, y, color, bgColor, blink);
 	}
 
 	/**
+	 * Sets the color of a character as RGB instead of a color index.
 	 * 
 	 * @param x
 	 * @param y
-	 * @return the character at x, y, or -1 if coords our out of bounds
+	 * @param rgb
+	 *            The color as 0xRRGGBB
+	 * @return false if the x and y are out of bounds
 	 */
-	public int getCharAt(int x, int y) {
-		if (x < 0 || x >= columns) {
-			return -1;
-		}
-		if (y < 0 || y >= rows) {
-			return -1;
-		}
-
-		return charsDisplayed[x][y];
+	public boolean setColorRGBAt(int x, int y, int rgb) {
+		return screen.setColorRGBAt(x, y, rgb);
 	}
 
 	/**
+	 * Sets the background color of a character as RGB instead of a color
+	 * index.
 	 * 
 	 * @param x
 	 * @param y
-	 * @return the color at x, y, or -1 if coords our out of bounds
+	 * @param rgb
+	 *            The color as 0xRRGGBB
+	 * @return false if the x and y are out of bounds
 	 */
-	public int getColorAt(int x, int y) {
-		if (x < 0 || x >= columns) {
-			return -1;
-		}
-		if (y < 0 || y >= rows) {
-			return -1;
-		}
-
-		return screenForegroundColor[x][y];
+	public boolean setBGColorRGBAt(int x, int y, int rgb) {
+		return screen.setBGColorRGBAt(x, y, rgb);
 	}
 
 	/**
+	 * Fills a rectangle of the text screen with one character, all in the
+	 * same colors. Any part of the rectangle off the screen is left out.
 	 * 
 	 * @param x
 	 * @param y
-	 * @return the background color at x, y, or -1 if coords our out of bounds
+	 * @param width
+	 * @param height
+	 * @param character
+	 * @param color
+	 * @param bgColor
+	 * @param blink
+	 * @return false if any of the rectangle is out of bounds
 	 */
-	public int getBGColorAt(int x, int y) {
-		if (x < 0 || x >= columns) {
-			return -1;
-		}
-		if (y < 0 || y >= rows) {
-			return -1;
-		}
-
-		return screenBackgroundColor[x][y];
+	public boolean fillRect(int x, int y, int width, int height,
+			int character, int color, int bgColor, boolean blink) {
+		return screen.fillRect(x, y, width, height, character, color, bgColor,
+				blink);
 	}
 
 	/**
+	 * Fills a rectangle of the text screen with one character, all in the
+	 * same colors, either of which may be RGB. Any part of the rectangle off
+	 * the screen is left out.
 	 * 
 	 * @param x
 	 * @param y
-	 * @return 1 if the character is blinking at x, y<br>
-	 *         0 if not<br>
-	 *         -1 if coords are out of range
+	 * @param width
+	 * @param height
+	 * @param character
+	 * @param color
+	 *            Used if colorRGB is -1
+	 * @param bgColor
+	 *            Used if bgColorRGB is -1
+	 * @param colorRGB
+	 *            The color as 0xRRGGBB, or -1 to use color
+	 * @param bgColorRGB
+	 *            The background color as 0xRRGGBB, or -1 to use bgColor
+	 * @param blink
+	 * @return false if any of the rectangle is out of bounds
 	 */
-	public int getBlinkingAt(int x, int y) {
-		if (x < 0 || x >= columns) {
-			return -1;
-		}
-		if (y < 0 || y >= rows) {
-			return -1;
-		}
-
-		if (screenBlinking[x][y]) {
-			return 1;
-		} else {
-			return 0;
-		}
+	public boolean fillRect(int x, int y, int width, int height,
+			int character, int color, int bgColor, int colorRGB,
+			int bgColorRGB, boolean blink) {
+		return screen.fillRect(x, y, width, height, character, color, bgColor,
+				colorRGB, bgColorRGB, blink);
 	}
 
 	/**
-	 * Puts the cursor at the given character on the text screen.
+	 * Copies a rectangle of the text screen, colors and all, so that its top
+	 * left corner is at toX, toY. The rectangles may overlap. Any part of the
+	 * rectangle that would be copied from or to off the screen is left out.
 	 * 
 	 * @param x
 	 * @param y
-	 * @return false if the given cursor position is out of bounds; will set as
-	 *         close as possible to given position anyway
+	 * @param width
+	 * @param height
+	 * @param toX
+	 * @param toY
+	 * @return false if any of either rectangle is out of bounds
 	 */
-	public boolean setCursorPos(int x, int y) {
-		int finalX = x;
-		int finalY = y;
-		boolean goodSet = true;
-		if (x >= columns) {
-			goodSet = false;
-			finalX = columns - 1;
-		} else if (x < 0) {
-			goodSet = false;
-			finalX = 0;
-		}
-		if (y >= rows) {
-			goodSet = false;
-			finalY = rows - 1;
-		} else if (y < 0) {
-			goodSet = false;
-			finalY = 0;
-		}
-		cursorX = finalX;
-		cursorY = finalY;
-		return goodSet;
+	public boolean copyRect(int x, int y, int width, int height, int toX,
+			int toY) {
+		return screen.copyRect(x, y, width, height, toX, toY);
 	}
 
 	/**
-	 * Fills the screen with spaces written with the current draw colors and
-	 * blinking status.
+	 * Writes text on one row of the text screen starting at x, y, all in the
+	 * same colors, without moving the cursor. Text past the end of the row is
+	 * left out rather than wrapped.
+	 * 
+	 * @param x
+	 * @param y
+	 * @param text
+	 * @param color
+	 * @param bgColor
+	 * @param blink
+	 * @return false if any of the text is out of bounds
 	 */
-	public void clearScreen() {
-		scrollScreen(rows);
+	public boolean setStringAt(int x, int y, String text, int color,
+			int bgColor, boolean blink) {
+		return screen.setStringAt(x, y, text, color, bgColor, blink);
 	}
 
-	public void scrollScreen(int scrollRows) {
-		// Shift one row at a time
-		for (int i = 0; i < scrollRows; i++) {
-			// Shift every row on the screen up
-			for (int y = 1; y < rows; y++) {
-				for (int x = 0; x < columns; x++) {
-					charsDisplayed[x][y - 1] = charsDisplayed[x][y];
-					screenForegroundColor[x][y - 1] = screenForegroundColor[x][y];
-					screenBackgroundColor[x][y - 1] = screenBackgroundColor[x][y];
-					screenBlinking[x][y - 1] = screenBlinking[x][y];
-				}
-			}
+	/**
+	 * Copies a rectangle of cells packed as by CellBuffer.pack onto the text
+	 * screen. Any part of the rectangle off the screen is left out.
+	 * 
+	 * @param x
+	 * @param y
+	 * @param width
+	 * @param height
+	 * @param cells
+	 *            The packed cells, row by row
+	 * @param offset
+	 *            The index in cells of the rectangle's top left cell
+	 * @param scanline
+	 *            The distance in cells from one row of the rectangle to the
+	 *            next
+	 * @return false if any of the rectangle is out of bounds
+	 */
+	public boolean blit(int x, int y, int width, int height, int[] cells,
+			int offset, int scanline) {
+		return screen.blit(x, y, width, height, cells, offset, scanline);
+	}
 
-			// Clear bottom row
-			for (int x = 0; x < columns; x++) {
-				charsDisplayed[x][rows - 1] = blankChar;
-				screenForegroundColor[x][rows - 1] = currDrawColor;
-				screenBackgroundColor[x][rows - 1] = currDrawBGColor;
-				screenBlinking[x][rows - 1] = currDrawBlinking;
-			}
+	/**
+	 * 
+	 * @param x
+	 * @param y
+	 * @return the character at x, y, or -1 if coords our out of bounds
+	 */
+	public int getCharAt(int x, int y) {
+		return screen.getCharAt(x, y);
+	}
 
-			// Move cursor up
-			cursorY--;
-			if (cursorY < 0) {
-				cursorY = 0;
-			}
-		}
+	/**
+	 * 
+	 * @param x
+	 * @param y
+	 * @return the color at x, y, or -1 if coords our out of bounds
+	 */
+	public int getColorAt(int x, int y) {
+		return screen.getColorAt(x, y);
+	}
+
+	/**
+	 * 
+	 * @param x
+	 * @param y
+	 * @return the background color at x, y, or -1 if coords our out of bounds
+	 */
+	public int getBGColorAt(int x, int y) {
+		return screen.getBGColorAt(x, y);
+	}
+
+	/**
+	 * 
+	 * @param x
+	 * @param y
+	 * @return the color at x, y as 0xRRGGBB, whether set by index or in RGB,
+	 *         or -1 if coords are out of bounds
+	 */
+	public int getColorRGBAt(int x, int y) {
+		return screen.getColorRGBAt(x, y);
+	}
+
+	/**
+	 * 
+	 * @param x
+	 * @param y
+	 * @return the background color at x, y as 0xRRGGBB, whether set by index
+	 *         or in RGB, or -1 if coords are out of bounds
+	 */
+	public int getBGColorRGBAt(int x, int y) {
+		return screen.getBGColorRGBAt(x, y);
+	}
+
+	/**
+	 * 
+	 * @param x
+	 * @param y
+	 * @return 1 if the character is blinking at x, y<br>
+	 *         0 if not<br>
+	 *         -1 if coords are out of range
+	 */
+	public int getBlinkingAt(int x, int y) {
+		return screen.getBlinkingAt(x, y);
+	}
+
+	/**
+	 * Puts the cursor at the given character on the text screen.
+	 * 
+	 * @param x
+	 * @param y
+	 * @return false if the given cursor position is out of bounds; will set as
+	 *         close as possible to given position anyway
+	 */
+	public boolean setCursorPos(int x, int y) {
+		return screen.setCursorPos(x, y);
+	}
+
+	/**
+	 * @return the column the cursor is in
+	 */
+	public int getCursorX() {
+		return screen.getCursorX();
+	}
+
+	/**
+	 * @return the row the cursor is in
+	 */
+	public int getCursorY() {
+		return screen.getCursorY();
+	}
+
+	/**
+	 * Fills the screen with spaces written with the current draw colors and
+	 * blinking status.
+	 */
+	public void clearScreen() {
+		screen.clearScreen();
+	}
+
+	public void scrollScreen(int scrollRows) {
+		screen.scrollScreen(scrollRows);
+	}
+
+	/**
+	 * @return the most rows kept in the scrollback
+	 */
+	public int getScrollbackSize() {
+		return screen.getScrollbackSize();
+	}
+
+	/**
+	 * Sets how many of the rows scrolled off the top of the screen are kept,
+	 * to be shown by scrolling the viewport back. Any rows already kept are
+	 * forgotten, and the viewport returns to the screen.
+	 * 
+	 * @param rows
+	 *            The most rows to keep, or 0 to keep none. Default is 0.
+	 */
+	public void setScrollbackSize(int rows) {
+		screen.setScrollbackSize(rows);
+	}
+
+	/**
+	 * Sets how many of the rows scrolled off the top of the screen are kept,
+	 * to be shown by scrolling the viewport back. Any rows already kept are
+	 * forgotten, and the viewport returns to the screen.<br>
+	 * <br>
+	 * Rows are kept compressed: a row of plain text takes about a byte per
+	 * character up to the last one that isn't blank, and blank rows take a
+	 * few bytes, or none when repeated.
+	 * 
+	 * @param rows
+	 *            The most rows to keep, or 0 to keep none. Default is 0.
+	 * @param offHeap
+	 *            Whether to keep the rows in memory outside the Java heap
+	 */
+	public void setScrollbackSize(int rows, boolean offHeap) {
+		screen.setScrollbackSize(rows, offHeap);
+	}
+
+	/**
+	 * @return the number of rows kept in the scrollback
+	 */
+	public int getScrollbackRowCount() {
+		return screen.getScrollbackRowCount();
+	}
+
+	/**
+	 * @return how many rows of the scrollback are shown above the screen
+	 */
+	public int getViewportOffset() {
+		return screen.getViewportOffset();
+	}
+
+	/**
+	 * Scrolls the view back through the scrollback, showing the given number
+	 * of its newest rows above the screen and the screen that many rows
+	 * further down. While scrolled back, the same rows stay in view as more
+	 * rows scroll off the screen. Takes time in proportion to the rows shown,
+	 * however many are kept.
+	 * 
+	 * @param offset
+	 *            The number of rows to show above the screen, or 0 to show
+	 *            only the screen
+	 * @return false if offset is negative or more than the rows kept; will
+	 *         set as close as possible to it anyway
+	 */
+	public boolean setViewportOffset(int offset) {
+		return screen.setViewportOffset(offset);
+	}
+
+	/**
+	 * @return the line number of the top row of the screen; the rows of the
+	 *         scrollback are the lines before it
+	 */
+	public long getScreenLine() {
+		return screen.getScreenLine();
+	}
+
+	/**
+	 * Scrolls the viewport so that a line is shown: to the top of the view if
+	 * it is in the scrollback, or back to the screen if it is on the screen.
+	 * 
+	 * @param line
+	 * @return false if the line is no longer kept
+	 */
+	public boolean scrollToLine(long line) {
+		return screen.scrollToLine(line);
+	}
+
+	/**
+	 * Finds every place some text appears in the scrollback and on the
+	 * screen, from the oldest line to the bottom of the screen. Text is
+	 * matched within a line, not across the end of one line into the next,
+	 * and matches do not overlap.
+	 * 
+	 * @param text
+	 *            The characters to find, as characters on the code page
+	 * @param ignoreCase
+	 *            Whether to match the letters A-Z in either case
+	 * @return the matches, in order
+	 */
+	public List<TextMatch> findAll(CharSequence text, boolean ignoreCase) {
+		return screen.findAll(text, ignoreCase);
+	}
+
+	/**
+	 * Finds the next or previous place some text appears in the scrollback
+	 * and on the screen. Text is matched within a line, not across the end of
+	 * one line into the next.
+	 * 
+	 * @param text
+	 *            The characters to find, as characters on the code page
+	 * @param fromLine
+	 *            The line to start searching on. Lines no longer kept are
+	 *            skipped.
+	 * @param fromColumn
+	 *            Searching forwards, the first column a match may start in;
+	 *            backwards, the last
+	 * @param forwards
+	 *            Whether to search towards the bottom of the screen, or back
+	 *            towards the oldest line
+	 * @param ignoreCase
+	 *            Whether to match the letters A-Z in either case
+	 * @return the match, or null if the text was not found
+	 */
+	public TextMatch find(CharSequence text, long fromLine, int fromColumn,
+			boolean forwards, boolean ignoreCase) {
+		return screen.find(text, fromLine, fromColumn, forwards, ignoreCase);
+	}
+
+	/**
+	 * Shows text in reverse video wherever it is in the scrollback or on the
+	 * screen, such as the matches found by a search, until other text is
+	 * highlighted. A highlight stays on its line as the line scrolls.
+	 * 
+	 * @param matches
+	 *            The text to highlight, or null to highlight nothing
+	 */
+	public void setHighlights(List<TextMatch> matches) {
+		screen.setHighlights(matches);
+	}
+
+	/**
+	 * @return the bytes saveState writes
+	 */
+	public long getStateSize() {
+		return screen.getStateSize();
+	}
+
+	/**
+	 * Writes everything on the screen at the buffer's position, advancing it,
+	 * in a fixed binary layout restoreState reads back. The code page isn't
+	 * saved.
+	 * 
+	 * @param buffer
+	 *            Needs getStateSize() bytes left
+	 */
+	public void saveState(ByteBuffer buffer) {
+		screen.saveState(buffer);
+	}
+
+	/**
+	 * Replaces everything on the screen with what saveState wrote, at the
+	 * buffer's position, advancing it.
+	 * 
+	 * @throws IOException
+	 *             If the buffer doesn't hold a saved screen of this size; the
+	 *             screen is left unchanged
+	 */
+	public void restoreState(ByteBuffer buffer) throws IOException {
+		screen.restoreState(buffer);
+	}
+
+	/**
+	 * Saves the screen into a file at the channel's position, through a
+	 * MappedByteBuffer, and moves the position past it.
+	 * 
+	 * @param channel
+	 *            Must be open for reading and writing
+	 * @throws IOException
+	 */
+	public void saveState(FileChannel channel) throws IOException {
+		screen.saveState(channel);
+	}
+
+	/**
+	 * Restores the screen from a file saved by saveState, at the channel's
+	 * position, and moves the position past it.
+	 * 
+	 * @throws IOException
+	 *             If the file doesn't hold a saved screen of this size there;
+	 *             the screen is left unchanged
+	 */
+	public void restoreState(FileChannel channel) throws IOException {
+		screen.restoreState(channel);
+	}
+
+	public void setDrawColor(int i) {
+		screen.setDrawColor(i);
+	}
+
+	public void setDrawBGColor(int bgColor) {
+		screen.setDrawBGColor(bgColor);
+	}
+
+	/**
+	 * Draws characters written at the cursor in an RGB color until
+	 * setDrawColor is called. See Palette.xterm256ToRGB for 256 color indexes.
+	 * 
+	 * @param rgb
+	 *            The color as 0xRRGGBB
+	 */
+	public void setDrawColorRGB(int rgb) {
+		screen.setDrawColorRGB(rgb);
+	}
+
+	/**
+	 * Draws characters written at the cursor on an RGB background color until
+	 * setDrawBGColor is called.
+	 * 
+	 * @param rgb
+	 *            The color as 0xRRGGBB
+	 */
+	public void setDrawBGColorRGB(int rgb) {
+		screen.setDrawBGColorRGB(rgb);
+	}
+
+	public void setDrawBlinking(boolean blinking) {
+		screen.setDrawBlinking(blinking);
+	}
+
+	/**
+	 * Returns the character used on the code page to draw the cursor.
+	 * 
+	 * @return
+	 */
+	public int getCursorChar() {
+		return screen.getCursorChar();
+	}
+
+	/**
+	 * Sets the character used on the code page to draw the cursor. If your code
+	 * page doesn't put the cusor at 95 (underscore), change the character used
+	 * here to match your code page.
+	 * 
+	 * @param cursorChar
+	 */
+	public void setCursorChar(int cursorChar) {
+		screen.setCursorChar(cursorChar);
+	}
+
+	/**
+	 * 
+	 * @return
+	 */
+	public int getBlankChar() {
+		return screen.getBlankChar();
+	}
+
+	/**
+	 * Sets the character used on the code page to draw empty space. If your
+	 * code page doesn't have a blank space at 32 (ASCII space), set this to
+	 * match your code page.
+	 * 
+	 * @param blankChar
+	 */
+	public void setBlankChar(int blankChar) {
+		screen.setBlankChar(blankChar);
+	}
+
+	public int getColumns() {
+		return screen.getColumns();
+	}
+
+	public int getRows() {
+		return screen.getRows();
 	}
 
 	// private boolean doneReading = false;
@@ -855,112 +1101,108 @@ public class JTextModeComponent extends JComponent implements Terminal {
 	// return readBuffer.toString();
 	// }
 
-	// TODO: Range check set color methods
-	public void setDrawColor(int i) {
-		currDrawColor = (byte) i;
-	}
-
-	public void setDrawBGColor(int bgColor) {
-		currDrawBGColor = (byte) bgColor;
-	}
-
-	public void setDrawBlinking(boolean blinking) {
-		currDrawBlinking = blinking;
-	}
-
 	public void setShowMouseCursor(boolean show) {
 		mouseCursorVisible = show;
 	}
 
-	private void putAtCursor(int character) {
-		charsDisplayed[cursorX][cursorY] = character;
-		screenForegroundColor[cursorX][cursorY] = currDrawColor;
-		screenBackgroundColor[cursorX][cursorY] = currDrawBGColor;
-		screenBlinking[cursorX][cursorY] = currDrawBlinking;
-		incrementCursor();
-	}
+	/**
+	 * Returns text screen coords (rows and columns) for given pixel coordinates
+	 * within this component.
+	 * 
+	 * @param x
+	 * @param y
+	 * @return null if the aspect ratio is locked and the given position is
+	 *         outside of the display area.
+	 */
+	public Point getTextCoordsForComponentCoords(int x, int y) {
+		if (!lockAspect) {
+			int textX = (int) (((double) x / (double) getWidth()) * (double) screen.getColumns());
+			int textY = (int) (((double) y / (double) getHeight()) * (double) screen.getRows());
+
+			return new Point(textX, textY);
+		} else {
+			// If aspect is locked, calculate where the cursor appears
+			Rectangle scaledScreenLocation = getAspectLockedScaledBufferSize();
+			if (scaledScreenLocation.contains(x, y)) {
+				int textX = (int) (((double) (x - scaledScreenLocation.x) / (double) (scaledScreenLocation.width)) * (double) screen.getColumns());
+				int textY = (int) (((double) (y - scaledScreenLocation.y) / (double) (scaledScreenLocation.height)) * (double) screen.getRows());
 
-	private void incrementCursor() {
-		cursorX++;
-		if (cursorX >= columns) {
-			cursorMoveNewline();
+				return new Point(textX, textY);
+			} else {
+				return null;
+			}
 		}
 	}
 
-	private void cursorMoveNewline() {
-		cursorX = 0;
-		cursorY++;
-		if (cursorY >= rows) {
-			scrollScreen(1);
-		}
+	public boolean isHardwareScaling() {
+		return hardwareScaling;
 	}
 
 	/**
-	 * Returns the character used on the code page to draw the cursor.
+	 * Sets whether the screen is scaled to the size of the component by the
+	 * graphics hardware, where accelerated images are available. Otherwise it
+	 * is scaled in software, rescaling only the characters that have changed.
 	 * 
-	 * @return
+	 * @param hardwareScaling
 	 */
-	public int getCursorChar() {
-		return cursorChar;
+	public void setHardwareScaling(boolean hardwareScaling) {
+		this.hardwareScaling = hardwareScaling;
+		scaledVolatileImage = null;
+		repaint();
 	}
 
 	/**
-	 * Sets the character used on the code page to draw the cursor. If your code
-	 * page doesn't put the cusor at 95 (underscore), change the character used
-	 * here to match your code page.
-	 * 
-	 * @param cursorChar
+	 * @return the text screen shown
 	 */
-	public void setCursorChar(int cursorChar) {
-		this.cursorChar = cursorChar;
+	TextScreen getTextScreen() {
+		return screen;
 	}
 
 	/**
-	 * 
-	 * @return
+	 * @return The counts of frames painted and what went into painting them,
+	 *         to read, listen to, or register as an MBean
 	 */
-	public int getBlankChar() {
-		return blankChar;
+	public RenderStatistics getRenderStatistics() {
+		return renderStatistics;
 	}
 
 	/**
-	 * Sets the character used on the code page to draw empty space. If your
-	 * code page doesn't have a blank space at 32 (ASCII space), set this to
-	 * match your code page.
-	 * 
-	 * @param blankChar
+	 * @return the most threads that draw one frame
 	 */
-	public void setBlankChar(int blankChar) {
-		this.blankChar = blankChar;
+	public int getRenderThreads() {
+		return screen.getRenderThreads();
 	}
 
 	/**
-	 * Returns text screen coords (rows and columns) for given pixel coordinates
-	 * within this component.
+	 * Sets the most threads that draw one frame. Frames that draw many cells,
+	 * such as a large screen redrawn, are split into bands of rows drawn at
+	 * once on that many threads.
 	 * 
-	 * @param x
-	 * @param y
-	 * @return null if the aspect ratio is locked and the given position is
-	 *         outside of the display area.
+	 * @param renderThreads
+	 *            1 to only ever draw on the event dispatch thread. Default is
+	 *            the number of processors, up to 8.
 	 */
-	public Point getTextCoordsForComponentCoords(int x, int y) {
-		if (!lockAspect) {
-			int textX = (int) (((double) x / (double) getWidth()) * (double) columns);
-			int textY = (int) (((double) y / (double) getHeight()) * (double) rows);
+	public void setRenderThreads(int renderThreads) {
+		screen.setRenderThreads(renderThreads);
+	}
 
-			return new Point(textX, textY);
-		} else {
-			// If aspect is locked, calculate where the cursor appears
-			Rectangle scaledScreenLocation = getAspectLockedScaledBufferSize();
-			if (scaledScreenLocation.contains(x, y)) {
-				int textX = (int) (((double) (x - scaledScreenLocation.x) / (double) (scaledScreenLocation.width)) * (double) columns);
-				int textY = (int) (((double) (y - scaledScreenLocation.y) / (double) (scaledScreenLocation.height)) * (double) rows);
+	public int getMaxFrameRate() {
+		return renderScheduler.getMaxFrameRate();
+	}
 
-				return new Point(textX, textY);
-			} else {
-				return null;
-			}
-		}
+	/**
+	 * Sets how many times a second, at most, changes to the screen are
+	 * painted. Changes made between two frames, from any number of threads,
+	 * are painted together in the next frame, so a change waits at most one
+	 * frame to be painted, and painting takes no more time however quickly
+	 * the screen changes.
+	 * 
+	 * @param maxFrameRate
+	 *            In frames per second, or 0 to paint each change as soon as
+	 *            the event dispatch thread is free. Default is 60.
+	 */
+	public void setMaxFrameRate(int maxFrameRate) {
+		renderScheduler.setMaxFrameRate(maxFrameRate);
 	}
 
 	public boolean isLockAspect() {
@@ -969,13 +1211,7 @@ public class JTextModeComponent extends JComponent implements Terminal {
 
 	public void setLockAspect(boolean lockAspect) {
 		this.lockAspect = lockAspect;
+		repaint();
 	}
 
-	public int getColumns() {
-		return columns;
-	}
-
-	public int getRows() {
-		return rows;
-	}
 }
@@ -0,0 +1,138 @@
+/**
+ *
+ */
+package com.wikispaces.jtextmode;
+
+import java.awt.Point;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+
+/**
+ * A terminal that renders to an image in memory instead of onto the screen,
+ * for producing snapshots without a display. It uses no AWT components, so it
+ * works with java.awt.headless=true.<br>
+ * <br>
+ * Like JTextModeComponent, it draws only the cells that have changed since
+ * the last render, so rendering a screen that changes a little at a time is
+ * cheap.
+ */
+public class OffscreenTerminal extends TextScreen implements ExtendedTerminal {
+	private boolean lockAspect;
+	private boolean mouseCursorVisible;
+
+	/**
+	 * Creates a terminal with blinking off, so every render shows every
+	 * character.
+	 *
+	 * @param rows
+	 * @param columns
+	 * @param showCursor
+	 *            Whether the cursor is drawn.
+	 */
+	public OffscreenTerminal(int rows, int columns, boolean showCursor) {
+		this(rows, columns, false, showCursor);
+	}
+
+	/**
+	 *
+	 * @param rows
+	 * @param columns
+	 * @param blinkingEnabled
+	 *            Whether blinking characters and the cursor are drawn
+	 *            differently when rendered with blinkOn.
+	 * @param showCursor
+	 *            Whether the cursor is drawn.
+	 */
+	public OffscreenTerminal(int rows, int columns, boolean blinkingEnabled,
+			boolean showCursor) {
+		super(rows, columns, blinkingEnabled, showCursor);
+	}
+
+	/**
+	 * Brings the framebuffer up to date with the screen, showing blinking
+	 * characters and the cursor.
+	 *
+	 * @return the framebuffer, which is reused and drawn over by later renders
+	 */
+	public BufferedImage render() {
+		return render(false);
+	}
+
+	/**
+	 * Brings the framebuffer up to date with the screen.
+	 *
+	 * @param blinkOn
+	 *            Whether to render the blink phase where blinking characters
+	 *            are hidden and the cursor is drawn blank.
+	 * @return the framebuffer, which is reused and drawn over by later renders
+	 */
+	public BufferedImage render(boolean blinkOn) {
+		render(blinkOn, null);
+		return getFrameBuffer();
+	}
+
+	/**
+	 * Brings the framebuffer up to date with the screen and returns its
+	 * pixels.
+	 *
+	 * @return the framebuffer's pixels as ARGB ints, a row of
+	 *         getColumns() * getCharWidth() pixels at a time. The array is
+	 *         the framebuffer's own, and is drawn over by later renders.
+	 */
+	public int[] renderPixels() {
+		return ((DataBufferInt) render().getRaster().getDataBuffer())
+				.getData();
+	}
+
+	/**
+	 * Does nothing but remember the setting; there is no mouse cursor
+	 * offscreen.
+	 */
+	@Override
+	public void setShowMouseCursor(boolean show) {
+		mouseCursorVisible = show;
+	}
+
+	public boolean isShowMouseCursor() {
+		return mouseCursorVisible;
+	}
+
+	/**
+	 * Returns text screen coords (rows and columns) for given pixel coordinates
+	 * within the rendered image.
+	 *
+	 * @param x
+	 * @param y
+	 * @return null if the given position is outside of the image.
+	 */
+	@Override
+	public Point getTextCoordsForComponentCoords(int x, int y) {
+		if (x < 0 || y < 0) {
+			return null;
+		}
+		int textX = x / getCharWidth();
+		int textY = y / getCharHeight();
+		if (textX >= getColumns() || textY >= getRows()) {
+			return null;
+		}
+		return new Point(textX, textY);
+	}
+
+	/**
+	 * The rendered image is always exactly the size of the text screen, so
+	 * this has no effect on rendering.
+	 */
+	@Override
+	public boolean isLockAspect() {
+		return lockAspect;
+	}
+
+	/**
+	 * The rendered image is always exactly the size of the text screen, so
+	 * this has no effect on rendering.
+	 */
+	@Override
+	public void setLockAspect(boolean lockAspect) {
+		this.lockAspect = lockAspect;
+	}
+}
@@ -0,0 +1,73 @@
+/**
+ *
+ */
+package com.wikispaces.jtextmode;
+
+import java.awt.Color;
+
+/**
+ * The colors text can be drawn in: the 16 color DOS palette used for color
+ * indexes, and the 256 color xterm palette for terminals drawing in RGB.
+ */
+public class Palette {
+	private static final Color[] colors = { new Color(0, 0, 0),
+			new Color(0, 0, 127), new Color(0, 127, 0), new Color(0, 127, 127),
+			new Color(127, 0, 0),
+			new Color(127, 0, 127),
+			new Color(127, 127, 0),
+			new Color(127, 127, 127),
+			// High intensity
+			new Color(99, 99, 99), new Color(0, 0, 255), new Color(0, 255, 0),
+			new Color(0, 255, 255), new Color(255, 0, 0),
+			new Color(255, 0, 255), new Color(255, 255, 0),
+			new Color(255, 255, 255) };
+
+	/**
+	 * The colors in the form the renderer draws them: ARGB ints.
+	 */
+	private static final int[] colorsARGB = new int[colors.length];
+	static {
+		for (int i = 0; i < colors.length; i++) {
+			colorsARGB[i] = colors[i].getRGB();
+		}
+	}
+
+	/**
+	 * The levels of red, green and blue in the xterm 6x6x6 color cube.
+	 */
+	private static final int[] cubeLevels = { 0, 95, 135, 175, 215, 255 };
+
+	private Palette() {
+	}
+
+	/**
+	 * @param color
+	 *            A color index, 0-15
+	 * @return the opaque ARGB value of the color
+	 */
+	public static int toARGB(int color) {
+		return colorsARGB[color & CellBuffer.COLOR_MASK];
+	}
+
+	/**
+	 * Converts a 256 color xterm palette index to RGB. 0-15 are the 16 color
+	 * palette, 16-231 a 6x6x6 color cube and 232-255 a gray ramp.
+	 *
+	 * @param index
+	 * @return the color as 0xRRGGBB
+	 */
+	public static int xterm256ToRGB(int index) {
+		index &= 0xFF;
+		if (index < 16) {
+			return colorsARGB[index] & 0xFFFFFF;
+		} else if (index < 232) {
+			index -= 16;
+			return (cubeLevels[index / 36] << 16)
+					| (cubeLevels[(index / 6) % 6] << 8)
+					| cubeLevels[index % 6];
+		} else {
+			int level = 8 + (index - 232) * 10;
+			return (level << 16) | (level << 8) | level;
+		}
+	}
+}
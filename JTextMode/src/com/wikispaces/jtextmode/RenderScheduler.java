@@ -0,0 +1,163 @@
+/**
+ *
+ */
+package com.wikispaces.jtextmode;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.swing.SwingUtilities;
+
+/**
+ * Gathers the cells damaged on a text screen, from any thread, and has them
+ * painted together on the event dispatch thread at the next frame tick.
+ * Ticks fall on a fixed grid of frame intervals, like a display's vertical
+ * sync, and only come while there is damage waiting; the next tick is not
+ * scheduled until the last paint has finished, so however fast a screen
+ * changes it is painted at most once per frame interval.
+ */
+class RenderScheduler {
+	public static final int DEFAULT_MAX_FRAME_RATE = 60;
+
+	/**
+	 * Paints what the scheduler has gathered. Called on the event dispatch
+	 * thread.
+	 */
+	public interface Painter {
+		public void paintCells(int x, int y, int width, int height);
+
+		public void paintScreen();
+	}
+
+	/**
+	 * Waits out the frame interval for all schedulers.
+	 */
+	private static final ScheduledExecutorService executor = Executors
+			.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "JTextMode Render Thread");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	/**
+	 * Where the grid of frame slots starts, from System.nanoTime().
+	 */
+	private static final long ORIGIN = System.nanoTime();
+
+	private final Painter painter;
+
+	private int maxFrameRate = DEFAULT_MAX_FRAME_RATE;
+
+	// The damage gathered since the last paint
+	private boolean screenDamaged = false;
+	private int left = Integer.MAX_VALUE;
+	private int top = Integer.MAX_VALUE;
+	private int right = Integer.MIN_VALUE;
+	private int bottom = Integer.MIN_VALUE;
+
+	/**
+	 * Whether a tick has been scheduled, or a paint is waiting on the event
+	 * dispatch thread.
+	 */
+	private boolean tickPending = false;
+
+	/**
+	 * The frame slot of the next tick, and of the last one painted in: the
+	 * number of frame intervals since ORIGIN.
+	 */
+	private long nextSlot = 0;
+	private long lastSlot = Long.MIN_VALUE;
+
+	private final Runnable tick = new Runnable() {
+		@Override
+		public void run() {
+			SwingUtilities.invokeLater(paint);
+		}
+	};
+
+	private final Runnable paint = new Runnable() {
+		@Override
+		public void run() {
+			boolean screen;
+			int x, y, width, height;
+			synchronized (RenderScheduler.this) {
+				tickPending = false;
+				lastSlot = nextSlot;
+				screen = screenDamaged;
+				x = left;
+				y = top;
+				width = right - left;
+				height = bottom - top;
+				screenDamaged = false;
+				left = top = Integer.MAX_VALUE;
+				right = bottom = Integer.MIN_VALUE;
+			}
+
+			if (screen) {
+				painter.paintScreen();
+			} else if (width > 0 && height > 0) {
+				painter.paintCells(x, y, width, height);
+			}
+		}
+	};
+
+	public RenderScheduler(Painter painter) {
+		this.painter = painter;
+	}
+
+	public synchronized int getMaxFrameRate() {
+		return maxFrameRate;
+	}
+
+	public synchronized void setMaxFrameRate(int maxFrameRate) {
+		if (maxFrameRate < 0) {
+			throw new IllegalArgumentException("Frame rate " + maxFrameRate
+					+ " is negative");
+		}
+		this.maxFrameRate = maxFrameRate;
+		lastSlot = Long.MIN_VALUE;
+	}
+
+	public synchronized void cellsDamaged(int x, int y, int width, int height) {
+		if (width <= 0 || height <= 0) {
+			return;
+		}
+		left = Math.min(left, x);
+		top = Math.min(top, y);
+		right = Math.max(right, x + width);
+		bottom = Math.max(bottom, y + height);
+		scheduleTick();
+	}
+
+	public synchronized void screenDamaged() {
+		screenDamaged = true;
+		scheduleTick();
+	}
+
+	/**
+	 * Schedules a tick in the next frame slot after the last paint, unless
+	 * one is already coming.
+	 */
+	private void scheduleTick() {
+		if (tickPending) {
+			return;
+		}
+		tickPending = true;
+
+		if (maxFrameRate == 0) {
+			SwingUtilities.invokeLater(paint);
+			return;
+		}
+
+		long frameInterval = TimeUnit.SECONDS.toNanos(1) / maxFrameRate;
+		long now = System.nanoTime() - ORIGIN;
+		nextSlot = Math.max(now / frameInterval + 1, lastSlot + 1);
+		executor.schedule(tick, nextSlot * frameInterval - now,
+				TimeUnit.NANOSECONDS);
+	}
+}
@@ -0,0 +1,319 @@
+/**
+ *
+ */
+package com.wikispaces.jtextmode;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counts how a JTextModeComponent spends its time painting: how long each
+ * frame takes and how much of that is scaling, how many cells are redrawn
+ * out of those shown, how much is allocated, how many repaints are asked for
+ * against how many are painted, and how often the blink clock ticks.<br>
+ * <br>
+ * Counting costs a few atomic adds and a clock read or two per frame, so it
+ * is always on. Read the counts from any thread, listen for
+ * each frame as it is painted, or register the statistics as an MBean to
+ * watch them over JMX.
+ */
+public class RenderStatistics implements RenderStatisticsMXBean {
+	/**
+	 * Told about each frame as it is painted.
+	 */
+	public interface Listener {
+		/**
+		 * Called on the event dispatch thread, after the frame is painted.
+		 *
+		 * @param paintNanos
+		 *            How long the frame took to paint
+		 * @param scaleNanos
+		 *            The part of paintNanos spent scaling the framebuffer and
+		 *            drawing it into the component
+		 * @param cellsDrawn
+		 *            The cells drawn into the framebuffer
+		 * @param cellsShown
+		 *            The cells on screen
+		 * @param allocatedBytes
+		 *            The bytes allocated painting the frame, or -1 if the JVM
+		 *            can't count them
+		 */
+		public void framePainted(long paintNanos, long scaleNanos,
+				int cellsDrawn, int cellsShown, long allocatedBytes);
+	}
+
+	/**
+	 * The upper bound of each bucket of the paint time histogram, in
+	 * microseconds. Each is twice the last; the last bucket holds everything
+	 * longer.
+	 */
+	private static final long[] PAINT_TIME_BUCKETS = { 250, 500, 1000, 2000,
+			4000, 8000, 16000, 32000, 64000, Long.MAX_VALUE };
+
+	/**
+	 * Counts the bytes each thread allocates, or null if the JVM can't. When
+	 * it isn't null it is a com.sun.management.ThreadMXBean, but is only cast
+	 * to one where it is used, so that this class still loads on JVMs
+	 * without that class.
+	 */
+	private static final ThreadMXBean allocationCounter = findAllocationCounter();
+
+	private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+	// Frames are counted by the event dispatch thread and ticks by the blink
+	// clock, so their counts are never contended. Repaint requests are
+	// counted by whichever thread finishes an update, and threads writing to
+	// the terminal at once contend for that count, but only as often as they
+	// already contend for the terminal's lock
+	private final AtomicLong framesPainted = new AtomicLong();
+	private final AtomicLong repaintRequests = new AtomicLong();
+	private final AtomicLong blinkTicks = new AtomicLong();
+	private final AtomicLong cellsDrawn = new AtomicLong();
+	private final AtomicLong cellsShown = new AtomicLong();
+	private final AtomicLong paintNanos = new AtomicLong();
+	private final AtomicLong scaleNanos = new AtomicLong();
+	private final AtomicLong allocatedBytes = new AtomicLong();
+	private final AtomicLongArray paintTimeHistogram = new AtomicLongArray(
+			PAINT_TIME_BUCKETS.length);
+
+	/**
+	 * The name the statistics are registered under as an MBean, if they are.
+	 */
+	private ObjectName mbeanName;
+
+	RenderStatistics() {
+	}
+
+	private static ThreadMXBean findAllocationCounter() {
+		try {
+			ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+			if (threads instanceof com.sun.management.ThreadMXBean
+					&& ((com.sun.management.ThreadMXBean) threads)
+							.isThreadAllocatedMemorySupported()) {
+				return threads;
+			}
+		} catch (LinkageError e) {
+			// Not a Sun JVM
+		}
+		return null;
+	}
+
+	/**
+	 * @return the bytes allocated by this thread so far, or -1 if the JVM
+	 *         can't count them
+	 */
+	static long getThreadAllocatedBytes() {
+		if (!isAllocationCounted()) {
+			return -1;
+		}
+		return ((com.sun.management.ThreadMXBean) allocationCounter)
+				.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	private static boolean isAllocationCounted() {
+		return allocationCounter != null
+				&& ((com.sun.management.ThreadMXBean) allocationCounter)
+						.isThreadAllocatedMemoryEnabled();
+	}
+
+	public void addListener(Listener listener) {
+		listeners.addIfAbsent(listener);
+	}
+
+	public void removeListener(Listener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Registers the statistics with the platform MBean server, under the name
+	 * "com.wikispaces.jtextmode:type=RenderStatistics,name=" and the name
+	 * given, quoted. They stay registered, and so reachable, until
+	 * unregisterMBean() is called.
+	 *
+	 * @param name
+	 *            Tells this component's statistics apart from others'
+	 * @return The name registered under
+	 * @throws JMException
+	 *             If the name is taken
+	 */
+	public synchronized ObjectName registerMBean(String name)
+			throws JMException {
+		unregisterMBean();
+		ObjectName objectName = new ObjectName(
+				"com.wikispaces.jtextmode:type=RenderStatistics,name="
+						+ ObjectName.quote(name));
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+				objectName);
+		mbeanName = objectName;
+		return objectName;
+	}
+
+	/**
+	 * Unregisters the statistics from the platform MBean server, if
+	 * registerMBean() registered them.
+	 *
+	 * @throws JMException
+	 */
+	public synchronized void unregisterMBean() throws JMException {
+		if (mbeanName != null) {
+			ObjectName objectName = mbeanName;
+			mbeanName = null;
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+					objectName);
+		}
+	}
+
+	void repaintRequested() {
+		repaintRequests.incrementAndGet();
+	}
+
+	void blinkTicked() {
+		blinkTicks.incrementAndGet();
+	}
+
+	/**
+	 * Counts a frame just painted, and tells the listeners about it.
+	 *
+	 * @see Listener#framePainted(long, long, int, int, long)
+	 */
+	void framePainted(long paintNanos, long scaleNanos, int cellsDrawn,
+			int cellsShown, long allocatedBytes) {
+		framesPainted.incrementAndGet();
+		this.paintNanos.addAndGet(paintNanos);
+		this.scaleNanos.addAndGet(scaleNanos);
+		this.cellsDrawn.addAndGet(cellsDrawn);
+		this.cellsShown.addAndGet(cellsShown);
+		if (allocatedBytes >= 0) {
+			this.allocatedBytes.addAndGet(allocatedBytes);
+		}
+
+		long paintMicros = TimeUnit.NANOSECONDS.toMicros(paintNanos);
+		int bucket = 0;
+		while (paintMicros >= PAINT_TIME_BUCKETS[bucket]) {
+			bucket++;
+		}
+		paintTimeHistogram.incrementAndGet(bucket);
+
+		for (Listener listener : listeners) {
+			listener.framePainted(paintNanos, scaleNanos, cellsDrawn,
+					cellsShown, allocatedBytes);
+		}
+	}
+
+	@Override
+	public long getFramesPainted() {
+		return framesPainted.get();
+	}
+
+	@Override
+	public long getRepaintRequests() {
+		return repaintRequests.get();
+	}
+
+	@Override
+	public long getBlinkTicks() {
+		return blinkTicks.get();
+	}
+
+	@Override
+	public long getCellsDrawn() {
+		return cellsDrawn.get();
+	}
+
+	@Override
+	public long getCellsShown() {
+		return cellsShown.get();
+	}
+
+	@Override
+	public double getCellsDrawnRatio() {
+		long shown = cellsShown.get();
+		if (shown == 0) {
+			return 0;
+		}
+		return (double) cellsDrawn.get() / shown;
+	}
+
+	@Override
+	public long getPaintNanos() {
+		return paintNanos.get();
+	}
+
+	@Override
+	public long getScaleNanos() {
+		return scaleNanos.get();
+	}
+
+	@Override
+	public double getAveragePaintMillis() {
+		long frames = framesPainted.get();
+		if (frames == 0) {
+			return 0;
+		}
+		return paintNanos.get() / 1e6 / frames;
+	}
+
+	@Override
+	public long getAllocatedBytes() {
+		if (!isAllocationCounted()) {
+			return -1;
+		}
+		return allocatedBytes.get();
+	}
+
+	@Override
+	public double getAverageAllocatedBytes() {
+		long frames = framesPainted.get();
+		if (!isAllocationCounted()) {
+			return -1;
+		} else if (frames == 0) {
+			return 0;
+		}
+		return (double) allocatedBytes.get() / frames;
+	}
+
+	@Override
+	public long[] getPaintTimeHistogram() {
+		long[] histogram = new long[paintTimeHistogram.length()];
+		for (int i = 0; i < histogram.length; i++) {
+			histogram[i] = paintTimeHistogram.get(i);
+		}
+		return histogram;
+	}
+
+	@Override
+	public long[] getPaintTimeBuckets() {
+		return PAINT_TIME_BUCKETS.clone();
+	}
+
+	@Override
+	public void reset() {
+		framesPainted.set(0);
+		repaintRequests.set(0);
+		blinkTicks.set(0);
+		cellsDrawn.set(0);
+		cellsShown.set(0);
+		paintNanos.set(0);
+		scaleNanos.set(0);
+		allocatedBytes.set(0);
+		for (int i = 0; i < paintTimeHistogram.length(); i++) {
+			paintTimeHistogram.set(i, 0);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "RenderStatistics[frames=" + getFramesPainted()
+				+ ", repaintRequests=" + getRepaintRequests()
+				+ ", blinkTicks=" + getBlinkTicks() + ", cellsDrawn="
+				+ getCellsDrawn() + "/" + getCellsShown() + ", averagePaint="
+				+ String.format("%.3f", getAveragePaintMillis()) + "ms]";
+	}
+}
@@ -0,0 +1,90 @@
+/**
+ *
+ */
+package com.wikispaces.jtextmode;
+
+/**
+ * The render statistics of a JTextModeComponent as seen over JMX, for
+ * watching a running terminal from JConsole or VisualVM. All counts are
+ * since the component was created or the statistics were last reset.
+ */
+public interface RenderStatisticsMXBean {
+	/**
+	 * @return The number of times the component has been painted
+	 */
+	public long getFramesPainted();
+
+	/**
+	 * @return The number of times the screen has asked to be repainted. Many
+	 *         requests made within one frame are painted together, so this
+	 *         is usually more than getFramesPainted().
+	 */
+	public long getRepaintRequests();
+
+	/**
+	 * @return The number of times the blink clock has ticked for the
+	 *         component
+	 */
+	public long getBlinkTicks();
+
+	/**
+	 * @return The number of cells drawn into the framebuffer, over all frames
+	 */
+	public long getCellsDrawn();
+
+	/**
+	 * @return The number of cells on screen, over all frames; what
+	 *         getCellsDrawn() would be if every cell were redrawn every frame
+	 */
+	public long getCellsShown();
+
+	/**
+	 * @return getCellsDrawn() as a fraction of getCellsShown()
+	 */
+	public double getCellsDrawnRatio();
+
+	/**
+	 * @return The time spent painting, in nanoseconds, over all frames
+	 */
+	public long getPaintNanos();
+
+	/**
+	 * @return The part of getPaintNanos() spent scaling the framebuffer and
+	 *         drawing it into the component
+	 */
+	public long getScaleNanos();
+
+	/**
+	 * @return getPaintNanos() per frame, in milliseconds
+	 */
+	public double getAveragePaintMillis();
+
+	/**
+	 * @return The bytes allocated while painting, over all frames, or -1 if
+	 *         the JVM can't count them
+	 */
+	public long getAllocatedBytes();
+
+	/**
+	 * @return getAllocatedBytes() per frame, or -1 if the JVM can't count
+	 *         them
+	 */
+	public double getAverageAllocatedBytes();
+
+	/**
+	 * @return The number of frames painted in each range of time given by
+	 *         getPaintTimeBuckets()
+	 */
+	public long[] getPaintTimeHistogram();
+
+	/**
+	 * @return The upper bound of each range in getPaintTimeHistogram(), in
+	 *         microseconds, except the last which holds all longer frames
+	 */
+	public long[] getPaintTimeBuckets();
+
+	/**
+	 * Sets every count back to zero.
+	 */
+	public void reset();
+}
@@ -0,0 +1,214 @@
+/**
+ *
+ */
+package com.wikispaces.jtextmode;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Reads the frames written by a ScreenDeltaWriter and applies them to a
+ * terminal, keeping it a mirror of the writer's. Each frame is applied as one
+ * update of the terminal, so is painted as one frame.<br>
+ * <br>
+ * The mirror should be the same size as the screen mirrored; if it is
+ * smaller, whatever falls off it is left out. Nothing else should draw on it
+ * while it is a mirror.
+ */
+public class ScreenDeltaReader {
+	private final ExtendedTerminal terminal;
+	private final ReadableByteChannel channel;
+
+	private final ByteBuffer header = ByteBuffer.allocate(4);
+	private ByteBuffer frame = ByteBuffer.allocate(8192);
+
+	// The run of cells being applied
+	private int[] runCells = new int[0];
+	private int[] runColorsRGB = new int[0];
+	private int[] runBGColorsRGB = new int[0];
+
+	/**
+	 * @param terminal
+	 *            The mirror
+	 * @param channel
+	 *            Where frames are read from
+	 */
+	public ScreenDeltaReader(ExtendedTerminal terminal,
+			ReadableByteChannel channel) {
+		this.terminal = terminal;
+		this.channel = channel;
+	}
+
+	public ExtendedTerminal getTerminal() {
+		return terminal;
+	}
+
+	/**
+	 * Reads the next frame and applies it to the terminal, waiting for it if
+	 * the channel blocks.
+	 *
+	 * @return false if the channel has ended, between frames
+	 * @throws EOFException
+	 *             If the channel ends partway through a frame
+	 * @throws IOException
+	 *             If the channel can't be read, or the frame is malformed
+	 */
+	public boolean receive() throws IOException {
+		header.clear();
+		if (!readFully(header)) {
+			return false;
+		}
+		int length = header.getInt(0);
+		if (length < 0) {
+			throw new IOException("Malformed frame: length " + length);
+		}
+		if (frame.capacity() < length) {
+			frame = ByteBuffer.allocate(Math.max(length, frame.capacity() * 2));
+		}
+		frame.clear();
+		frame.limit(length);
+		if (!readFully(frame)) {
+			throw new EOFException("Channel ended in a frame");
+		}
+		frame.flip();
+
+		try {
+			apply(frame);
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Malformed frame: ends in a command");
+		}
+		return true;
+	}
+
+	/**
+	 * Reads until the buffer is full.
+	 *
+	 * @return false if the channel ended before anything was read
+	 * @throws EOFException
+	 *             If it ended after some was read
+	 */
+	private boolean readFully(ByteBuffer buffer) throws IOException {
+		int start = buffer.position();
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0) {
+				if (buffer.position() == start) {
+					return false;
+				}
+				throw new EOFException("Channel ended in a frame");
+			}
+		}
+		return true;
+	}
+
+	private void apply(ByteBuffer frame) throws IOException {
+		int columns = readVarInt(frame);
+		readVarInt(frame); // rows
+		if (runCells.length < columns) {
+			runCells = new int[columns];
+			runColorsRGB = new int[columns];
+			runBGColorsRGB = new int[columns];
+		}
+
+		terminal.beginUpdate();
+		try {
+			while (frame.hasRemaining()) {
+				int command = frame.get();
+				switch (command) {
+				case ScreenDeltaWriter.SCROLL:
+					terminal.scrollScreen(readVarInt(frame));
+					break;
+				case ScreenDeltaWriter.CELLS:
+					applyCells(frame, columns);
+					break;
+				case ScreenDeltaWriter.CURSOR:
+					int x = readVarInt(frame);
+					terminal.setCursorPos(x, readVarInt(frame));
+					break;
+				default:
+					throw new IOException("Malformed frame: unknown command "
+							+ command);
+				}
+			}
+		} finally {
+			terminal.endUpdate();
+		}
+	}
+
+	private void applyCells(ByteBuffer frame, int columns) throws IOException {
+		int x = readVarInt(frame);
+		int y = readVarInt(frame);
+		boolean wide = (frame.get() & ScreenDeltaWriter.WIDE_GLYPHS) != 0;
+		int count = readVarInt(frame);
+		if (count > columns) {
+			throw new IOException("Malformed frame: " + count
+					+ " cells in a row of " + columns);
+		}
+
+		for (int i = 0; i < count; i++) {
+			int glyph = frame.get() & 0xFF;
+			if (wide) {
+				glyph = glyph << 8 | frame.get() & 0xFF;
+			}
+			runCells[i] = glyph;
+		}
+
+		boolean rgb = false;
+		int i = 0;
+		while (i < count) {
+			int runEnd = i + readVarInt(frame);
+			int attributes = readVarInt(frame) << CellBuffer.FG_SHIFT;
+			int colorRGB = 0;
+			int bgColorRGB = 0;
+			if (CellBuffer.hasColorRGB(attributes)) {
+				colorRGB = readRGB(frame);
+				rgb = true;
+			}
+			if (CellBuffer.hasBGColorRGB(attributes)) {
+				bgColorRGB = readRGB(frame);
+				rgb = true;
+			}
+			if (runEnd > count) {
+				throw new IOException("Malformed frame: attributes past the "
+						+ "end of a run");
+			}
+			for (; i < runEnd; i++) {
+				runCells[i] |= attributes;
+				runColorsRGB[i] = colorRGB;
+				runBGColorsRGB[i] = bgColorRGB;
+			}
+		}
+
+		terminal.blit(x, y, count, 1, runCells, 0, count);
+		if (rgb) {
+			// Blitting leaves cells in palette colors; give back their RGB
+			for (i = 0; i < count; i++) {
+				if (CellBuffer.hasColorRGB(runCells[i])) {
+					terminal.setColorRGBAt(x + i, y, runColorsRGB[i]);
+				}
+				if (CellBuffer.hasBGColorRGB(runCells[i])) {
+					terminal.setBGColorRGBAt(x + i, y, runBGColorsRGB[i]);
+				}
+			}
+		}
+	}
+
+	private static int readVarInt(ByteBuffer frame) {
+		int value = 0;
+		int shift = 0;
+		int b;
+		do {
+			b = frame.get();
+			value |= (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return value;
+	}
+
+	private static int readRGB(ByteBuffer frame) {
+		return (frame.get() & 0xFF) << 16 | (frame.get() & 0xFF) << 8
+				| frame.get() & 0xFF;
+	}
+}
@@ -0,0 +1,299 @@
+/**
+ *
+ */
+package com.wikispaces.jtextmode;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/**
+ * Mirrors a terminal's screen to another process, or anywhere else a channel
+ * goes, by writing the changes made to it since the last send as a compact
+ * binary frame. A ScreenDeltaReader at the other end applies the frames to a
+ * terminal of its own.<br>
+ * <br>
+ * Frames are sized by what changed, not by the screen: only the runs of cells
+ * that differ from what was last sent are written, each as its characters
+ * followed by its attributes in runs, with RGB colors once per run; a scroll
+ * is written as one command, and only the rows it uncovers are sent again.
+ * The screen is mirrored as shown, so a viewport scrolled back is mirrored
+ * too, but search highlights are not.<br>
+ * <br>
+ * Call send whenever the mirror should catch up, such as once a frame from a
+ * timer; changes made between two sends go in one frame.
+ */
+public class ScreenDeltaWriter {
+	// The commands in a frame, each followed by its arguments as var ints
+	/**
+	 * Scroll the screen up: rows.
+	 */
+	static final int SCROLL = 1;
+
+	/**
+	 * Set a run of cells along a row: x, y, then the cells encoded as by
+	 * Scrollback.
+	 */
+	static final int CELLS = 2;
+
+	/**
+	 * Move the cursor: x, y.
+	 */
+	static final int CURSOR = 3;
+
+	/**
+	 * Set in a run's first byte when its characters take two bytes each.
+	 */
+	static final int WIDE_GLYPHS = 1;
+
+	/**
+	 * The most unchanged cells between two changed ones sent along with them,
+	 * rather than starting a new run.
+	 */
+	private static final int MAX_GAP = 8;
+
+	private static final int INITIAL_CAPACITY = 8192;
+
+	private final TextScreen screen;
+	private final WritableByteChannel channel;
+	private final int columns;
+	private final int rows;
+
+	/**
+	 * The screen as last copied from the terminal.
+	 */
+	private final ScreenSnapshot snapshot;
+
+	/**
+	 * The screen as last sent, and so as shown by the mirror. Rows not known
+	 * to match the mirror's, such as those a scroll uncovers, are sent whole.
+	 */
+	private final int[] sentCells;
+	private final int[] sentColorsARGB;
+	private final int[] sentBGColorsARGB;
+	private final boolean[] unknownRows;
+	private long sentVersion = -1;
+	private long sentScrolledRows;
+	private int sentCursorX = -1;
+	private int sentCursorY = -1;
+
+	/**
+	 * The frame being written, after its length.
+	 */
+	private ByteBuffer frame = ByteBuffer.allocate(INITIAL_CAPACITY);
+
+	/**
+	 * @param terminal
+	 *            A terminal from this package
+	 * @param channel
+	 *            Where frames are written. Blocking channels are best;
+	 *            writing to a non-blocking channel that is full retries until
+	 *            the whole frame is written.
+	 */
+	public ScreenDeltaWriter(Terminal terminal, WritableByteChannel channel) {
+		this.screen = TextScreen.of(terminal);
+		this.channel = channel;
+		columns = screen.getColumns();
+		rows = screen.getRows();
+		snapshot = new ScreenSnapshot(columns, rows);
+		sentCells = new int[columns * rows];
+		sentColorsARGB = new int[columns * rows];
+		sentBGColorsARGB = new int[columns * rows];
+		unknownRows = new boolean[rows];
+		Arrays.fill(unknownRows, true);
+	}
+
+	/**
+	 * Writes the changes made to the screen since the last send as one frame.
+	 * The first frame sent holds the whole screen.
+	 *
+	 * @return false if nothing had changed, and no frame was written
+	 * @throws IOException
+	 *             If the channel can't be written to. The mirror is then out
+	 *             of step, and the writer should not be used again.
+	 */
+	public synchronized boolean send() throws IOException {
+		screen.copySnapshot(snapshot);
+		if (snapshot.version == sentVersion) {
+			return false;
+		}
+
+		frame.clear();
+		frame.putInt(0);
+		putVarInt(columns);
+		putVarInt(rows);
+
+		// Scroll the mirror along with the screen, unless nothing on it
+		// would be left
+		long scrolled = snapshot.scrolledRows - sentScrolledRows;
+		if (sentVersion < 0 || scrolled >= rows) {
+			Arrays.fill(unknownRows, true);
+		} else if (scrolled > 0) {
+			frame.put((byte) SCROLL);
+			putVarInt((int) scrolled);
+			int scrolledCells = (int) scrolled * columns;
+			System.arraycopy(sentCells, scrolledCells, sentCells, 0,
+					sentCells.length - scrolledCells);
+			System.arraycopy(sentColorsARGB, scrolledCells, sentColorsARGB, 0,
+					sentColorsARGB.length - scrolledCells);
+			System.arraycopy(sentBGColorsARGB, scrolledCells,
+					sentBGColorsARGB, 0, sentBGColorsARGB.length
+							- scrolledCells);
+			System.arraycopy(unknownRows, (int) scrolled, unknownRows, 0, rows
+					- (int) scrolled);
+			// What the mirror's scroll uncovers depends on its draw colors
+			Arrays.fill(unknownRows, rows - (int) scrolled, rows, true);
+			// The mirror's cursor moves up with its text
+			sentCursorY = -1;
+		}
+
+		for (int y = 0; y < rows; y++) {
+			if (unknownRows[y]) {
+				putCells(0, y, columns);
+				unknownRows[y] = false;
+			} else if (snapshot.rowVersions[y] > sentVersion) {
+				putChangedCells(y);
+			}
+		}
+
+		if (snapshot.cursorY >= 0
+				&& (snapshot.cursorX != sentCursorX || snapshot.cursorY != sentCursorY)) {
+			ensureFree(16);
+			frame.put((byte) CURSOR);
+			putVarInt(snapshot.cursorX);
+			putVarInt(snapshot.cursorY);
+			sentCursorX = snapshot.cursorX;
+			sentCursorY = snapshot.cursorY;
+		}
+
+		sentVersion = snapshot.version;
+		sentScrolledRows = snapshot.scrolledRows;
+
+		frame.putInt(0, frame.position() - 4);
+		frame.flip();
+		while (frame.hasRemaining()) {
+			channel.write(frame);
+		}
+		return true;
+	}
+
+	/**
+	 * Puts the runs of cells on a row that differ from those sent, along with
+	 * any few unchanged cells between them.
+	 */
+	private void putChangedCells(int y) {
+		int runStart = -1;
+		int runEnd = -1;
+		for (int x = 0; x < columns; x++) {
+			if (!isChanged(y * columns + x)) {
+				continue;
+			}
+			if (runStart >= 0 && x - runEnd > MAX_GAP) {
+				putCells(runStart, y, runEnd - runStart);
+				runStart = -1;
+			}
+			if (runStart < 0) {
+				runStart = x;
+			}
+			runEnd = x + 1;
+		}
+		if (runStart >= 0) {
+			putCells(runStart, y, runEnd - runStart);
+		}
+	}
+
+	private boolean isChanged(int i) {
+		return snapshot.cells[i] != sentCells[i]
+				|| snapshot.colorsARGB[i] != sentColorsARGB[i]
+				|| snapshot.bgColorsARGB[i] != sentBGColorsARGB[i];
+	}
+
+	/**
+	 * Puts a run of cells along a row, and records them as sent.
+	 */
+	private void putCells(int x, int y, int count) {
+		// The command, the characters and an attribute run per cell at most
+		ensureFree(16 + count * 17);
+		int from = y * columns + x;
+		int to = from + count;
+		System.arraycopy(snapshot.cells, from, sentCells, from, count);
+		System.arraycopy(snapshot.colorsARGB, from, sentColorsARGB, from,
+				count);
+		System.arraycopy(snapshot.bgColorsARGB, from, sentBGColorsARGB, from,
+				count);
+
+		boolean wide = false;
+		for (int i = from; i < to; i++) {
+			if (CellBuffer.glyphOf(sentCells[i]) > 0xFF) {
+				wide = true;
+				break;
+			}
+		}
+
+		frame.put((byte) CELLS);
+		putVarInt(x);
+		putVarInt(y);
+		frame.put((byte) (wide ? WIDE_GLYPHS : 0));
+		putVarInt(count);
+		for (int i = from; i < to; i++) {
+			int glyph = CellBuffer.glyphOf(sentCells[i]);
+			if (wide) {
+				frame.put((byte) (glyph >>> 8));
+			}
+			frame.put((byte) glyph);
+		}
+
+		// Runs of cells with the same attributes
+		int i = from;
+		while (i < to) {
+			int runEnd = i + 1;
+			while (runEnd < to && sameAttributes(runEnd, i)) {
+				runEnd++;
+			}
+			int cell = sentCells[i];
+			putVarInt(runEnd - i);
+			putVarInt(cell >>> CellBuffer.FG_SHIFT);
+			if (CellBuffer.hasColorRGB(cell)) {
+				putRGB(sentColorsARGB[i]);
+			}
+			if (CellBuffer.hasBGColorRGB(cell)) {
+				putRGB(sentBGColorsARGB[i]);
+			}
+			i = runEnd;
+		}
+	}
+
+	private boolean sameAttributes(int i, int other) {
+		int cell = sentCells[i];
+		if ((cell & ~CellBuffer.GLYPH_MASK) != (sentCells[other] & ~CellBuffer.GLYPH_MASK)) {
+			return false;
+		}
+		return (!CellBuffer.hasColorRGB(cell) || sentColorsARGB[i] == sentColorsARGB[other])
+				&& (!CellBuffer.hasBGColorRGB(cell) || sentBGColorsARGB[i] == sentBGColorsARGB[other]);
+	}
+
+	private void putVarInt(int value) {
+		while ((value & ~0x7F) != 0) {
+			frame.put((byte) (value & 0x7F | 0x80));
+			value >>>= 7;
+		}
+		frame.put((byte) value);
+	}
+
+	private void putRGB(int rgb) {
+		frame.put((byte) (rgb >>> 16));
+		frame.put((byte) (rgb >>> 8));
+		frame.put((byte) rgb);
+	}
+
+	private void ensureFree(int length) {
+		if (frame.remaining() < length) {
+			ByteBuffer larger = ByteBuffer.allocate(Math.max(
+					frame.capacity() * 2, frame.position() + length));
+			frame.flip();
+			larger.put(frame);
+			frame = larger;
+		}
+	}
+}
@@ -0,0 +1,61 @@
+/**
+ *
+ */
+package com.wikispaces.jtextmode;
+
+/**
+ * A copy of a text screen as it was when last published, read by the thread
+ * rendering it while writers carry on changing the screen itself. Cells are
+ * laid out row by row from the top of the screen (index y * columns + x), with
+ * their colors already resolved to ARGB.<br>
+ * <br>
+ * A TextScreen keeps three of these: one being brought up to date by the
+ * writers, one being drawn by the renderer, and the latest published one
+ * waiting between them.
+ */
+class ScreenSnapshot {
+	final int columns;
+	final int rows;
+
+	final int[] cells;
+	final int[] colorsARGB;
+	final int[] bgColorsARGB;
+
+	/**
+	 * The number of blinking cells in each row, and on the whole screen.
+	 */
+	final int[] blinkingInRow;
+	int blinkingCount;
+
+	/**
+	 * The version of the screen each row last changed in; rows that scroll
+	 * count as changed.
+	 */
+	final long[] rowVersions;
+
+	/**
+	 * The version of the screen this is a copy of, or -1 if it has never been
+	 * filled.
+	 */
+	long version = -1;
+
+	/**
+	 * The number of rows the screen had scrolled in total.
+	 */
+	long scrolledRows;
+
+	int cursorX;
+	int cursorY;
+	int cursorChar;
+	int blankChar;
+
+	ScreenSnapshot(int columns, int rows) {
+		this.columns = columns;
+		this.rows = rows;
+		cells = new int[columns * rows];
+		colorsARGB = new int[columns * rows];
+		bgColorsARGB = new int[columns * rows];
+		blinkingInRow = new int[rows];
+		rowVersions = new long[rows];
+	}
+}
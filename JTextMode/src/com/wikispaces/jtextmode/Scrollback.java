@@ -0,0 +1,654 @@
+/**
+ *
+ */
+package com.wikispaces.jtextmode;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+/**
+ * The rows scrolled off the top of a text screen, kept compressed in one ring
+ * of bytes, up to a maximum number of rows after which the oldest are
+ * forgotten. Rows are numbered from the oldest kept, 0, to the newest,
+ * getRowCount() - 1.<br>
+ * <br>
+ * Each row is stored as its characters, one byte each unless any need two,
+ * then its attributes as runs of cells sharing them, with an RGB color stored
+ * once per run. Cells at the end of the row the same as the last cell are
+ * left out, so a blank row takes a few bytes; a row the same as the one
+ * before it shares its bytes and takes none. The ring, and the index of
+ * where each row starts in it, may be kept off the heap in direct buffers.
+ */
+class Scrollback {
+	private static final int INITIAL_CAPACITY = 4096;
+	private static final int INITIAL_ROW_CAPACITY = 256;
+
+	/**
+	 * Set in a row's first byte when its characters take two bytes each.
+	 */
+	private static final int WIDE_GLYPHS = 1;
+
+	/**
+	 * The largest attributes a run can have: a packed cell's bits above its
+	 * character.
+	 */
+	private static final int MAX_ATTRIBUTES = ((CellBuffer.BG_RGB_BIT << 1) - 1)
+			>>> CellBuffer.FG_SHIFT;
+
+	private final int columns;
+	private final int maxRows;
+	private final boolean offHeap;
+
+	/**
+	 * The stored rows, from tail up to head, wrapping around the end of the
+	 * buffer. head == tail when no rows are stored, so the ring is never let
+	 * fill completely.
+	 */
+	private ByteBuffer data;
+	private int head = 0;
+	private int tail = 0;
+
+	/**
+	 * Where each row starts in data, in a ring starting at firstRow.
+	 */
+	private IntBuffer rowStarts;
+	private int firstRow = 0;
+	private int rowCount = 0;
+
+	/**
+	 * The newest row as it was encoded, so that the row after it can share
+	 * its bytes if it is the same.
+	 */
+	private final byte[] lastEncoded;
+	private int lastEncodedLength = 0;
+
+	// Working space for encoding and decoding rows
+	private final byte[] encoded;
+	private final int[] rowCells;
+	private final int[] rowColorsRGB;
+	private final int[] rowBGColorsRGB;
+	private int readPosition;
+
+	/**
+	 * @param columns
+	 *            The width of the rows kept
+	 * @param maxRows
+	 *            The most rows to keep
+	 * @param offHeap
+	 *            Whether to keep the rows in a direct buffer, outside the
+	 *            Java heap
+	 */
+	public Scrollback(int columns, int maxRows, boolean offHeap) {
+		this.columns = columns;
+		this.maxRows = maxRows;
+		this.offHeap = offHeap;
+
+		// The most an encoded row can take: a header, then two bytes per
+		// character and a run per cell of at most five bytes of length, two
+		// of attributes and six of RGB colors
+		encoded = new byte[6 + columns * 15];
+		lastEncoded = new byte[encoded.length];
+		rowCells = new int[columns];
+		rowColorsRGB = new int[columns];
+		rowBGColorsRGB = new int[columns];
+
+		data = allocate(INITIAL_CAPACITY);
+		rowStarts = allocateInts(Math.min(maxRows, INITIAL_ROW_CAPACITY));
+	}
+
+	public int getMaxRows() {
+		return maxRows;
+	}
+
+	public boolean isOffHeap() {
+		return offHeap;
+	}
+
+	/**
+	 * @return the number of rows kept
+	 */
+	public int getRowCount() {
+		return rowCount;
+	}
+
+	/**
+	 * @return the bytes allocated to keep the rows, used or not
+	 */
+	public long getCapacityBytes() {
+		return data.capacity() + 4L * rowStarts.capacity();
+	}
+
+	/**
+	 * Forgets every row kept.
+	 */
+	public void clear() {
+		head = 0;
+		tail = 0;
+		firstRow = 0;
+		rowCount = 0;
+		lastEncodedLength = 0;
+	}
+
+	/**
+	 * @return the bytes saveState writes: the number of rows and of bytes
+	 *         kept, where each row starts, then the rows' bytes
+	 */
+	public int getStateSize() {
+		return 8 + 4 * rowCount + usedBytes();
+	}
+
+	/**
+	 * Writes the rows kept at the buffer's position, advancing it. The rows
+	 * are written as they are kept, encoded, so are not decoded and encoded
+	 * again.
+	 *
+	 * @throws java.nio.BufferOverflowException
+	 *             if there are fewer than getStateSize() bytes left
+	 */
+	public void saveState(ByteBuffer buffer) {
+		int used = usedBytes();
+		buffer.putInt(rowCount);
+		buffer.putInt(used);
+		for (int row = 0; row < rowCount; row++) {
+			// Where the row starts from the oldest kept byte
+			int start = rowStarts.get(ringIndex(row)) - tail;
+			buffer.putInt(start < 0 ? start + data.capacity() : start);
+		}
+
+		ByteBuffer bytes = data.duplicate();
+		if (tail <= head) {
+			bytes.limit(head).position(tail);
+			buffer.put(bytes);
+		} else {
+			bytes.limit(bytes.capacity()).position(tail);
+			buffer.put(bytes);
+			bytes.limit(head).position(0);
+			buffer.put(bytes);
+		}
+	}
+
+	/**
+	 * Replaces the rows kept with those written by saveState, at the buffer's
+	 * position, advancing it. Every row is checked to decode within the bytes
+	 * saved before any are kept.
+	 *
+	 * @throws IOException
+	 *             If there are more rows than this scrollback keeps, or the
+	 *             rows are malformed; the scrollback is left unchanged
+	 */
+	public void restoreState(ByteBuffer buffer) throws IOException {
+		int savedRows = buffer.getInt();
+		int used = buffer.getInt();
+		if (savedRows < 0 || savedRows > maxRows || used < 0
+				|| buffer.remaining() < 4L * savedRows + used) {
+			throw new IOException("Malformed scrollback: " + savedRows
+					+ " rows in " + used + " bytes");
+		}
+
+		IntBuffer starts = allocateInts(Math.max(savedRows, Math.min(maxRows,
+				INITIAL_ROW_CAPACITY)));
+		for (int row = 0; row < savedRows; row++) {
+			int start = buffer.getInt();
+			if (start < 0 || start >= used) {
+				throw new IOException("Malformed scrollback: row " + row
+						+ " starts at " + start + " of " + used);
+			}
+			starts.put(row, start);
+		}
+		checkRows(buffer.slice(), starts, savedRows, used);
+
+		if (data.capacity() <= used) {
+			data = allocate(Math.max(INITIAL_CAPACITY, used + 1));
+		}
+		ByteBuffer bytes = buffer.duplicate();
+		bytes.limit(bytes.position() + used);
+		data.clear();
+		data.put(bytes);
+		buffer.position(buffer.position() + used);
+
+		rowStarts = starts;
+		firstRow = 0;
+		rowCount = savedRows;
+		tail = 0;
+		head = used;
+		lastEncodedLength = 0;
+	}
+
+	/**
+	 * Checks that saved rows decode within the bytes saved, and lie one after
+	 * another as saveState writes them: each either shares the bytes of the
+	 * row before it or starts where that row ends, with the last ending at the
+	 * end of the bytes.
+	 *
+	 * @param bytes
+	 *            The rows' bytes, from position 0
+	 * @throws IOException
+	 *             If they don't
+	 */
+	private void checkRows(ByteBuffer bytes, IntBuffer starts, int savedRows,
+			int used) throws IOException {
+		bytes.limit(used);
+		int previousStart = -1;
+		int end = 0;
+		for (int row = 0; row < savedRows; row++) {
+			int start = starts.get(row);
+			if (start == previousStart) {
+				continue;
+			} else if (start != end) {
+				throw new IOException("Malformed scrollback: row " + row
+						+ " starts at " + start + ", not " + end);
+			}
+			bytes.position(start);
+			try {
+				checkRow(bytes, row);
+			} catch (BufferUnderflowException e) {
+				throw new IOException("Malformed scrollback: row " + row
+						+ " is cut short");
+			}
+			previousStart = start;
+			end = bytes.position();
+		}
+		if (end != used) {
+			throw new IOException("Malformed scrollback: rows end at " + end
+					+ " of " + used);
+		}
+	}
+
+	/**
+	 * Reads a saved row at the buffer's position as decodeRow would, checking
+	 * it as it goes, and leaves the position where it ends.
+	 *
+	 * @throws BufferUnderflowException
+	 *             If the row runs past the buffer's limit
+	 */
+	private void checkRow(ByteBuffer bytes, int row) throws IOException {
+		int flags = bytes.get() & 0xFF;
+		int stored = getVarInt(bytes);
+		if ((flags & ~WIDE_GLYPHS) != 0 || stored < 1 || stored > columns) {
+			throw new IOException("Malformed scrollback: row " + row
+					+ " stores " + stored + " cells");
+		}
+		skip(bytes, (flags & WIDE_GLYPHS) != 0 ? 2 * stored : stored);
+
+		int x = 0;
+		while (x < stored) {
+			int run = getVarInt(bytes);
+			int attributes = getVarInt(bytes);
+			if (run < 1 || run > stored - x || attributes < 0
+					|| attributes > MAX_ATTRIBUTES) {
+				throw new IOException("Malformed scrollback: row " + row
+						+ " has a run of " + run + " at " + x);
+			}
+			attributes <<= CellBuffer.FG_SHIFT;
+			if (CellBuffer.hasColorRGB(attributes)) {
+				skip(bytes, 3);
+			}
+			if (CellBuffer.hasBGColorRGB(attributes)) {
+				skip(bytes, 3);
+			}
+			x += run;
+		}
+	}
+
+	private static int getVarInt(ByteBuffer bytes) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			int b = bytes.get();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed scrollback: a number is too long");
+	}
+
+	private static void skip(ByteBuffer bytes, int length) {
+		if (bytes.remaining() < length) {
+			throw new BufferUnderflowException();
+		}
+		bytes.position(bytes.position() + length);
+	}
+
+	/**
+	 * Adds a row of a cell buffer as the newest row, forgetting the oldest if
+	 * there are already maxRows.
+	 *
+	 * @param cells
+	 * @param y
+	 *            The row of cells to add
+	 */
+	public void addRow(CellBuffer cells, int y) {
+		for (int x = 0; x < columns; x++) {
+			int cell = cells.get(x, y);
+			rowCells[x] = cell;
+			rowColorsRGB[x] = CellBuffer.hasColorRGB(cell) ? cells
+					.getColorRGB(x, y) : 0;
+			rowBGColorsRGB[x] = CellBuffer.hasBGColorRGB(cell) ? cells
+					.getBGColorRGB(x, y) : 0;
+		}
+		int length = encodeRow();
+
+		if (rowCount == maxRows) {
+			removeOldestRow();
+		}
+
+		if (rowCount > 0 && length == lastEncodedLength
+				&& sameAsLastEncoded(length)) {
+			// Share the newest row's bytes
+			addRowStart(rowStarts.get(ringIndex(rowCount - 1)));
+			return;
+		}
+
+		ensureFree(length);
+		addRowStart(head);
+		for (int i = 0; i < length; i++) {
+			data.put(head, encoded[i]);
+			head = next(head);
+		}
+		System.arraycopy(encoded, 0, lastEncoded, 0, length);
+		lastEncodedLength = length;
+	}
+
+	/**
+	 * Copies a row into arrays laid out as in a ScreenSnapshot, with the colors
+	 * of every cell as opaque ARGB, as CellBuffer.copyRow does. The row is not
+	 * range checked.
+	 *
+	 * @param row
+	 *            0 for the oldest row kept
+	 * @param destCells
+	 * @param destColorsARGB
+	 * @param destBGColorsARGB
+	 * @param destOffset
+	 *            Where in the arrays to put the first cell of the row
+	 * @return the number of blinking cells in the row
+	 */
+	public int copyRow(int row, int[] destCells, int[] destColorsARGB,
+			int[] destBGColorsARGB, int destOffset) {
+		decodeRow(row);
+
+		int blinking = 0;
+		System.arraycopy(rowCells, 0, destCells, destOffset, columns);
+		for (int x = 0; x < columns; x++) {
+			int cell = rowCells[x];
+			if (CellBuffer.hasColorRGB(cell)) {
+				destColorsARGB[destOffset + x] = 0xFF000000 | rowColorsRGB[x];
+			} else {
+				destColorsARGB[destOffset + x] = Palette.toARGB(CellBuffer
+						.colorOf(cell));
+			}
+			if (CellBuffer.hasBGColorRGB(cell)) {
+				destBGColorsARGB[destOffset + x] = 0xFF000000 | rowBGColorsRGB[x];
+			} else {
+				destBGColorsARGB[destOffset + x] = Palette.toARGB(CellBuffer
+						.bgColorOf(cell));
+			}
+			if (CellBuffer.isBlinking(cell)) {
+				blinking++;
+			}
+		}
+		return blinking;
+	}
+
+	/**
+	 * Copies the characters of a row, reading them straight from its
+	 * encoding without decoding its attributes. The row is not range checked.
+	 *
+	 * @param row
+	 *            0 for the oldest row kept
+	 * @param dest
+	 *            Receives a character for each column
+	 */
+	public void copyGlyphs(int row, int[] dest) {
+		readPosition = rowStarts.get(ringIndex(row));
+		boolean wide = (readByte() & WIDE_GLYPHS) != 0;
+		int stored = readVarInt();
+		for (int x = 0; x < stored; x++) {
+			int glyph = readByte();
+			if (wide) {
+				glyph = glyph << 8 | readByte();
+			}
+			dest[x] = glyph;
+		}
+		for (int x = stored; x < columns; x++) {
+			dest[x] = dest[stored - 1];
+		}
+	}
+
+	/**
+	 * Encodes the row in rowCells and its RGB colors into encoded.
+	 *
+	 * @return the length of the encoding
+	 */
+	private int encodeRow() {
+		// Leave out the cells at the end that are the same as the last
+		int stored = columns;
+		while (stored > 1 && sameCell(stored - 2, columns - 1)) {
+			stored--;
+		}
+
+		boolean wide = false;
+		for (int x = 0; x < stored; x++) {
+			if (CellBuffer.glyphOf(rowCells[x]) > 0xFF) {
+				wide = true;
+				break;
+			}
+		}
+
+		int length = 0;
+		encoded[length++] = (byte) (wide ? WIDE_GLYPHS : 0);
+		length = putVarInt(stored, length);
+		for (int x = 0; x < stored; x++) {
+			int glyph = CellBuffer.glyphOf(rowCells[x]);
+			if (wide) {
+				encoded[length++] = (byte) (glyph >>> 8);
+			}
+			encoded[length++] = (byte) glyph;
+		}
+
+		// Runs of cells with the same attributes
+		int x = 0;
+		while (x < stored) {
+			int runEnd = x + 1;
+			while (runEnd < stored && sameAttributes(runEnd, x)) {
+				runEnd++;
+			}
+			int cell = rowCells[x];
+			length = putVarInt(runEnd - x, length);
+			length = putVarInt(cell >>> CellBuffer.FG_SHIFT, length);
+			if (CellBuffer.hasColorRGB(cell)) {
+				length = putRGB(rowColorsRGB[x], length);
+			}
+			if (CellBuffer.hasBGColorRGB(cell)) {
+				length = putRGB(rowBGColorsRGB[x], length);
+			}
+			x = runEnd;
+		}
+		return length;
+	}
+
+	/**
+	 * Decodes a row into rowCells and its RGB colors.
+	 */
+	private void decodeRow(int row) {
+		readPosition = rowStarts.get(ringIndex(row));
+		boolean wide = (readByte() & WIDE_GLYPHS) != 0;
+		int stored = readVarInt();
+		for (int x = 0; x < stored; x++) {
+			int glyph = readByte();
+			if (wide) {
+				glyph = glyph << 8 | readByte();
+			}
+			rowCells[x] = glyph;
+		}
+
+		int x = 0;
+		while (x < stored) {
+			int runEnd = x + readVarInt();
+			int attributes = readVarInt() << CellBuffer.FG_SHIFT;
+			int colorRGB = 0;
+			int bgColorRGB = 0;
+			if (CellBuffer.hasColorRGB(attributes)) {
+				colorRGB = readRGB();
+			}
+			if (CellBuffer.hasBGColorRGB(attributes)) {
+				bgColorRGB = readRGB();
+			}
+			for (; x < runEnd; x++) {
+				rowCells[x] |= attributes;
+				rowColorsRGB[x] = colorRGB;
+				rowBGColorsRGB[x] = bgColorRGB;
+			}
+		}
+
+		// The cells left out are the same as the last one stored
+		for (; x < columns; x++) {
+			rowCells[x] = rowCells[stored - 1];
+			rowColorsRGB[x] = rowColorsRGB[stored - 1];
+			rowBGColorsRGB[x] = rowBGColorsRGB[stored - 1];
+		}
+	}
+
+	private boolean sameCell(int x, int otherX) {
+		return rowCells[x] == rowCells[otherX] && sameAttributes(x, otherX);
+	}
+
+	private boolean sameAttributes(int x, int otherX) {
+		int cell = rowCells[x];
+		if ((cell & ~CellBuffer.GLYPH_MASK) != (rowCells[otherX] & ~CellBuffer.GLYPH_MASK)) {
+			return false;
+		}
+		return (!CellBuffer.hasColorRGB(cell) || rowColorsRGB[x] == rowColorsRGB[otherX])
+				&& (!CellBuffer.hasBGColorRGB(cell) || rowBGColorsRGB[x] == rowBGColorsRGB[otherX]);
+	}
+
+	private boolean sameAsLastEncoded(int length) {
+		for (int i = 0; i < length; i++) {
+			if (encoded[i] != lastEncoded[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private int putVarInt(int value, int length) {
+		while ((value & ~0x7F) != 0) {
+			encoded[length++] = (byte) (value & 0x7F | 0x80);
+			value >>>= 7;
+		}
+		encoded[length++] = (byte) value;
+		return length;
+	}
+
+	private int putRGB(int rgb, int length) {
+		encoded[length++] = (byte) (rgb >>> 16);
+		encoded[length++] = (byte) (rgb >>> 8);
+		encoded[length++] = (byte) rgb;
+		return length;
+	}
+
+	private int readByte() {
+		int b = data.get(readPosition) & 0xFF;
+		readPosition = next(readPosition);
+		return b;
+	}
+
+	private int readVarInt() {
+		int value = 0;
+		int shift = 0;
+		int b;
+		do {
+			b = readByte();
+			value |= (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return value;
+	}
+
+	private int readRGB() {
+		return readByte() << 16 | readByte() << 8 | readByte();
+	}
+
+	private int next(int position) {
+		position++;
+		return position == data.capacity() ? 0 : position;
+	}
+
+	private int ringIndex(int row) {
+		int i = firstRow + row;
+		return i >= rowStarts.capacity() ? i - rowStarts.capacity() : i;
+	}
+
+	private int usedBytes() {
+		int used = head - tail;
+		return used < 0 ? used + data.capacity() : used;
+	}
+
+	private void removeOldestRow() {
+		firstRow = ringIndex(1);
+		rowCount--;
+		if (rowCount == 0) {
+			tail = head;
+			lastEncodedLength = 0;
+		} else {
+			tail = rowStarts.get(firstRow);
+		}
+	}
+
+	private void addRowStart(int start) {
+		if (rowCount == rowStarts.capacity()) {
+			// Grow the ring, unwrapping it
+			IntBuffer grown = allocateInts((int) Math.min(maxRows,
+					2L * rowStarts.capacity()));
+			for (int row = 0; row < rowCount; row++) {
+				grown.put(row, rowStarts.get(ringIndex(row)));
+			}
+			rowStarts = grown;
+			firstRow = 0;
+		}
+		rowStarts.put(ringIndex(rowCount), start);
+		rowCount++;
+	}
+
+	/**
+	 * Makes room in data for the given number of bytes, growing it if need
+	 * be.
+	 */
+	private void ensureFree(int length) {
+		int used = usedBytes();
+		if (data.capacity() - used > length) {
+			return;
+		}
+
+		// Grow the ring, unwrapping it
+		int capacity = Math.max(data.capacity() * 2, used + length + 1);
+		ByteBuffer grown = allocate(capacity);
+		for (int i = 0, position = tail; i < used; i++, position = next(position)) {
+			grown.put(i, data.get(position));
+		}
+		for (int row = 0; row < rowCount; row++) {
+			int i = ringIndex(row);
+			int start = rowStarts.get(i) - tail;
+			rowStarts.put(i, start < 0 ? start + data.capacity() : start);
+		}
+		data = grown;
+		tail = 0;
+		head = used;
+	}
+
+	private ByteBuffer allocate(int capacity) {
+		return offHeap ? ByteBuffer.allocateDirect(capacity) : ByteBuffer
+				.allocate(capacity);
+	}
+
+	private IntBuffer allocateInts(int capacity) {
+		if (offHeap) {
+			return ByteBuffer.allocateDirect(4 * capacity)
+					.order(ByteOrder.nativeOrder()).asIntBuffer();
+		}
+		return IntBuffer.allocate(capacity);
+	}
+}
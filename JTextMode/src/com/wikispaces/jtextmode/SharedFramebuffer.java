@@ -0,0 +1,279 @@
+/**
+ *
+ */
+package com.wikispaces.jtextmode;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shares each frame a terminal renders with other processes on the same
+ * machine, Java or not, through a memory-mapped file: the rendered pixels and
+ * the cells they were drawn from, with a generation count that goes up with
+ * every frame, carrying on from the count already in the file. Readers map
+ * the same file and read frames straight out of memory, with no sockets or
+ * encoding between them.<br>
+ * <br>
+ * The file holds, in the machine's native byte order:
+ *
+ * <pre>
+ * offset  size
+ *      0     4  MAGIC, which reads wrongly in the other byte order
+ *      4     4  FORMAT
+ *      8     8  generation: odd while a frame is being written, even once
+ *               it has been
+ *     16     4  width of the frame in pixels
+ *     20     4  height
+ *     24     4  columns of cells
+ *     28     4  rows
+ *     32     4  width of a cell in pixels
+ *     36     4  height
+ *     40     4  cursor x, in cells
+ *     44     4  cursor y, or -1 if it is out of view
+ *     48    16  x, y, width and height of the pixels changed by the last
+ *               frame
+ *     64        the pixels as ARGB ints, row by row; then the cells packed
+ *               as by CellBuffer.pack, row by row; then their foreground and
+ *               background colors as ARGB ints
+ * </pre>
+ *
+ * To read a whole frame, read the generation, waiting while it is odd; read
+ * the frame; then read the generation again, and read the frame again if it
+ * has changed. The writer fences its writes so that the odd generation is
+ * written before the frame and the even one after it; readers need to fence
+ * their reads of the frame between the two generations the same way. A
+ * reader that has seen the generation before it only needs the pixels in the
+ * changed rectangle, if the generation is just two more. The size of the
+ * frame changes with the code page, and the file grows to fit.<br>
+ * <br>
+ * The frame is written as the terminal renders: when a JTextModeComponent
+ * paints, or when an OffscreenTerminal is rendered. If the file can't be
+ * written, frames stop being written to it and getError says why.
+ */
+public class SharedFramebuffer implements Closeable {
+	public static final int MAGIC = 0x4A544D46;
+	public static final int FORMAT = 1;
+	public static final int HEADER_SIZE = 64;
+
+	// Offsets into the header
+	private static final int GENERATION = 8;
+	private static final int SIZES = 16;
+
+	private final TextScreen screen;
+	private final File file;
+	private final RandomAccessFile randomAccessFile;
+	private final FileChannel channel;
+
+	/**
+	 * The file mapped, or null until the first frame.
+	 */
+	private MappedByteBuffer buffer;
+	private IntBuffer ints;
+	private int width;
+	private int height;
+
+	private long generation = 0;
+
+	/**
+	 * Fences the writes to the file, as Java 6 can't fence the writes to a
+	 * MappedByteBuffer themselves. Each increment is a volatile read and
+	 * write at once, which no write to the file before it can be moved after,
+	 * nor any after it before.
+	 */
+	private final AtomicLong fence = new AtomicLong();
+	private boolean closed = false;
+	private IOException error;
+
+	/**
+	 * Starts sharing a terminal's frames through a file, creating it if need
+	 * be. The whole screen is rendered into it with the next frame. If the
+	 * file already holds frames, the generation carries on from theirs, so
+	 * that readers still watching it see the next frame as newer.
+	 *
+	 * @param terminal
+	 *            A terminal from this package, not already sharing its frames
+	 * @param file
+	 * @throws IOException
+	 *             If the file can't be opened to read and write
+	 * @throws IllegalStateException
+	 *             If the terminal is already sharing its frames
+	 */
+	public SharedFramebuffer(Terminal terminal, File file) throws IOException {
+		this.screen = TextScreen.of(terminal);
+		this.file = file;
+		randomAccessFile = new RandomAccessFile(file, "rw");
+		channel = randomAccessFile.getChannel();
+		try {
+			generation = readGeneration();
+			screen.setFrameOutput(this);
+		} catch (IOException e) {
+			randomAccessFile.close();
+			throw e;
+		} catch (IllegalStateException e) {
+			randomAccessFile.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return The generation of the last frame in the file, or 0 if it holds
+	 *         none. If a frame was left half written, the generation it would
+	 *         have had.
+	 */
+	private long readGeneration() throws IOException {
+		if (channel.size() < HEADER_SIZE) {
+			return 0;
+		}
+		ByteBuffer header = ByteBuffer.allocate(GENERATION + 8);
+		header.order(ByteOrder.nativeOrder());
+		while (header.hasRemaining()) {
+			if (channel.read(header, header.position()) < 0) {
+				return 0;
+			}
+		}
+		if (header.getInt(0) != MAGIC || header.getInt(4) != FORMAT) {
+			return 0;
+		}
+		long last = header.getLong(GENERATION);
+		return last + (last & 1);
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return The generation of the last frame written: two for each frame
+	 */
+	public synchronized long getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * Stops sharing frames and closes the file. The file is left as it is,
+	 * holding the last frame.
+	 */
+	@Override
+	public void close() throws IOException {
+		screen.setFrameOutput(null);
+		synchronized (this) {
+			closed = true;
+			buffer = null;
+			ints = null;
+			randomAccessFile.close();
+		}
+	}
+
+	/**
+	 * @return The error that stopped frames being written to the file, or
+	 *         null if there has been none
+	 */
+	public synchronized IOException getError() {
+		return error;
+	}
+
+	/**
+	 * Writes a frame just rendered into the file, unless nothing in it has
+	 * changed. Called by the renderer.
+	 *
+	 * @param snapshot
+	 *            The snapshot rendered
+	 * @param pixels
+	 *            The frameBuffer
+	 * @param charWidth
+	 * @param charHeight
+	 * @param left
+	 *            The cells drawn differently from the last frame, empty if
+	 *            none were
+	 * @param top
+	 * @param right
+	 * @param bottom
+	 * @param all
+	 *            Whether every row may have changed, such as when the screen
+	 *            scrolled
+	 */
+	synchronized void frameRendered(ScreenSnapshot snapshot, int[] pixels,
+			int charWidth, int charHeight, int left, int top, int right,
+			int bottom, boolean all) {
+		if (closed || error != null) {
+			return;
+		}
+		int columns = snapshot.columns;
+		int rows = snapshot.rows;
+		int frameWidth = columns * charWidth;
+		int frameHeight = rows * charHeight;
+		if (buffer == null || frameWidth != width || frameHeight != height) {
+			long size = HEADER_SIZE + 4L * frameWidth * frameHeight + 12L
+					* columns * rows;
+			try {
+				buffer = channel.map(MapMode.READ_WRITE, 0, size);
+			} catch (IOException e) {
+				error = e;
+				return;
+			}
+			buffer.order(ByteOrder.nativeOrder());
+			ints = buffer.asIntBuffer();
+			width = frameWidth;
+			height = frameHeight;
+			// Every reader has to start again
+			all = true;
+		}
+		if (all) {
+			left = 0;
+			top = 0;
+			right = columns;
+			bottom = rows;
+		} else if (left >= right || top >= bottom) {
+			return;
+		}
+
+		generation++;
+		buffer.putLong(GENERATION, generation);
+		fence.incrementAndGet();
+
+		buffer.putInt(0, MAGIC);
+		buffer.putInt(4, FORMAT);
+		buffer.putInt(SIZES, width);
+		buffer.putInt(SIZES + 4, height);
+		buffer.putInt(SIZES + 8, columns);
+		buffer.putInt(SIZES + 12, rows);
+		buffer.putInt(SIZES + 16, charWidth);
+		buffer.putInt(SIZES + 20, charHeight);
+		buffer.putInt(SIZES + 24, snapshot.cursorX);
+		buffer.putInt(SIZES + 28, snapshot.cursorY);
+		buffer.putInt(SIZES + 32, left * charWidth);
+		buffer.putInt(SIZES + 36, top * charHeight);
+		buffer.putInt(SIZES + 40, (right - left) * charWidth);
+		buffer.putInt(SIZES + 44, (bottom - top) * charHeight);
+
+		// The rows of pixels and cells changed, in bulk
+		int pixelsFrom = top * charHeight * width;
+		int pixelsTo = bottom * charHeight * width;
+		ints.position(HEADER_SIZE / 4 + pixelsFrom);
+		ints.put(pixels, pixelsFrom, pixelsTo - pixelsFrom);
+
+		int cells = columns * rows;
+		int cellsFrom = top * columns;
+		int cellsLength = (bottom - top) * columns;
+		int cellsStart = HEADER_SIZE / 4 + width * height;
+		ints.position(cellsStart + cellsFrom);
+		ints.put(snapshot.cells, cellsFrom, cellsLength);
+		ints.position(cellsStart + cells + cellsFrom);
+		ints.put(snapshot.colorsARGB, cellsFrom, cellsLength);
+		ints.position(cellsStart + 2 * cells + cellsFrom);
+		ints.put(snapshot.bgColorsARGB, cellsFrom, cellsLength);
+
+		fence.incrementAndGet();
+		generation++;
+		buffer.putLong(GENERATION, generation);
+	}
+}
@@ -0,0 +1,257 @@
+/**
+ *
+ */
+package com.wikispaces.jtextmode;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Output waiting to be drawn on a terminal by TerminalOutputStream or
+ * TerminalWriter, already turned into code page characters. Output is drawn
+ * in batches, each one update of the terminal and so one repaint: when the
+ * buffer fills, and otherwise at most once per flush interval, however often
+ * it is flushed. Output that is never flushed is drawn within the flush
+ * interval anyway.<br>
+ * <br>
+ * Callers call beginUpdate, which takes the terminal's lock, and only then
+ * synchronize on the buffer, as the flush thread does. Taken the other way
+ * round, the two locks could deadlock with a thread writing output while in
+ * an update of its own.
+ */
+class TerminalOutputBuffer {
+	public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+	/**
+	 * About one frame at 60 frames a second.
+	 */
+	public static final int DEFAULT_FLUSH_INTERVAL = 16;
+
+	/**
+	 * Starts drawing output left waiting for the flush interval to pass, for
+	 * all buffers. It only hands each draw to a drawing thread, so a terminal
+	 * held up drawing can't hold up the others.
+	 */
+	private static final ScheduledExecutorService timer = Executors
+			.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "JTextMode Output Timer");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	/**
+	 * Draws the output the timer hands it, a thread for each terminal being
+	 * drawn on at once. Threads left idle end after a minute.
+	 */
+	private static final ExecutorService drawers = Executors
+			.newCachedThreadPool(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "JTextMode Output Thread");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	private final AnsiParser parser;
+	private final ExtendedTerminal terminal;
+
+	private final byte[] buffer;
+	private int length = 0;
+
+	private int flushInterval = DEFAULT_FLUSH_INTERVAL;
+
+	/**
+	 * When output was last drawn, from System.nanoTime().
+	 */
+	private long lastDrawTime = System.nanoTime()
+			- TimeUnit.MILLISECONDS.toNanos(DEFAULT_FLUSH_INTERVAL);
+
+	private ScheduledFuture<?> scheduledDraw = null;
+
+	private boolean closed = false;
+
+	private final Runnable drawTask = new Runnable() {
+		@Override
+		public void run() {
+			beginUpdate();
+			try {
+				synchronized (TerminalOutputBuffer.this) {
+					scheduledDraw = null;
+					draw();
+				}
+			} finally {
+				endUpdate();
+			}
+		}
+	};
+
+	private final Runnable startDrawTask = new Runnable() {
+		@Override
+		public void run() {
+			drawers.execute(drawTask);
+		}
+	};
+
+	/**
+	 * @param parser
+	 *            Draws the output on the terminal
+	 * @param bufferSize
+	 *            The most bytes of output that wait to be drawn
+	 */
+	public TerminalOutputBuffer(AnsiParser parser, int bufferSize) {
+		if (bufferSize <= 0) {
+			throw new IllegalArgumentException("Buffer size " + bufferSize
+					+ " is not positive");
+		}
+		this.parser = parser;
+		terminal = parser.getTerminal();
+		buffer = new byte[bufferSize];
+	}
+
+	public AnsiParser getParser() {
+		return parser;
+	}
+
+	/**
+	 * Takes the terminal's lock, which must be held before synchronizing on
+	 * the buffer.
+	 */
+	public void beginUpdate() {
+		terminal.beginUpdate();
+	}
+
+	public void endUpdate() {
+		terminal.endUpdate();
+	}
+
+	public synchronized int getFlushInterval() {
+		return flushInterval;
+	}
+
+	public synchronized void setFlushInterval(int flushInterval) {
+		if (flushInterval < 0) {
+			throw new IllegalArgumentException("Flush interval "
+					+ flushInterval + " is negative");
+		}
+		this.flushInterval = flushInterval;
+	}
+
+	/**
+	 * @throws IOException
+	 *             if the buffer has been closed
+	 */
+	public void ensureOpen() throws IOException {
+		if (closed) {
+			throw new IOException("Stream closed");
+		}
+	}
+
+	/**
+	 * Adds a code page character to the output, drawing the output first if
+	 * the buffer is full.
+	 *
+	 * @param c
+	 */
+	public void put(int c) {
+		if (length == buffer.length) {
+			draw();
+		}
+		buffer[length++] = (byte) c;
+	}
+
+	/**
+	 * Adds code page characters to the output, drawing the output as the
+	 * buffer fills. Runs at least as long as the buffer are drawn straight from
+	 * data, without being copied.
+	 *
+	 * @param data
+	 * @param offset
+	 * @param count
+	 */
+	public void put(byte[] data, int offset, int count) {
+		while (count > 0) {
+			if (length == 0 && count >= buffer.length) {
+				parser.parse(data, offset, count);
+				lastDrawTime = System.nanoTime();
+				return;
+			}
+
+			int copied = Math.min(count, buffer.length - length);
+			System.arraycopy(data, offset, buffer, length, copied);
+			length += copied;
+			offset += copied;
+			count -= copied;
+			if (length == buffer.length) {
+				draw();
+			}
+		}
+	}
+
+	/**
+	 * Makes sure output added since the last draw gets drawn, within the
+	 * flush interval. Called after each write.
+	 */
+	public void written() {
+		if (length > 0 && scheduledDraw == null) {
+			scheduleDraw();
+		}
+	}
+
+	/**
+	 * Draws the output now if the flush interval has passed since it was last
+	 * drawn; otherwise it is drawn once it has.
+	 */
+	public void flush() {
+		if (length == 0) {
+			return;
+		}
+		if (System.nanoTime() - lastDrawTime >= TimeUnit.MILLISECONDS
+				.toNanos(flushInterval)) {
+			draw();
+		} else if (scheduledDraw == null) {
+			scheduleDraw();
+		}
+	}
+
+	/**
+	 * Draws any output still waiting, and refuses any more.
+	 */
+	public void close() {
+		if (!closed) {
+			draw();
+			closed = true;
+		}
+	}
+
+	private void scheduleDraw() {
+		long delay = lastDrawTime
+				+ TimeUnit.MILLISECONDS.toNanos(flushInterval)
+				- System.nanoTime();
+		scheduledDraw = timer.schedule(startDrawTask, Math.max(delay, 0),
+				TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Draws the output waiting in the buffer on the terminal, as one update.
+	 */
+	private void draw() {
+		if (scheduledDraw != null) {
+			scheduledDraw.cancel(false);
+			scheduledDraw = null;
+		}
+		if (length > 0) {
+			parser.parse(buffer, 0, length);
+			length = 0;
+		}
+		lastDrawTime = System.nanoTime();
+	}
+}
@@ -0,0 +1,226 @@
+/**
+ *
+ */
+package com.wikispaces.jtextmode;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An OutputStream that draws what is written to it on a terminal, escape
+ * sequences and all (see AnsiParser), so that System.out or the output of a
+ * Process can be shown on the terminal:
+ *
+ * <pre>
+ * System.setOut(new PrintStream(new TerminalOutputStream(terminal, true), true,
+ * 		&quot;UTF-8&quot;));
+ * </pre>
+ *
+ * Output is buffered and drawn in batches, each as one update of the terminal
+ * with one repaint: when the buffer fills, and otherwise at most once per
+ * flush interval however often the stream is flushed. Output not flushed is
+ * drawn within the flush interval anyway, and flush returns without waiting
+ * for it. Writers are held up while the terminal is drawn, so a fast
+ * writer is slowed to the pace the terminal can keep up with.<br>
+ * <br>
+ * Bytes are either characters on the terminal's code page already, or UTF-8,
+ * decoded as they arrive with characters split between writes carried over.
+ * Decoded characters not on code page 437 are drawn as '?'.
+ */
+public class TerminalOutputStream extends OutputStream {
+	private final TerminalOutputBuffer output;
+
+	private final boolean utf8;
+
+	// The UTF-8 character being decoded
+	private int codePoint = 0;
+	private int continuationBytes = 0;
+	private int minCodePoint = 0;
+
+	/**
+	 * Creates a stream writing code page characters to a terminal.
+	 *
+	 * @param terminal
+	 */
+	public TerminalOutputStream(ExtendedTerminal terminal) {
+		this(terminal, false);
+	}
+
+	/**
+	 * @param terminal
+	 * @param utf8
+	 *            true if bytes written are UTF-8, false if they are code page
+	 *            characters
+	 */
+	public TerminalOutputStream(ExtendedTerminal terminal, boolean utf8) {
+		this(new AnsiParser(terminal), utf8,
+				TerminalOutputBuffer.DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * @param parser
+	 *            Draws the output; it must not be given output any other way
+	 *            while the stream is open
+	 * @param utf8
+	 *            true if bytes written are UTF-8, false if they are code page
+	 *            characters
+	 * @param bufferSize
+	 *            The most bytes of output that wait to be drawn
+	 */
+	public TerminalOutputStream(AnsiParser parser, boolean utf8, int bufferSize) {
+		output = new TerminalOutputBuffer(parser, bufferSize);
+		this.utf8 = utf8;
+	}
+
+	public AnsiParser getParser() {
+		return output.getParser();
+	}
+
+	/**
+	 * @return The shortest time between two batches of output being drawn,
+	 *         in milliseconds
+	 */
+	public int getFlushInterval() {
+		return output.getFlushInterval();
+	}
+
+	/**
+	 * Sets the shortest time between two batches of output being drawn,
+	 * unless the buffer fills first. Zero draws output as soon as the stream
+	 * is flushed.
+	 *
+	 * @param flushInterval
+	 *            In milliseconds. Default is 16, about one frame at 60 frames
+	 *            a second.
+	 */
+	public void setFlushInterval(int flushInterval) {
+		output.setFlushInterval(flushInterval);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		output.beginUpdate();
+		try {
+			synchronized (output) {
+				output.ensureOpen();
+				if (utf8) {
+					decode(b & 0xFF);
+				} else {
+					output.put(b);
+				}
+				output.written();
+			}
+		} finally {
+			output.endUpdate();
+		}
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (off < 0 || len < 0 || off + len > b.length) {
+			throw new IndexOutOfBoundsException("offset " + off + ", length "
+					+ len + ", array length " + b.length);
+		}
+
+		output.beginUpdate();
+		try {
+			synchronized (output) {
+				output.ensureOpen();
+				if (utf8) {
+					for (int i = off; i < off + len; i++) {
+						decode(b[i] & 0xFF);
+					}
+				} else {
+					output.put(b, off, len);
+				}
+				output.written();
+			}
+		} finally {
+			output.endUpdate();
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		output.beginUpdate();
+		try {
+			synchronized (output) {
+				output.flush();
+			}
+		} finally {
+			output.endUpdate();
+		}
+	}
+
+	/**
+	 * Draws any output still waiting. A character left unfinished is drawn as
+	 * '?'.
+	 */
+	@Override
+	public void close() throws IOException {
+		output.beginUpdate();
+		try {
+			synchronized (output) {
+				if (continuationBytes > 0) {
+					output.put(CodePage437.REPLACEMENT);
+					continuationBytes = 0;
+				}
+				output.close();
+			}
+		} finally {
+			output.endUpdate();
+		}
+	}
+
+	/**
+	 * Decodes a byte of UTF-8, putting the character in the output once it is
+	 * complete. Malformed characters are put as '?'.
+	 */
+	private void decode(int b) {
+		if (b < 0x80 && continuationBytes == 0) {
+			output.put(b);
+			return;
+		}
+
+		if (continuationBytes > 0) {
+			if ((b & 0xC0) == 0x80) {
+				codePoint = codePoint << 6 | (b & 0x3F);
+				if (--continuationBytes == 0) {
+					if (codePoint < minCodePoint
+							|| (codePoint >= 0xD800 && codePoint <= 0xDFFF)) {
+						// Overlong, or a surrogate
+						output.put(CodePage437.REPLACEMENT);
+					} else {
+						output.put(CodePage437.fromUnicode(codePoint));
+					}
+				}
+				return;
+			}
+
+			// Cut short: the byte starts something new
+			output.put(CodePage437.REPLACEMENT);
+			continuationBytes = 0;
+			if (b < 0x80) {
+				output.put(b);
+				return;
+			}
+		}
+
+		if (b >= 0xC2 && b <= 0xDF) {
+			codePoint = b & 0x1F;
+			continuationBytes = 1;
+			minCodePoint = 0x80;
+		} else if (b >= 0xE0 && b <= 0xEF) {
+			codePoint = b & 0x0F;
+			continuationBytes = 2;
+			minCodePoint = 0x800;
+		} else if (b >= 0xF0 && b <= 0xF4) {
+			codePoint = b & 0x07;
+			continuationBytes = 3;
+			minCodePoint = 0x10000;
+		} else {
+			// A stray continuation byte, or one never used
+			output.put(CodePage437.REPLACEMENT);
+		}
+	}
+}
@@ -0,0 +1,167 @@
+/**
+ *
+ */
+package com.wikispaces.jtextmode;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * A Writer that draws what is written to it on a terminal, escape sequences
+ * and all (see AnsiParser). Characters are Unicode, drawn as their place on
+ * code page 437, or as '?' if they have none.<br>
+ * <br>
+ * Output is buffered and drawn in batches, each as one update of the terminal
+ * with one repaint: when the buffer fills, and otherwise at most once per
+ * flush interval however often the writer is flushed. Output not flushed is
+ * drawn within the flush interval anyway, and flush returns without waiting
+ * for it.
+ */
+public class TerminalWriter extends Writer {
+	private final TerminalOutputBuffer output;
+
+	/**
+	 * Whether the last character written was the first half of a surrogate
+	 * pair, already put as '?'.
+	 */
+	private boolean highSurrogate = false;
+
+	public TerminalWriter(ExtendedTerminal terminal) {
+		this(new AnsiParser(terminal), TerminalOutputBuffer.DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * @param parser
+	 *            Draws the output; it must not be given output any other way
+	 *            while the writer is open
+	 * @param bufferSize
+	 *            The most characters of output that wait to be drawn
+	 */
+	public TerminalWriter(AnsiParser parser, int bufferSize) {
+		output = new TerminalOutputBuffer(parser, bufferSize);
+	}
+
+	public AnsiParser getParser() {
+		return output.getParser();
+	}
+
+	/**
+	 * @return The shortest time between two batches of output being drawn,
+	 *         in milliseconds
+	 */
+	public int getFlushInterval() {
+		return output.getFlushInterval();
+	}
+
+	/**
+	 * Sets the shortest time between two batches of output being drawn,
+	 * unless the buffer fills first. Zero draws output as soon as the writer
+	 * is flushed.
+	 *
+	 * @param flushInterval
+	 *            In milliseconds. Default is 16, about one frame at 60 frames
+	 *            a second.
+	 */
+	public void setFlushInterval(int flushInterval) {
+		output.setFlushInterval(flushInterval);
+	}
+
+	@Override
+	public void write(int c) throws IOException {
+		output.beginUpdate();
+		try {
+			synchronized (output) {
+				output.ensureOpen();
+				put((char) c);
+				output.written();
+			}
+		} finally {
+			output.endUpdate();
+		}
+	}
+
+	@Override
+	public void write(char[] cbuf, int off, int len) throws IOException {
+		if (off < 0 || len < 0 || off + len > cbuf.length) {
+			throw new IndexOutOfBoundsException("offset " + off + ", length "
+					+ len + ", array length " + cbuf.length);
+		}
+
+		output.beginUpdate();
+		try {
+			synchronized (output) {
+				output.ensureOpen();
+				for (int i = off; i < off + len; i++) {
+					put(cbuf[i]);
+				}
+				output.written();
+			}
+		} finally {
+			output.endUpdate();
+		}
+	}
+
+	@Override
+	public void write(String str, int off, int len) throws IOException {
+		if (off < 0 || len < 0 || off + len > str.length()) {
+			throw new IndexOutOfBoundsException("offset " + off + ", length "
+					+ len + ", string length " + str.length());
+		}
+
+		output.beginUpdate();
+		try {
+			synchronized (output) {
+				output.ensureOpen();
+				for (int i = off; i < off + len; i++) {
+					put(str.charAt(i));
+				}
+				output.written();
+			}
+		} finally {
+			output.endUpdate();
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		output.beginUpdate();
+		try {
+			synchronized (output) {
+				output.flush();
+			}
+		} finally {
+			output.endUpdate();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		output.beginUpdate();
+		try {
+			synchronized (output) {
+				output.close();
+			}
+		} finally {
+			output.endUpdate();
+		}
+	}
+
+	private void put(char c) {
+		if (c < 0x80) {
+			output.put(c);
+			highSurrogate = false;
+		} else if (Character.isHighSurrogate(c)) {
+			// Nothing outside the basic multilingual plane is on the code page
+			output.put(CodePage437.REPLACEMENT);
+			highSurrogate = true;
+		} else if (Character.isLowSurrogate(c)) {
+			if (!highSurrogate) {
+				output.put(CodePage437.REPLACEMENT);
+			}
+			highSurrogate = false;
+		} else {
+			output.put(CodePage437.fromUnicode(c));
+			highSurrogate = false;
+		}
+	}
+}
@@ -0,0 +1,62 @@
+/**
+ *
+ */
+package com.wikispaces.jtextmode;
+
+/**
+ * Where text was found on a terminal: a run of characters along one line.<br>
+ * <br>
+ * Lines are numbered from the first row ever scrolled off the top of the
+ * screen, so a match keeps pointing at the same text as more rows scroll
+ * off; the top row of the screen is line ExtendedTerminal.getScreenLine().
+ */
+public class TextMatch {
+	private final long line;
+	private final int column;
+	private final int length;
+
+	public TextMatch(long line, int column, int length) {
+		this.line = line;
+		this.column = column;
+		this.length = length;
+	}
+
+	public long getLine() {
+		return line;
+	}
+
+	/**
+	 * @return the column of the first character matched
+	 */
+	public int getColumn() {
+		return column;
+	}
+
+	/**
+	 * @return the number of characters matched
+	 */
+	public int getLength() {
+		return length;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof TextMatch)) {
+			return false;
+		}
+		TextMatch other = (TextMatch) obj;
+		return line == other.line && column == other.column
+				&& length == other.length;
+	}
+
+	@Override
+	public int hashCode() {
+		return (int) (line ^ (line >>> 32)) * 31 * 31 + column * 31 + length;
+	}
+
+	@Override
+	public String toString() {
+		return "TextMatch[line=" + line + ", column=" + column + ", length="
+				+ length + "]";
+	}
+}
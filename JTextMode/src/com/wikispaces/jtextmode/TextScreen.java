@@ -0,0 +1,2677 @@
+/**
+ *
+ */
+package com.wikispaces.jtextmode;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A text screen and its rendering, independent of any AWT component: the
+ * cells, the cursor and the colors text is written in, plus a framebuffer in
+ * which only the cells that have changed are drawn again. JTextModeComponent
+ * shows one in Swing; OffscreenTerminal renders one to an image.<br>
+ * <br>
+ * Any number of threads may change the screen at once; they take turns on a
+ * lock that only writers hold. At the end of each change the writer publishes
+ * a snapshot of the screen, and render draws the latest snapshot published
+ * without ever taking the lock, so writers never wait for a frame to be drawn
+ * and a frame never shows half of a change. render itself must only be called
+ * from one thread at a time.
+ */
+public class TextScreen {
+	/**
+	 * Told which cells have changed and need to be drawn again, such as to
+	 * request a repaint of them. Called on the thread that changed them, once
+	 * the change has been published for rendering.
+	 */
+	public interface DamageListener {
+		/**
+		 * A rectangle of cells has changed.
+		 */
+		public void cellsDamaged(int x, int y, int width, int height);
+
+		/**
+		 * Every cell on the screen has changed or moved.
+		 */
+		public void screenDamaged();
+	}
+
+	private static final DamageListener NO_DAMAGE_LISTENER = new DamageListener() {
+		@Override
+		public void cellsDamaged(int x, int y, int width, int height) {
+		}
+
+		@Override
+		public void screenDamaged() {
+		}
+	};
+
+	/**
+	 * Set in the exchanged snapshot index when the snapshot there has been
+	 * published since the renderer last took one.
+	 */
+	private static final int FRESH_BIT = 4;
+	private static final int INDEX_MASK = 3;
+
+	/**
+	 * The fewest cells a frame draws for it to be drawn on many threads.
+	 */
+	private static final int PARALLEL_THRESHOLD = 4096;
+
+	/**
+	 * The most lines a search copies out of the scrollback and screen at a
+	 * time, holding the lock, before letting writers back in.
+	 */
+	private static final int SEARCH_BATCH_LINES = 256;
+
+	private static final int DEFAULT_RENDER_THREADS = Math.min(Runtime
+			.getRuntime().availableProcessors(), 8);
+
+	/**
+	 * Draws bands of rows of large frames for all screens, alongside the
+	 * threads rendering them.
+	 */
+	private static final ExecutorService renderExecutor = Executors
+			.newFixedThreadPool(Math.max(DEFAULT_RENDER_THREADS - 1, 1),
+					new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread thread = new Thread(r,
+									"JTextMode Render Worker");
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+
+	/**
+	 * Begins a screen saved by saveState: "JTMS".
+	 */
+	private static final int STATE_MAGIC = 0x4A544D53;
+	private static final int STATE_FORMAT = 1;
+
+	/**
+	 * The bytes of a saved screen before its cells.
+	 */
+	private static final int STATE_HEADER_SIZE = 72;
+
+	/**
+	 * The size of the text screen in characters.
+	 */
+	private final int rows;
+	private final int columns;
+
+	/**
+	 * Held by any thread changing or reading the screen below; never by the
+	 * renderer.
+	 */
+	private final ReentrantLock writeLock = new ReentrantLock();
+
+	/**
+	 * The position of the cursor on the text screen.
+	 */
+	private int cursorX;
+	private int cursorY;
+
+	/**
+	 * The character used to draw the cursor
+	 *
+	 * Default is 95: ASCII underscore
+	 */
+	private int cursorChar = 95;
+
+	/**
+	 * The character used to draw blank space
+	 *
+	 * Default is 32: ASCII space
+	 */
+	private int blankChar = 32;
+
+	/**
+	 * Whether the cursor is rendered
+	 */
+	private final boolean cursorVisible;
+
+	/**
+	 * The characters rendered on the screen with their colors and blinking
+	 * bits.<br>
+	 * <br>
+	 * Note that on a real DOS display, EITHER 8-15 would be valid background
+	 * colors OR blinking could be enabled.
+	 */
+	private final CellBuffer cells;
+
+	/**
+	 * If true, the cursor and blinking characters will be rendered on or
+	 * invisible as the timer has it. Otherwise, such as when you only want to
+	 * redraw the screen occasionally, turn this off to have blinking characters
+	 * always visible.
+	 * */
+	private final boolean blinkingEnabled;
+
+	// The metadata for characters drawn by the cursor
+	private byte currDrawColor = 15;
+	private byte currDrawBGColor = 0;
+	private boolean currDrawBlinking = false;
+
+	// RGB colors for characters drawn by the cursor, or -1 to use the color
+	// indexes above
+	private int currDrawColorRGB = -1;
+	private int currDrawBGColorRGB = -1;
+
+	/**
+	 * The version of the screen being changed now: one more than the version
+	 * last published.
+	 */
+	private long version = 1;
+
+	/**
+	 * The version each row of the screen as shown last changed in. While the
+	 * viewport is scrolled back these are the rows shown, not the rows of
+	 * cells.
+	 */
+	private final long[] rowVersions;
+
+	/**
+	 * The number of rows the screen as shown has scrolled up in total.
+	 */
+	private long scrolledRows = 0;
+
+	/**
+	 * The rows scrolled off the top of the screen, or null if none are kept.
+	 */
+	private Scrollback scrollback = null;
+
+	/**
+	 * How many rows of the scrollback are shown above the screen, which is
+	 * shown that many rows down.
+	 */
+	private int viewportOffset = 0;
+
+	/**
+	 * The number of rows scrolled off the top of the screen in total, kept
+	 * or not: the line number of the top row of the screen.
+	 */
+	private long screenLine = 0;
+
+	/**
+	 * The text shown highlighted, sorted by line then column: each match's
+	 * line, first column and column after the last.
+	 */
+	private long[] highlightLines = new long[0];
+	private int[] highlightStarts = new int[0];
+	private int[] highlightEnds = new int[0];
+
+	/**
+	 * Whether anything has changed since the last snapshot was published.
+	 */
+	private boolean changed = false;
+
+	/**
+	 * The bounds of the cells changed since damage was last reported, and
+	 * whether the whole screen has been.
+	 */
+	private int damageLeft;
+	private int damageTop;
+	private int damageRight;
+	private int damageBottom;
+	private boolean screenDamaged;
+
+	/**
+	 * The three snapshots passed between the writers and the renderer.
+	 * backSnapshot is the writers' to fill, frontSnapshot the renderer's to
+	 * draw, and the index of the third is in exchangedSnapshot, with FRESH_BIT
+	 * set when it is newer than frontSnapshot.
+	 */
+	private final ScreenSnapshot[] snapshots = new ScreenSnapshot[3];
+	private int backSnapshot = 0;
+	private final AtomicInteger exchangedSnapshot = new AtomicInteger(1);
+	private int frontSnapshot = 2;
+
+	/**
+	 * The characters to be drawn on the screen, rasterized from the code page
+	 * image. The default code page: CHARACTER: 9 px wide, 16 px high. IMAGE:
+	 * 256 characters arranged to be 32 wide by 8 high.
+	 */
+	private volatile GlyphAtlas glyphAtlas;
+
+	// Everything below belongs to the renderer
+
+	/**
+	 * The rendered text screen, kept between frames so that only the cells
+	 * which have changed since the last frame need to be drawn again.
+	 */
+	private BufferedImage frameBuffer;
+
+	/**
+	 * The code page the frameBuffer was drawn with.
+	 */
+	private GlyphAtlas renderedAtlas;
+
+	/**
+	 * The cells as they are drawn in the frameBuffer, laid out as in a
+	 * ScreenSnapshot, and the snapshot they were drawn from.
+	 */
+	private final int[] renderedCells;
+	private final int[] renderedColorsARGB;
+	private final int[] renderedBGColorsARGB;
+	private long renderedVersion = -1;
+	private long renderedScrolledRows = 0;
+	private int renderedCursorX;
+	private int renderedCursorY;
+	private int renderedCursorChar;
+	private int renderedBlankChar;
+
+	/**
+	 * One bit per cell on the text screen (index y * columns + x), set for
+	 * the cells to be drawn into the frameBuffer by the frame being rendered.
+	 */
+	private final BitSet dirtyCells = new BitSet();
+
+	/**
+	 * The blink phase the frameBuffer was last drawn in.
+	 */
+	private boolean lastBlinkOnFrame = false;
+
+	/**
+	 * Set while a frame is being drawn, and left set if drawing it failed
+	 * partway, so that the next frame is drawn whole.
+	 */
+	private boolean frameIncomplete = false;
+
+	/**
+	 * The number of cells drawn into the frameBuffer by the last frame.
+	 */
+	private int cellsDrawn = 0;
+
+	/**
+	 * The bounds of the cells drawn by the last frame: left, top, right and
+	 * bottom.
+	 */
+	private final int[] drawBounds = new int[4];
+
+	/**
+	 * The most threads drawing one frame, and the bands of rows they draw.
+	 */
+	private volatile int renderThreads = DEFAULT_RENDER_THREADS;
+	private RenderBand[] renderBands = new RenderBand[0];
+
+	private volatile DamageListener damageListener = NO_DAMAGE_LISTENER;
+
+	/**
+	 * Where each frame rendered is shared with other processes, if anywhere.
+	 */
+	private volatile SharedFramebuffer frameOutput;
+
+	/**
+	 * Creates a new text screen with the settings given and the default code
+	 * page.
+	 *
+	 * @param rows
+	 *            The height of the screen in characters.
+	 * @param columns
+	 *            The width of the screen in characters.
+	 * @param blinkingEnabled
+	 *            Whether blinking characters and the cursor are drawn
+	 *            differently in the blink phase given to render.
+	 * @param showCursor
+	 *            Whether the cursor is shown.
+	 */
+	public TextScreen(int rows, int columns, boolean blinkingEnabled,
+			boolean showCursor) {
+		if (rows <= 0 || columns <= 0) {
+			rows = 1;
+			columns = 1;
+		}
+
+		// Set up the "screen"
+		this.rows = rows;
+		this.columns = columns;
+
+		cursorX = 0;
+		cursorY = 0;
+		cursorVisible = showCursor;
+		damageLeft = columns;
+		damageTop = rows;
+
+		cells = new CellBuffer(columns, rows, CellBuffer.pack(32, 15, 0, false));
+		rowVersions = new long[rows];
+
+		this.blinkingEnabled = blinkingEnabled;
+
+		// Fill every snapshot with the blank screen, the newest waiting to be
+		// rendered
+		for (int i = 0; i < snapshots.length; i++) {
+			snapshots[i] = new ScreenSnapshot(columns, rows);
+			fillSnapshot(snapshots[i], true);
+		}
+		exchangedSnapshot.set(1 | FRESH_BIT);
+		version++;
+
+		renderedCells = new int[columns * rows];
+		renderedColorsARGB = new int[columns * rows];
+		renderedBGColorsARGB = new int[columns * rows];
+
+		// Load default code page
+		try {
+			setCodePage(null, 9, 16, 32, 8);
+		} catch (IOException e1) {
+			e1.printStackTrace();
+		}
+	}
+
+	/**
+	 * Sets what is told when cells change and need to be drawn again.
+	 *
+	 * @param damageListener
+	 *            The listener, or null for none
+	 */
+	public void setDamageListener(DamageListener damageListener) {
+		if (damageListener == null) {
+			damageListener = NO_DAMAGE_LISTENER;
+		}
+		this.damageListener = damageListener;
+	}
+
+	/**
+	 * Loads a "code page" for this text screen: an image with 256 character
+	 * images laid out in a grid used to draw the text on the screen. The
+	 * characters should be black on an opaque white background with no
+	 * anti-aliasing or shades of gray. Redraws the screen when done.
+	 *
+	 * If imageStream is null, the default code page is loaded.
+	 *
+	 * @param imageStream
+	 *            A stream connected to the code page image or null.
+	 * @param charWidth
+	 *            The width of one character in pixels on the grid
+	 * @param charHeight
+	 *            The height of one character in pixels on the grid
+	 * @param pageWidthInChars
+	 *            The width of the grid in characters
+	 * @param pageHeightInChars
+	 *            The height of the grid in characters
+	 * @throws IOException
+	 */
+	public void setCodePage(InputStream imageStream, int charWidth,
+			int charHeight, int pageWidthInChars, int pageHeightInChars)
+			throws IOException {
+		// If no image stream is given, load default code page
+		if (imageStream == null) {
+			imageStream = TextScreen.class
+					.getResourceAsStream("CodePage437-9x16.png");
+		}
+
+		// Load code page image, shared with any other terminal using it. The
+		// renderer redraws everything once it sees the new code page.
+		glyphAtlas = GlyphAtlas.load(imageStream, charWidth, charHeight,
+				pageWidthInChars, pageHeightInChars);
+
+		damageListener.screenDamaged();
+	}
+
+	public void resetCodePage() throws MissingCodePageException {
+		// Load default code page
+		try {
+			setCodePage(null, 9, 16, 32, 8);
+		} catch (IOException e1) {
+			e1.printStackTrace();
+			throw new MissingCodePageException();
+		}
+	}
+
+	/**
+	 * Draws every cell that has changed since the last frame into the
+	 * framebuffer, from the latest snapshot of the screen published. Must not
+	 * be called from more than one thread at a time.
+	 *
+	 * @param blinkOn
+	 *            Whether this frame is in the blink phase where blinking
+	 *            characters are hidden and the cursor is drawn blank. Ignored
+	 *            unless blinking is enabled.
+	 * @param damage
+	 *            If not null, set to the area of the framebuffer that was
+	 *            drawn, in pixels; empty if nothing was.
+	 * @return the number of rows of pixels the framebuffer was shifted up by
+	 *         before drawing, following the screen as it scrolled
+	 */
+	public int render(boolean blinkOn, Rectangle damage) {
+		// Take the latest snapshot published, if there is a newer one
+		if ((exchangedSnapshot.get() & FRESH_BIT) != 0) {
+			frontSnapshot = exchangedSnapshot.getAndSet(frontSnapshot)
+					& INDEX_MASK;
+		}
+		ScreenSnapshot snapshot = snapshots[frontSnapshot];
+		GlyphAtlas atlas = glyphAtlas;
+		int charWidth = atlas.getCharWidth();
+		int charHeight = atlas.getCharHeight();
+
+		boolean blinkOnThisFrame = false;
+		// Decide, if blinking, whether to draw or blank blinking characters
+		if (blinkingEnabled && blinkOn) {
+			blinkOnThisFrame = true;
+		}
+
+		// Create buffered image if the code page has changed: a render of the
+		// text screen
+		boolean redrawAll = false;
+		if (frameBuffer == null || atlas != renderedAtlas) {
+			frameBuffer = new BufferedImage(columns * charWidth, rows
+					* charHeight, BufferedImage.TYPE_INT_ARGB);
+			renderedAtlas = atlas;
+			redrawAll = true;
+		}
+		if (frameIncomplete) {
+			redrawAll = true;
+		}
+		int[] pixels = ((DataBufferInt) frameBuffer.getRaster()
+				.getDataBuffer()).getData();
+		int scanline = columns * charWidth;
+
+		// Move what is already drawn up with the text; the rows uncovered at
+		// the bottom will differ from what was drawn there
+		int scrolledPixelRows = 0;
+		long scrolled = snapshot.scrolledRows - renderedScrolledRows;
+		if (!redrawAll && scrolled >= rows) {
+			redrawAll = true;
+		} else if (!redrawAll && scrolled > 0) {
+			int scrolledCells = (int) scrolled * columns;
+			System.arraycopy(renderedCells, scrolledCells, renderedCells, 0,
+					renderedCells.length - scrolledCells);
+			System.arraycopy(renderedColorsARGB, scrolledCells,
+					renderedColorsARGB, 0, renderedColorsARGB.length
+							- scrolledCells);
+			System.arraycopy(renderedBGColorsARGB, scrolledCells,
+					renderedBGColorsARGB, 0, renderedBGColorsARGB.length
+							- scrolledCells);
+			renderedCursorY -= scrolled;
+
+			scrolledPixelRows = (int) scrolled * charHeight;
+			System.arraycopy(pixels, scrolledPixelRows * scanline, pixels, 0,
+					pixels.length - scrolledPixelRows * scanline);
+
+			// The uncovered rows still show the rows that were there, cursor
+			// and all
+			dirtyCells.set(renderedCells.length - scrolledCells,
+					renderedCells.length);
+		}
+
+		if (redrawAll) {
+			dirtyCells.set(0, columns * rows);
+			System.arraycopy(snapshot.cells, 0, renderedCells, 0,
+					renderedCells.length);
+			System.arraycopy(snapshot.colorsARGB, 0, renderedColorsARGB, 0,
+					renderedColorsARGB.length);
+			System.arraycopy(snapshot.bgColorsARGB, 0, renderedBGColorsARGB,
+					0, renderedBGColorsARGB.length);
+		} else {
+			// Compare the rows changed since the last frame with what was drawn
+			for (int y = 0; y < rows; y++) {
+				if (snapshot.rowVersions[y] <= renderedVersion) {
+					continue;
+				}
+				for (int i = y * columns; i < (y + 1) * columns; i++) {
+					if (snapshot.cells[i] != renderedCells[i]
+							|| snapshot.colorsARGB[i] != renderedColorsARGB[i]
+							|| snapshot.bgColorsARGB[i] != renderedBGColorsARGB[i]) {
+						dirtyCells.set(i);
+						renderedCells[i] = snapshot.cells[i];
+						renderedColorsARGB[i] = snapshot.colorsARGB[i];
+						renderedBGColorsARGB[i] = snapshot.bgColorsARGB[i];
+					}
+				}
+			}
+
+			// Redraw the cursor where it was and where it is if it has moved
+			// or changed
+			if (cursorVisible
+					&& (snapshot.cursorX != renderedCursorX
+							|| snapshot.cursorY != renderedCursorY
+							|| snapshot.cursorChar != renderedCursorChar
+							|| snapshot.blankChar != renderedBlankChar)) {
+				if (renderedCursorY >= 0) {
+					dirtyCells.set(renderedCursorY * columns + renderedCursorX);
+				}
+				if (snapshot.cursorY >= 0) {
+					dirtyCells.set(snapshot.cursorY * columns
+							+ snapshot.cursorX);
+				}
+			}
+
+			// If the blink phase has flipped, blinking characters and the
+			// cursor change appearance
+			if (blinkOnThisFrame != lastBlinkOnFrame) {
+				for (int y = 0; y < rows && snapshot.blinkingCount > 0; y++) {
+					if (snapshot.blinkingInRow[y] == 0) {
+						continue;
+					}
+					for (int i = y * columns; i < (y + 1) * columns; i++) {
+						if (CellBuffer.isBlinking(snapshot.cells[i])) {
+							dirtyCells.set(i);
+						}
+					}
+				}
+				if (cursorVisible && snapshot.cursorY >= 0) {
+					dirtyCells
+							.set(snapshot.cursorY * columns + snapshot.cursorX);
+				}
+			}
+		}
+		renderedVersion = snapshot.version;
+		renderedScrolledRows = snapshot.scrolledRows;
+		renderedCursorX = snapshot.cursorX;
+		renderedCursorY = snapshot.cursorY;
+		renderedCursorChar = snapshot.cursorChar;
+		renderedBlankChar = snapshot.blankChar;
+		lastBlinkOnFrame = blinkOnThisFrame;
+
+		// Draw each changed cell's character straight into the frame's pixels,
+		// keeping the bounds of the cells drawn. Many cells are drawn in
+		// bands of rows, each by its own thread.
+		cellsDrawn = dirtyCells.cardinality();
+		int threads = renderThreads;
+		frameIncomplete = true;
+		if (threads > 1 && cellsDrawn >= PARALLEL_THRESHOLD) {
+			drawCellsInBands(snapshot, atlas, pixels, blinkOnThisFrame,
+					threads);
+		} else {
+			resetBounds(drawBounds);
+			drawCells(snapshot, atlas, pixels, blinkOnThisFrame, 0, columns
+					* rows, drawBounds);
+		}
+		frameIncomplete = false;
+		int damageLeft = drawBounds[0];
+		int damageTop = drawBounds[1];
+		int damageRight = drawBounds[2];
+		int damageBottom = drawBounds[3];
+		dirtyCells.clear();
+
+		SharedFramebuffer frameOutput = this.frameOutput;
+		if (frameOutput != null) {
+			frameOutput.frameRendered(snapshot, pixels, charWidth, charHeight,
+					damageLeft, damageTop, damageRight, damageBottom,
+					scrolledPixelRows > 0);
+		}
+
+		if (damage != null) {
+			if (damageLeft < damageRight) {
+				damage.setBounds(damageLeft * charWidth, damageTop * charHeight,
+						(damageRight - damageLeft) * charWidth,
+						(damageBottom - damageTop) * charHeight);
+			} else {
+				damage.setBounds(0, 0, 0, 0);
+			}
+		}
+		return scrolledPixelRows;
+	}
+
+	/**
+	 * Draws the dirty cells between two indexes into the frame's pixels,
+	 * widening bounds (left, top, right, bottom) to take them in. Only reads
+	 * the screen's state, so may be called from many threads at once on
+	 * different rows.
+	 */
+	private void drawCells(ScreenSnapshot snapshot, GlyphAtlas atlas,
+			int[] pixels, boolean blinkOnThisFrame, int from, int to,
+			int[] bounds) {
+		int charWidth = atlas.getCharWidth();
+		int charHeight = atlas.getCharHeight();
+		int scanline = columns * charWidth;
+		for (int i = dirtyCells.nextSetBit(from); i >= 0 && i < to; i = dirtyCells
+				.nextSetBit(i + 1)) {
+			int x = i % columns;
+			int y = i / columns;
+			bounds[0] = Math.min(bounds[0], x);
+			bounds[1] = Math.min(bounds[1], y);
+			bounds[2] = Math.max(bounds[2], x + 1);
+			bounds[3] = Math.max(bounds[3], y + 1);
+			int cell = snapshot.cells[i];
+			if (blinkingEnabled && CellBuffer.isBlinking(cell)
+					&& blinkOnThisFrame) {
+				// Draw background color only
+				atlas.fill(pixels, scanline, x * charWidth, y * charHeight,
+						snapshot.bgColorsARGB[i]);
+			} else {
+				int charToDraw = CellBuffer.glyphOf(cell);
+
+				// Handle the cursor
+				if (cursorVisible && x == snapshot.cursorX
+						&& y == snapshot.cursorY) {
+					if (blinkOnThisFrame) {
+						// Cursor is a space
+						charToDraw = snapshot.blankChar;
+					} else {
+						// Cursor is an underscore
+						charToDraw = snapshot.cursorChar;
+					}
+				}
+
+				// Draw character
+				atlas.draw(pixels, scanline, x * charWidth, y * charHeight,
+						charToDraw, snapshot.colorsARGB[i],
+						snapshot.bgColorsARGB[i]);
+			}
+		}
+	}
+
+	/**
+	 * Draws the dirty cells split into bands of rows, one per thread, with
+	 * the rendering thread drawing the last band itself, and waits for them
+	 * all, even if one fails. The bands cover separate rows of pixels, so
+	 * need no locking. Leaves the bounds of the cells drawn in drawBounds.
+	 *
+	 * @throws RuntimeException
+	 *             if any band failed, once every band has finished
+	 */
+	private void drawCellsInBands(ScreenSnapshot snapshot, GlyphAtlas atlas,
+			int[] pixels, boolean blinkOnThisFrame, int threads) {
+		int firstRow = dirtyCells.nextSetBit(0) / columns;
+		int endRow = (dirtyCells.length() - 1) / columns + 1;
+		int bandCount = Math.min(threads, endRow - firstRow);
+		int bandRows = (endRow - firstRow + bandCount - 1) / bandCount;
+		if (renderBands.length < bandCount) {
+			renderBands = new RenderBand[bandCount];
+			for (int i = 0; i < bandCount; i++) {
+				renderBands[i] = new RenderBand();
+			}
+		}
+
+		CountDownLatch done = new CountDownLatch(bandCount);
+		for (int i = 0; i < bandCount; i++) {
+			RenderBand band = renderBands[i];
+			band.snapshot = snapshot;
+			band.atlas = atlas;
+			band.pixels = pixels;
+			band.blinkOnThisFrame = blinkOnThisFrame;
+			band.from = Math.min(firstRow + i * bandRows, endRow) * columns;
+			band.to = Math.min(firstRow + (i + 1) * bandRows, endRow)
+					* columns;
+			band.done = done;
+			band.error = null;
+			resetBounds(band.bounds);
+			if (i < bandCount - 1) {
+				renderExecutor.execute(band);
+			}
+		}
+		renderBands[bandCount - 1].run();
+
+		// The bands draw into the frame, so it can't be let go until they have
+		boolean interrupted = false;
+		while (true) {
+			try {
+				done.await();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+
+		resetBounds(drawBounds);
+		Throwable error = null;
+		for (int i = 0; i < bandCount; i++) {
+			RenderBand band = renderBands[i];
+			band.snapshot = null;
+			band.pixels = null;
+			if (band.error != null && error == null) {
+				error = band.error;
+			}
+			drawBounds[0] = Math.min(drawBounds[0], band.bounds[0]);
+			drawBounds[1] = Math.min(drawBounds[1], band.bounds[1]);
+			drawBounds[2] = Math.max(drawBounds[2], band.bounds[2]);
+			drawBounds[3] = Math.max(drawBounds[3], band.bounds[3]);
+		}
+		if (error != null) {
+			throw new RuntimeException("Drawing rows failed", error);
+		}
+	}
+
+	private void resetBounds(int[] bounds) {
+		bounds[0] = columns;
+		bounds[1] = rows;
+		bounds[2] = 0;
+		bounds[3] = 0;
+	}
+
+	/**
+	 * A band of rows drawn by one thread: the dirty cells from index from up
+	 * to index to.
+	 */
+	private class RenderBand implements Runnable {
+		ScreenSnapshot snapshot;
+		GlyphAtlas atlas;
+		int[] pixels;
+		boolean blinkOnThisFrame;
+		int from;
+		int to;
+		final int[] bounds = new int[4];
+		CountDownLatch done;
+		Throwable error;
+
+		@Override
+		public void run() {
+			try {
+				drawCells(snapshot, atlas, pixels, blinkOnThisFrame, from, to,
+						bounds);
+			} catch (Throwable t) {
+				error = t;
+			} finally {
+				done.countDown();
+			}
+		}
+	}
+
+	/**
+	 * @return the most threads that draw one frame
+	 */
+	public int getRenderThreads() {
+		return renderThreads;
+	}
+
+	/**
+	 * Sets the most threads that draw one frame. Frames that draw many cells,
+	 * such as when a large screen is redrawn, are split into bands of rows
+	 * drawn at once on that many threads; frames that draw few are drawn by
+	 * the rendering thread alone.
+	 *
+	 * @param renderThreads
+	 *            1 to only ever draw on the rendering thread. Default is the
+	 *            number of processors, up to 8.
+	 */
+	public void setRenderThreads(int renderThreads) {
+		if (renderThreads < 1) {
+			throw new IllegalArgumentException("Render threads "
+					+ renderThreads + " is less than 1");
+		}
+		this.renderThreads = renderThreads;
+	}
+
+	/**
+	 * Sets where each frame rendered is shared, and has the whole screen
+	 * rendered into it with the next frame.
+	 *
+	 * @param frameOutput
+	 *            Or null to stop sharing frames
+	 * @throws IllegalStateException
+	 *             if frames are already being shared somewhere else
+	 */
+	void setFrameOutput(SharedFramebuffer frameOutput) {
+		beginUpdate();
+		try {
+			if (frameOutput != null && this.frameOutput != null) {
+				throw new IllegalStateException(
+						"Frames are already being shared");
+			}
+			this.frameOutput = frameOutput;
+			if (frameOutput != null) {
+				markAllDirty();
+			}
+		} finally {
+			endUpdate();
+		}
+	}
+
+	/**
+	 * @return the image render draws the screen into, its natural size:
+	 *         columns * charWidth by rows * charHeight. Null until the first
+	 *         frame is rendered.
+	 */
+	public BufferedImage getFrameBuffer() {
+		return frameBuffer;
+	}
+
+	/**
+	 * @return the number of cells drawn into the frameBuffer by the last
+	 *         frame rendered, not counting those moved by a scroll
+	 */
+	public int getCellsDrawn() {
+		return cellsDrawn;
+	}
+
+	public int getCharWidth() {
+		return glyphAtlas.getCharWidth();
+	}
+
+	public int getCharHeight() {
+		return glyphAtlas.getCharHeight();
+	}
+
+	public boolean isBlinkingEnabled() {
+		return blinkingEnabled;
+	}
+
+	/**
+	 * Reports the blinking characters and the cursor as damaged, since their
+	 * appearance changes with the blink phase: one area per row holding
+	 * blinking characters. Looks at the snapshot being rendered, so call it
+	 * only from the thread that renders.
+	 */
+	public void damageBlinkingCells() {
+		ScreenSnapshot snapshot = snapshots[frontSnapshot];
+		DamageListener damageListener = this.damageListener;
+		if (cursorVisible && snapshot.cursorY >= 0) {
+			damageListener.cellsDamaged(snapshot.cursorX, snapshot.cursorY, 1,
+					1);
+		}
+
+		for (int y = 0; y < rows && snapshot.blinkingCount > 0; y++) {
+			if (snapshot.blinkingInRow[y] == 0) {
+				continue;
+			}
+			int left = columns;
+			int right = 0;
+			for (int x = 0; x < columns; x++) {
+				if (CellBuffer.isBlinking(snapshot.cells[y * columns + x])) {
+					left = Math.min(left, x);
+					right = x + 1;
+				}
+			}
+			damageListener.cellsDamaged(left, y, right - left, 1);
+		}
+	}
+
+	/**
+	 * Starts a change to the screen, waiting for any other thread changing it
+	 * to finish. Every call must be followed by one to endUpdate. Changes made
+	 * until then are published and reported together.
+	 */
+	public void beginUpdate() {
+		writeLock.lock();
+	}
+
+	/**
+	 * Finishes a change to the screen. If it is the outermost change this
+	 * thread was making, publishes the screen for rendering and then reports
+	 * the cells changed.
+	 *
+	 * @throws IllegalStateException
+	 *             if this thread has not begun a change
+	 */
+	public void endUpdate() {
+		if (!writeLock.isHeldByCurrentThread()) {
+			throw new IllegalStateException("endUpdate without beginUpdate");
+		}
+
+		int left = 0;
+		int top = 0;
+		int right = 0;
+		int bottom = 0;
+		boolean all = false;
+		try {
+			if (writeLock.getHoldCount() > 1 || !changed) {
+				return;
+			}
+			publish();
+
+			left = damageLeft;
+			top = damageTop;
+			right = damageRight;
+			bottom = damageBottom;
+			all = screenDamaged;
+			damageLeft = columns;
+			damageTop = rows;
+			damageRight = 0;
+			damageBottom = 0;
+			screenDamaged = false;
+		} finally {
+			writeLock.unlock();
+		}
+
+		// Cells scrolled out of the viewport aren't shown
+		bottom = Math.min(bottom, rows);
+		if (all) {
+			damageListener.screenDamaged();
+		} else if (left < right && top < bottom) {
+			damageListener.cellsDamaged(left, top, right - left, bottom - top);
+		}
+	}
+
+	/**
+	 * Brings the writers' snapshot up to date with the screen and swaps it
+	 * with the one waiting for the renderer.
+	 */
+	private void publish() {
+		ScreenSnapshot snapshot = snapshots[backSnapshot];
+		fillSnapshot(snapshot, true);
+		backSnapshot = exchangedSnapshot.getAndSet(backSnapshot | FRESH_BIT)
+				& INDEX_MASK;
+		version++;
+		changed = false;
+	}
+
+	/**
+	 * Brings a snapshot of the screen as shown up to date for something other
+	 * than the renderer to read, such as a mirror of the screen. Only the rows
+	 * changed since the snapshot was last copied are copied. Search highlights
+	 * are left out.
+	 */
+	void copySnapshot(ScreenSnapshot snapshot) {
+		writeLock.lock();
+		try {
+			fillSnapshot(snapshot, false);
+			// Rows this thread is still changing are copied again next time
+			snapshot.version = version - 1;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * @return the text screen behind a terminal
+	 * @throws IllegalArgumentException
+	 *             if the terminal isn't one of this package's
+	 */
+	static TextScreen of(Terminal terminal) {
+		if (terminal instanceof TextScreen) {
+			return (TextScreen) terminal;
+		} else if (terminal instanceof JTextModeComponent) {
+			return ((JTextModeComponent) terminal).getTextScreen();
+		}
+		throw new IllegalArgumentException("Not a JTextMode terminal: "
+				+ terminal);
+	}
+
+	/**
+	 * Copies the rows of the screen as shown changed since a snapshot was last
+	 * filled into it, along with the cursor: the rows of the scrollback above
+	 * the screen if the viewport is scrolled back, then the screen.
+	 *
+	 * @param highlights
+	 *            Whether to show search highlights in the snapshot
+	 */
+	private void fillSnapshot(ScreenSnapshot snapshot, boolean highlights) {
+		int blinkingCount = 0;
+		for (int y = 0; y < rows; y++) {
+			if (rowVersions[y] > snapshot.version) {
+				if (y < viewportOffset) {
+					snapshot.blinkingInRow[y] = scrollback.copyRow(
+							scrollback.getRowCount() - viewportOffset + y,
+							snapshot.cells, snapshot.colorsARGB,
+							snapshot.bgColorsARGB, y * columns);
+				} else {
+					cells.copyRow(y - viewportOffset, snapshot.cells,
+							snapshot.colorsARGB, snapshot.bgColorsARGB, y
+									* columns);
+					snapshot.blinkingInRow[y] = cells.getBlinkingCount(y
+							- viewportOffset);
+				}
+				if (highlights && highlightLines.length > 0) {
+					highlightRow(snapshot, y);
+				}
+			}
+			blinkingCount += snapshot.blinkingInRow[y];
+		}
+		System.arraycopy(rowVersions, 0, snapshot.rowVersions, 0, rows);
+		snapshot.blinkingCount = blinkingCount;
+		snapshot.version = version;
+		snapshot.scrolledRows = scrolledRows;
+		snapshot.cursorX = cursorX;
+		// The cursor may be scrolled out of the viewport
+		snapshot.cursorY = cursorY + viewportOffset < rows ? cursorY
+				+ viewportOffset : -1;
+		snapshot.cursorChar = cursorChar;
+		snapshot.blankChar = blankChar;
+	}
+
+	/**
+	 * Shows the text highlighted on a row of a snapshot in reverse video.
+	 */
+	private void highlightRow(ScreenSnapshot snapshot, int y) {
+		long line = screenLine - viewportOffset + y;
+		int i = Arrays.binarySearch(highlightLines, line);
+		if (i < 0) {
+			return;
+		}
+		// Back up to the first match on the line
+		while (i > 0 && highlightLines[i - 1] == line) {
+			i--;
+		}
+		for (; i < highlightLines.length && highlightLines[i] == line; i++) {
+			for (int x = y * columns + highlightStarts[i]; x < y * columns
+					+ highlightEnds[i]; x++) {
+				int color = snapshot.colorsARGB[x];
+				snapshot.colorsARGB[x] = snapshot.bgColorsARGB[x];
+				snapshot.bgColorsARGB[x] = color;
+			}
+		}
+	}
+
+	/**
+	 * Marks a cell as changed, to be published and reported as damaged.
+	 *
+	 * @param x
+	 * @param y
+	 */
+	private void markDirty(int x, int y) {
+		markDirty(x, y, 1, 1);
+	}
+
+	/**
+	 * Marks a rectangle of cells as changed, to be published and reported as
+	 * damaged.
+	 */
+	private void markDirty(int x, int y, int width, int height) {
+		int bottom = Math.min(y + height + viewportOffset, rows);
+		for (int row = y + viewportOffset; row < bottom; row++) {
+			rowVersions[row] = version;
+		}
+		markDamaged(x, y, width, height);
+	}
+
+	/**
+	 * Marks a rectangle of cells to be reported as damaged without their
+	 * contents having changed, such as when the cursor moves over them.
+	 * Damage is reported where the cells are shown, below any rows of the
+	 * scrollback shown above them.
+	 */
+	private void markDamaged(int x, int y, int width, int height) {
+		y += viewportOffset;
+		damageLeft = Math.min(damageLeft, x);
+		damageTop = Math.min(damageTop, y);
+		damageRight = Math.max(damageRight, x + width);
+		damageBottom = Math.max(damageBottom, y + height);
+		changed = true;
+	}
+
+	/**
+	 * Marks every cell on the screen as changed.
+	 */
+	private void markAllDirty() {
+		for (int row = 0; row < rows; row++) {
+			rowVersions[row] = version;
+		}
+		screenDamaged = true;
+		changed = true;
+	}
+
+	/**
+	 * @param text
+	 */
+	public void writeLn(String... text) {
+		beginUpdate();
+		try {
+			for (String currString : text) {
+				write(currString, 0, currString.length());
+				cursorMoveNewline();
+			}
+
+			if (text.length <= 0) {
+				cursorMoveNewline();
+			}
+		} finally {
+			endUpdate();
+		}
+	}
+
+	/**
+	 * 
+	 * @param chars
+	 */
+	public void writeLn(char... chars) {
+		beginUpdate();
+		try {
+			for (char currChar : chars) {
+				putAtCursor(currChar);
+				cursorMoveNewline();
+			}
+
+			if (chars.length <= 0) {
+				cursorMoveNewline();
+			}
+		} finally {
+			endUpdate();
+		}
+	}
+
+	public void writeLn() {
+		beginUpdate();
+		try {
+			cursorMoveNewline();
+		} finally {
+			endUpdate();
+		}
+	}
+
+	public void write(String... text) {
+		beginUpdate();
+		try {
+			for (String currString : text) {
+				write(currString, 0, currString.length());
+			}
+		} finally {
+			endUpdate();
+		}
+	}
+
+	public void write(char... chars) {
+		beginUpdate();
+		try {
+			for (char currChar : chars) {
+				putAtCursor(currChar);
+			}
+		} finally {
+			endUpdate();
+		}
+	}
+
+	/**
+	 * Writes text at the cursor, then moves the cursor to the start of the
+	 * next line.
+	 * 
+	 * @param text
+	 */
+	public void writeLn(CharSequence text) {
+		beginUpdate();
+		try {
+			write(text, 0, text.length());
+			cursorMoveNewline();
+		} finally {
+			endUpdate();
+		}
+	}
+
+	/**
+	 * Writes text at the cursor.
+	 * 
+	 * @param text
+	 */
+	public void write(CharSequence text) {
+		write(text, 0, text.length());
+	}
+
+	/**
+	 * Writes part of some text at the cursor, without copying it.
+	 * 
+	 * @param text
+	 * @param start
+	 *            The index of the first character to write
+	 * @param end
+	 *            The index after the last character to write
+	 * @throws IndexOutOfBoundsException
+	 *             if start and end are not a range within text
+	 */
+	public void write(CharSequence text, int start, int end) {
+		if (start < 0 || end > text.length() || start > end) {
+			throw new IndexOutOfBoundsException("start " + start + ", end "
+					+ end + ", length " + text.length());
+		}
+
+		beginUpdate();
+		try {
+			// Write a row at a time
+			while (start < end) {
+				int count = Math.min(end - start, columns - cursorX);
+				fillAtCursor(count);
+				cells.setGlyphs(cursorX, cursorY, text, start, count);
+				advanceCursor(count);
+				start += count;
+			}
+		} finally {
+			endUpdate();
+		}
+	}
+
+	/**
+	 * Writes part of an array of characters at the cursor, without copying
+	 * it.
+	 * 
+	 * @param chars
+	 * @param offset
+	 *            The index of the first character to write
+	 * @param length
+	 *            The number of characters to write
+	 * @throws IndexOutOfBoundsException
+	 *             if offset and length are not a range within chars
+	 */
+	public void write(char[] chars, int offset, int length) {
+		if (offset < 0 || length < 0 || offset + length > chars.length) {
+			throw new IndexOutOfBoundsException("offset " + offset
+					+ ", length " + length + ", array length " + chars.length);
+		}
+
+		beginUpdate();
+		try {
+			// Write a row at a time
+			int end = offset + length;
+			while (offset < end) {
+				int count = Math.min(end - offset, columns - cursorX);
+				fillAtCursor(count);
+				cells.setGlyphs(cursorX, cursorY, chars, offset, count);
+				advanceCursor(count);
+				offset += count;
+			}
+		} finally {
+			endUpdate();
+		}
+	}
+
+	/**
+	 * Sets a character on the text screen without moving the cursor.
+	 * 
+	 * @param x
+	 * @param y
+	 * @param character
+	 *            return false if the x and y are out of bounds
+	 */
+	public boolean setCharAt(int x, int y, int character) {
+		beginUpdate();
+		try {
+			if (!cells.contains(x, y)) {
+				return false;
+			}
+
+			cells.setGlyph(x, y, character);
+			markDirty(x, y);
+
+			return true;
+		} finally {
+			endUpdate();
+		}
+	}
+
+	/**
+	 * Sets a character on the text screen without moving the cursor with all
+	 * its metadata.
+	 * 
+	 * @param x
+	 * @param y
+	 * @param character
+	 * @param color
+	 * @param bgColor
+	 * @param blink
+	 *            return false if the x and y are out of bounds
+	 */
+	public boolean setCharAt(int x, int y, int character, int color,
+			int bgColor, boolean blink) {
+		beginUpdate();
+		try {
+			if (!cells.contains(x, y)) {
+				return false;
+			}
+
+			cells.set(x, y, CellBuffer.pack(character, color, bgColor, blink));
+			markDirty(x, y);
+
+			return true;
+		} finally {
+			endUpdate();
+		}
+	}
+
+	public boolean setBlinkingAt(int x, int y, boolean blink) {
+		beginUpdate();
+		try {
+			if (!cells.contains(x, y)) {
+				return false;
+			}
+
+			cells.setBlinking(x, y, blink);
+			markDirty(x, y);
+
+			return true;
+		} finally {
+			endUpdate();
+		}
+	}
+
+	public boolean setBGColorAt(int x, int y, int bgColor) {
+		beginUpdate();
+		try {
+			if (!cells.contains(x, y)) {
+				return false;
+			}
+
+			cells.setBGColor(x, y, bgColor);
+			markDirty(x, y);
+
+			return true;
+		} finally {
+			endUpdate();
+		}
+	}
+
+	public boolean setColorAt(int x, int y, int color) {
+		beginUpdate();
+		try {
+			if (!cells.contains(x, y)) {
+				return false;
+			}
+
+			cells.setColor(x, y, color);
+			markDirty(x, y);
+
+			return true;
+		} finally {
+			endUpdate();
+		}
+	}
+
+	public boolean setColorsAt(int x, int y, int color, int bgColor,
+			boolean blink) {
+		beginUpdate();
+		try {
+			if (!cells.contains(x, y)) {
+				return false;
+			}
+
+			cells.setAttributes(x, y, color, bgColor, blink);
+			markDirty(x, y);
+
+			return true;
+		} finally {
+			endUpdate();
+		}
+	}
+
+	public boolean setColorRGBAt(int x, int y, int rgb) {
+		beginUpdate();
+		try {
+			if (!cells.contains(x, y)) {
+				return false;
+			}
+
+			cells.setColorRGB(x, y, rgb);
+			markDirty(x, y);
+
+			return true;
+		} finally {
+			endUpdate();
+		}
+	}
+
+	public boolean setBGColorRGBAt(int x, int y, int rgb) {
+		beginUpdate();
+		try {
+			if (!cells.contains(x, y)) {
+				return false;
+			}
+
+			cells.setBGColorRGB(x, y, rgb);
+			markDirty(x, y);
+
+			return true;
+		} finally {
+			endUpdate();
+		}
+	}
+
+	/**
+	 * Fills a rectangle of the text screen with one character, all in the
+	 * same colors. Any part of the rectangle off the screen is left out.
+	 * 
+	 * @param x
+	 * @param y
+	 * @param width
+	 * @param height
+	 * @param character
+	 * @param color
+	 * @param bgColor
+	 * @param blink
+	 * @return false if any of the rectangle is out of bounds
+	 */
+	public boolean fillRect(int x, int y, int width, int height,
+			int character, int color, int bgColor, boolean blink) {
+		return fillRect(x, y, width, height, character, color, bgColor, -1,
+				-1, blink);
+	}
+
+	/**
+	 * Fills a rectangle of the text screen with one character, all in the
+	 * same colors, either of which may be RGB. Any part of the rectangle off
+	 * the screen is left out.
+	 * 
+	 * @param x
+	 * @param y
+	 * @param width
+	 * @param height
+	 * @param character
+	 * @param color
+	 *            Used if colorRGB is -1
+	 * @param bgColor
+	 *            Used if bgColorRGB is -1
+	 * @param colorRGB
+	 *            The color as 0xRRGGBB, or -1 to use color
+	 * @param bgColorRGB
+	 *            The background color as 0xRRGGBB, or -1 to use bgColor
+	 * @param blink
+	 * @return false if any of the rectangle is out of bounds
+	 */
+	public boolean fillRect(int x, int y, int width, int height,
+			int character, int color, int bgColor, int colorRGB,
+			int bgColorRGB, boolean blink) {
+		beginUpdate();
+		try {
+			int left = Math.max(x, 0);
+			int top = Math.max(y, 0);
+			int right = Math.min(x + width, columns);
+			int bottom = Math.min(y + height, rows);
+			if (left < right && top < bottom) {
+				int cell = CellBuffer.pack(character, color, bgColor, blink);
+				if (colorRGB >= 0) {
+					cell |= CellBuffer.FG_RGB_BIT;
+				}
+				if (bgColorRGB >= 0) {
+					cell |= CellBuffer.BG_RGB_BIT;
+				}
+				cells.fillRect(left, top, right - left, bottom - top, cell,
+						colorRGB, bgColorRGB);
+				markDirty(left, top, right - left, bottom - top);
+			}
+
+			return left == x && top == y && right == x + width
+					&& bottom == y + height;
+		} finally {
+			endUpdate();
+		}
+	}
+
+	/**
+	 * Copies a rectangle of the text screen, colors and all, so that its top
+	 * left corner is at toX, toY. The rectangles may overlap. Any part of the
+	 * rectangle that would be copied from or to off the screen is left out.
+	 * 
+	 * @param x
+	 * @param y
+	 * @param width
+	 * @param height
+	 * @param toX
+	 * @param toY
+	 * @return false if any of either rectangle is out of bounds
+	 */
+	public boolean copyRect(int x, int y, int width, int height, int toX,
+			int toY) {
+		beginUpdate();
+		try {
+			// Keep to the part of the rectangle on the screen both where it is
+			// and where it is going
+			int dx = toX - x;
+			int dy = toY - y;
+			int left = Math.max(Math.max(x, 0), -dx);
+			int top = Math.max(Math.max(y, 0), -dy);
+			int right = Math.min(Math.min(x + width, columns), columns - dx);
+			int bottom = Math.min(Math.min(y + height, rows), rows - dy);
+			if (left < right && top < bottom) {
+				cells.copyRect(left, top, right - left, bottom - top, left + dx,
+						top + dy);
+				markDirty(left + dx, top + dy, right - left, bottom - top);
+			}
+
+			return left == x && top == y && right == x + width
+					&& bottom == y + height;
+		} finally {
+			endUpdate();
+		}
+	}
+
+	/**
+	 * Writes text on one row of the text screen starting at x, y, all in the
+	 * same colors, without moving the cursor. Text past the end of the row is
+	 * left out rather than wrapped.
+	 * 
+	 * @param x
+	 * @param y
+	 * @param text
+	 * @param color
+	 * @param bgColor
+	 * @param blink
+	 * @return false if any of the text is out of bounds
+	 */
+	public boolean setStringAt(int x, int y, String text, int color,
+			int bgColor, boolean blink) {
+		beginUpdate();
+		try {
+			if (y < 0 || y >= rows) {
+				return false;
+			}
+
+			int start = Math.max(0, -x);
+			if (start < text.length() && x + start < columns) {
+				int written = cells.setString(x + start, y, text, start,
+						text.length(), CellBuffer.pack(0, color, bgColor, blink));
+				markDirty(x + start, y, written, 1);
+			}
+
+			return x >= 0 && x + text.length() <= columns;
+		} finally {
+			endUpdate();
+		}
+	}
+
+	/**
+	 * Copies a rectangle of cells packed as by CellBuffer.pack onto the text
+	 * screen. Any part of the rectangle off the screen is left out.
+	 * 
+	 * @param x
+	 * @param y
+	 * @param width
+	 * @param height
+	 * @param cells
+	 *            The packed cells, row by row
+	 * @param offset
+	 *            The index in cells of the rectangle's top left cell
+	 * @param scanline
+	 *            The distance in cells from one row of the rectangle to the
+	 *            next
+	 * @return false if any of the rectangle is out of bounds
+	 */
+	public boolean blit(int x, int y, int width, int height, int[] cells,
+			int offset, int scanline) {
+		beginUpdate();
+		try {
+			int left = Math.max(x, 0);
+			int top = Math.max(y, 0);
+			int right = Math.min(x + width, columns);
+			int bottom = Math.min(y + height, rows);
+			if (left < right && top < bottom) {
+				this.cells.blit(left, top, right - left, bottom - top, cells,
+						null, null, offset + (top - y) * scanline + (left - x),
+						scanline);
+				markDirty(left, top, right - left, bottom - top);
+			}
+
+			return left == x && top == y && right == x + width
+					&& bottom == y + height;
+		} finally {
+			endUpdate();
+		}
+	}
+
+	/**
+	 * 
+	 * @param x
+	 * @param y
+	 * @return the character at x, y, or -1 if coords our out of bounds
+	 */
+	public int getCharAt(int x, int y) {
+		writeLock.lock();
+		try {
+			if (!cells.contains(x, y)) {
+				return -1;
+			}
+
+			return CellBuffer.glyphOf(cells.get(x, y));
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * 
+	 * @param x
+	 * @param y
+	 * @return the color at x, y, or -1 if coords our out of bounds
+	 */
+	public int getColorAt(int x, int y) {
+		writeLock.lock();
+		try {
+			if (!cells.contains(x, y)) {
+				return -1;
+			}
+
+			return CellBuffer.colorOf(cells.get(x, y));
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * 
+	 * @param x
+	 * @param y
+	 * @return the background color at x, y, or -1 if coords our out of bounds
+	 */
+	public int getBGColorAt(int x, int y) {
+		writeLock.lock();
+		try {
+			if (!cells.contains(x, y)) {
+				return -1;
+			}
+
+			return CellBuffer.bgColorOf(cells.get(x, y));
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * 
+	 * @param x
+	 * @param y
+	 * @return the color at x, y as 0xRRGGBB, whether set by index or in RGB,
+	 *         or -1 if coords are out of bounds
+	 */
+	public int getColorRGBAt(int x, int y) {
+		writeLock.lock();
+		try {
+			if (!cells.contains(x, y)) {
+				return -1;
+			}
+
+			return cells.getColorRGB(x, y);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * 
+	 * @param x
+	 * @param y
+	 * @return the background color at x, y as 0xRRGGBB, whether set by index
+	 *         or in RGB, or -1 if coords are out of bounds
+	 */
+	public int getBGColorRGBAt(int x, int y) {
+		writeLock.lock();
+		try {
+			if (!cells.contains(x, y)) {
+				return -1;
+			}
+
+			return cells.getBGColorRGB(x, y);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * 
+	 * @param x
+	 * @param y
+	 * @return 1 if the character is blinking at x, y<br>
+	 *         0 if not<br>
+	 *         -1 if coords are out of range
+	 */
+	public int getBlinkingAt(int x, int y) {
+		writeLock.lock();
+		try {
+			if (!cells.contains(x, y)) {
+				return -1;
+			}
+
+			if (CellBuffer.isBlinking(cells.get(x, y))) {
+				return 1;
+			} else {
+				return 0;
+			}
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Puts the cursor at the given character on the text screen.
+	 * 
+	 * @param x
+	 * @param y
+	 * @return false if the given cursor position is out of bounds; will set as
+	 *         close as possible to given position anyway
+	 */
+	public boolean setCursorPos(int x, int y) {
+		beginUpdate();
+		try {
+			int finalX = x;
+			int finalY = y;
+			boolean goodSet = true;
+			if (x >= columns) {
+				goodSet = false;
+				finalX = columns - 1;
+			} else if (x < 0) {
+				goodSet = false;
+				finalX = 0;
+			}
+			if (y >= rows) {
+				goodSet = false;
+				finalY = rows - 1;
+			} else if (y < 0) {
+				goodSet = false;
+				finalY = 0;
+			}
+			moveCursor(finalX, finalY);
+			return goodSet;
+		} finally {
+			endUpdate();
+		}
+	}
+
+	/**
+	 * @return the column the cursor is in
+	 */
+	public int getCursorX() {
+		writeLock.lock();
+		try {
+			return cursorX;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * @return the row the cursor is in
+	 */
+	public int getCursorY() {
+		writeLock.lock();
+		try {
+			return cursorY;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Fills the screen with spaces written with the current draw colors and
+	 * blinking status.
+	 */
+	public void clearScreen() {
+		scrollScreen(rows);
+	}
+
+	public void scrollScreen(int scrollRows) {
+		beginUpdate();
+		try {
+			if (scrollRows <= 0) {
+				return;
+			}
+
+			screenLine += Math.min(scrollRows, rows);
+
+			// Keep the rows about to go off the top
+			int keptRows = 0;
+			if (scrollback != null) {
+				keptRows = Math.min(scrollRows, rows);
+				for (int y = 0; y < keptRows; y++) {
+					scrollback.addRow(cells, y);
+				}
+			}
+
+			// Shift every row on the screen up, clearing the rows uncovered at the
+			// bottom
+			cells.scrollUp(scrollRows, getDrawCell(blankChar), currDrawColorRGB,
+					currDrawBGColorRGB);
+
+			// Move cursor up
+			markDamaged(cursorX, cursorY, 1, 1);
+			cursorY -= scrollRows;
+			if (cursorY < 0) {
+				cursorY = 0;
+			}
+
+			if (viewportOffset > 0
+					&& viewportOffset + keptRows <= scrollback.getRowCount()) {
+				// Keep showing the same rows: the rows shown have moved from
+				// the screen into the scrollback, or are still out of view
+				viewportOffset += keptRows;
+				markDamaged(cursorX, cursorY, 1, 1);
+			} else {
+				// Every row has moved; a viewport scrolled back stays as far
+				// back as the scrollback now goes
+				if (viewportOffset > 0) {
+					viewportOffset = scrollback.getRowCount();
+				}
+				scrolledRows += scrollRows;
+				markAllDirty();
+			}
+		} finally {
+			endUpdate();
+		}
+	}
+
+	/**
+	 * @return the most rows kept in the scrollback
+	 */
+	public int getScrollbackSize() {
+		writeLock.lock();
+		try {
+			return scrollback == null ? 0 : scrollback.getMaxRows();
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Sets how many of the rows scrolled off the top of the screen are kept,
+	 * to be shown by scrolling the viewport back. Any rows already kept are
+	 * forgotten, and the viewport returns to the screen.
+	 * 
+	 * @param rows
+	 *            The most rows to keep, or 0 to keep none. Default is 0.
+	 */
+	public void setScrollbackSize(int rows) {
+		setScrollbackSize(rows, false);
+	}
+
+	/**
+	 * Sets how many of the rows scrolled off the top of the screen are kept,
+	 * to be shown by scrolling the viewport back. Any rows already kept are
+	 * forgotten, and the viewport returns to the screen.<br>
+	 * <br>
+	 * Rows are kept compressed: a row of plain text takes about a byte per
+	 * character up to the last one that isn't blank, and blank rows take a
+	 * few bytes, or none when repeated.
+	 * 
+	 * @param rows
+	 *            The most rows to keep, or 0 to keep none. Default is 0.
+	 * @param offHeap
+	 *            Whether to keep the rows in memory outside the Java heap
+	 */
+	public void setScrollbackSize(int rows, boolean offHeap) {
+		if (rows < 0) {
+			throw new IllegalArgumentException("Scrollback size " + rows
+					+ " is negative");
+		}
+
+		beginUpdate();
+		try {
+			scrollback = rows > 0 ? new Scrollback(columns, rows, offHeap)
+					: null;
+			setViewportOffset(0);
+		} finally {
+			endUpdate();
+		}
+	}
+
+	/**
+	 * @return the number of rows kept in the scrollback
+	 */
+	public int getScrollbackRowCount() {
+		writeLock.lock();
+		try {
+			return scrollback == null ? 0 : scrollback.getRowCount();
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * @return how many rows of the scrollback are shown above the screen
+	 */
+	public int getViewportOffset() {
+		writeLock.lock();
+		try {
+			return viewportOffset;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Scrolls the view back through the scrollback, showing the given number
+	 * of its newest rows above the screen and the screen that many rows
+	 * further down. While scrolled back, the same rows stay in view as more
+	 * rows scroll off the screen. Takes time in proportion to the rows shown,
+	 * however many are kept.
+	 * 
+	 * @param offset
+	 *            The number of rows to show above the screen, or 0 to show
+	 *            only the screen
+	 * @return false if offset is negative or more than the rows kept; will
+	 *         set as close as possible to it anyway
+	 */
+	public boolean setViewportOffset(int offset) {
+		beginUpdate();
+		try {
+			int newOffset = Math.max(0,
+					Math.min(offset, getScrollbackRowCount()));
+			if (newOffset != viewportOffset) {
+				if (newOffset < viewportOffset) {
+					// What is shown moves up
+					scrolledRows += viewportOffset - newOffset;
+				}
+				viewportOffset = newOffset;
+				markAllDirty();
+			}
+			return newOffset == offset;
+		} finally {
+			endUpdate();
+		}
+	}
+
+	/**
+	 * @return the line number of the top row of the screen; the rows of the
+	 *         scrollback are the lines before it
+	 */
+	public long getScreenLine() {
+		writeLock.lock();
+		try {
+			return screenLine;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Scrolls the viewport so that a line is shown: to the top of the view if
+	 * it is in the scrollback, or back to the screen if it is on the screen.
+	 * 
+	 * @param line
+	 * @return false if the line is no longer kept
+	 */
+	public boolean scrollToLine(long line) {
+		beginUpdate();
+		try {
+			if (line >= screenLine) {
+				setViewportOffset(0);
+				return line < screenLine + rows;
+			}
+			return setViewportOffset((int) Math.min(screenLine - line,
+					Integer.MAX_VALUE));
+		} finally {
+			endUpdate();
+		}
+	}
+
+	/**
+	 * Finds every place some text appears in the scrollback and on the
+	 * screen, from the oldest line to the bottom of the screen. Text is
+	 * matched within a line, not across the end of one line into the next,
+	 * and matches do not overlap.<br>
+	 * <br>
+	 * The lines are copied out a batch at a time, so output can carry on
+	 * during a long search. Lines that scroll out of the scrollback before
+	 * their batch is reached are not searched, and lines written after the
+	 * search starts are not searched either.
+	 * 
+	 * @param text
+	 *            The characters to find, as characters on the code page
+	 * @param ignoreCase
+	 *            Whether to match the letters A-Z in either case
+	 * @return the matches, in order
+	 */
+	public List<TextMatch> findAll(CharSequence text, boolean ignoreCase) {
+		int[] pattern = toSearchPattern(text, ignoreCase);
+		List<TextMatch> matches = new ArrayList<TextMatch>();
+		int[] batch = new int[SEARCH_BATCH_LINES * columns];
+		long line;
+		long endLine;
+		writeLock.lock();
+		try {
+			line = screenLine - getScrollbackRowCount();
+			endLine = screenLine + rows;
+		} finally {
+			writeLock.unlock();
+		}
+
+		while (true) {
+			// Lines scrolled out of the scrollback since the last batch are
+			// gone, and are skipped
+			writeLock.lock();
+			int count;
+			try {
+				line = Math.max(line, screenLine - getScrollbackRowCount());
+				count = (int) Math.min(SEARCH_BATCH_LINES,
+						Math.min(endLine, screenLine + rows) - line);
+				if (count <= 0) {
+					return matches;
+				}
+				copySearchLines(line, count, batch);
+			} finally {
+				writeLock.unlock();
+			}
+
+			for (int i = 0; i < count; i++) {
+				int x = 0;
+				while ((x = indexOf(batch, i * columns, pattern, x,
+						ignoreCase)) >= 0) {
+					matches.add(new TextMatch(line + i, x, pattern.length));
+					x += pattern.length;
+				}
+			}
+			line += count;
+		}
+	}
+
+	/**
+	 * Finds the next or previous place some text appears in the scrollback
+	 * and on the screen. Text is matched within a line, not across the end of
+	 * one line into the next.
+	 * 
+	 * @param text
+	 *            The characters to find, as characters on the code page
+	 * @param fromLine
+	 *            The line to start searching on. Lines no longer kept are
+	 *            skipped.
+	 * @param fromColumn
+	 *            Searching forwards, the first column a match may start in;
+	 *            backwards, the last
+	 * @param forwards
+	 *            Whether to search towards the bottom of the screen, or back
+	 *            towards the oldest line
+	 * @param ignoreCase
+	 *            Whether to match the letters A-Z in either case
+	 * @return the match, or null if the text was not found
+	 */
+	public TextMatch find(CharSequence text, long fromLine, int fromColumn,
+			boolean forwards, boolean ignoreCase) {
+		int[] pattern = toSearchPattern(text, ignoreCase);
+		int[] batch = new int[SEARCH_BATCH_LINES * columns];
+		long line = fromLine;
+		int column = fromColumn;
+		long endLine;
+		writeLock.lock();
+		try {
+			endLine = screenLine + rows;
+		} finally {
+			writeLock.unlock();
+		}
+
+		while (true) {
+			// The first line of the batch and how many lines it has, in the
+			// direction searched, skipping lines no longer kept
+			long first;
+			int count;
+			writeLock.lock();
+			try {
+				long firstLine = screenLine - getScrollbackRowCount();
+				long lastLine = Math.min(endLine, screenLine + rows) - 1;
+				if (forwards) {
+					if (line < firstLine) {
+						line = firstLine;
+						column = 0;
+					}
+					first = line;
+					count = (int) Math.min(SEARCH_BATCH_LINES, lastLine
+							- line + 1);
+				} else {
+					if (line > lastLine) {
+						line = lastLine;
+						column = columns;
+					}
+					count = (int) Math.min(SEARCH_BATCH_LINES, line
+							- firstLine + 1);
+					first = line - count + 1;
+				}
+				if (count <= 0) {
+					return null;
+				}
+				copySearchLines(first, count, batch);
+			} finally {
+				writeLock.unlock();
+			}
+
+			for (int n = 0; n < count; n++) {
+				int i = forwards ? n : count - 1 - n;
+				int x;
+				if (forwards) {
+					x = indexOf(batch, i * columns, pattern,
+							Math.max(column, 0), ignoreCase);
+				} else {
+					x = lastIndexOf(batch, i * columns, pattern,
+							Math.min(column, columns), ignoreCase);
+				}
+				if (x >= 0) {
+					return new TextMatch(first + i, x, pattern.length);
+				}
+				column = forwards ? 0 : columns;
+			}
+			line = forwards ? first + count : first - 1;
+		}
+	}
+
+	/**
+	 * Shows text in reverse video wherever it is in the scrollback or on the
+	 * screen, such as the matches found by a search, until other text is
+	 * highlighted. A highlight stays on its line as the line scrolls.
+	 * 
+	 * @param matches
+	 *            The text to highlight, or null to highlight nothing
+	 */
+	public void setHighlights(List<TextMatch> matches) {
+		int count = matches == null ? 0 : matches.size();
+		TextMatch[] sorted = new TextMatch[count];
+		if (count > 0) {
+			matches.toArray(sorted);
+			Arrays.sort(sorted, new Comparator<TextMatch>() {
+				@Override
+				public int compare(TextMatch a, TextMatch b) {
+					if (a.getLine() != b.getLine()) {
+						return a.getLine() < b.getLine() ? -1 : 1;
+					}
+					return a.getColumn() - b.getColumn();
+				}
+			});
+		}
+
+		beginUpdate();
+		try {
+			highlightLines = new long[count];
+			highlightStarts = new int[count];
+			highlightEnds = new int[count];
+			for (int i = 0; i < count; i++) {
+				highlightLines[i] = sorted[i].getLine();
+				highlightStarts[i] = Math.max(0,
+						Math.min(sorted[i].getColumn(), columns));
+				highlightEnds[i] = Math.max(highlightStarts[i], Math.min(
+						sorted[i].getColumn() + sorted[i].getLength(), columns));
+			}
+			markAllDirty();
+		} finally {
+			endUpdate();
+		}
+	}
+
+	/**
+	 * Turns text to search for into characters, folded to lower case if case
+	 * is ignored.
+	 */
+	private static int[] toSearchPattern(CharSequence text, boolean ignoreCase) {
+		if (text.length() == 0) {
+			throw new IllegalArgumentException("Nothing to search for");
+		}
+		int[] pattern = new int[text.length()];
+		for (int i = 0; i < pattern.length; i++) {
+			pattern[i] = text.charAt(i);
+			if (ignoreCase) {
+				pattern[i] = toLowerCase(pattern[i]);
+			}
+		}
+		return pattern;
+	}
+
+	private static int toLowerCase(int c) {
+		return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+	}
+
+	/**
+	 * Copies the characters on lines one after another into a batch, a row
+	 * of columns at a time, from the scrollback or the screen. The lock must
+	 * be held, and the lines are not range checked.
+	 */
+	private void copySearchLines(long line, int count, int[] batch) {
+		int[] row = new int[columns];
+		for (int i = 0; i < count; i++, line++) {
+			if (line < screenLine) {
+				scrollback.copyGlyphs(
+						(int) (scrollback.getRowCount() - (screenLine - line)),
+						row);
+			} else {
+				cells.copyGlyphs((int) (line - screenLine), row);
+			}
+			System.arraycopy(row, 0, batch, i * columns, columns);
+		}
+	}
+
+	/**
+	 * @return the first column from column from on which the pattern matches
+	 *         the row starting at offset in rows, or -1 if there is none
+	 */
+	private int indexOf(int[] rows, int offset, int[] pattern, int from,
+			boolean ignoreCase) {
+		for (int x = from; x <= columns - pattern.length; x++) {
+			if (matchesAt(rows, pattern, offset + x, ignoreCase)) {
+				return x;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the last column up to column from on which the pattern matches
+	 *         the row starting at offset in rows, or -1 if there is none
+	 */
+	private int lastIndexOf(int[] rows, int offset, int[] pattern, int from,
+			boolean ignoreCase) {
+		for (int x = Math.min(from, columns - pattern.length); x >= 0; x--) {
+			if (matchesAt(rows, pattern, offset + x, ignoreCase)) {
+				return x;
+			}
+		}
+		return -1;
+	}
+
+	private static boolean matchesAt(int[] row, int[] pattern, int x,
+			boolean ignoreCase) {
+		for (int i = 0; i < pattern.length; i++) {
+			int c = row[x + i];
+			if (ignoreCase) {
+				c = toLowerCase(c);
+			}
+			if (c != pattern[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the bytes saveState writes
+	 */
+	public long getStateSize() {
+		writeLock.lock();
+		try {
+			return STATE_HEADER_SIZE + cells.getStateSize()
+					+ (scrollback == null ? 0 : scrollback.getStateSize());
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Writes everything on the screen at the buffer's position, advancing it,
+	 * in a fixed binary layout restoreState reads back: a header, then every
+	 * cell and its RGB colors, then the scrollback as it is kept, compressed.
+	 * The header holds the size of the screen, the cursor and its characters,
+	 * the draw colors, the viewport and the scrollback's size. The code page
+	 * isn't saved.<br>
+	 * <br>
+	 * Cells are copied in bulk, without creating an object per cell or row, so
+	 * this is as quick as copying the memory, and the buffer may be a
+	 * MappedByteBuffer straight onto a file.
+	 *
+	 * @param buffer
+	 *            Needs getStateSize() bytes left
+	 * @throws java.nio.BufferOverflowException
+	 *             if it has fewer
+	 */
+	public void saveState(ByteBuffer buffer) {
+		writeLock.lock();
+		ByteOrder order = buffer.order();
+		try {
+			if (buffer.remaining() < getStateSize()) {
+				throw new BufferOverflowException();
+			}
+			buffer.order(ByteOrder.BIG_ENDIAN);
+			buffer.putInt(STATE_MAGIC);
+			buffer.putInt(STATE_FORMAT);
+			buffer.putInt(columns);
+			buffer.putInt(rows);
+			buffer.putInt(cursorX);
+			buffer.putInt(cursorY);
+			buffer.putInt(cursorChar);
+			buffer.putInt(blankChar);
+			buffer.putInt(currDrawColor);
+			buffer.putInt(currDrawBGColor);
+			buffer.putInt(currDrawBlinking ? 1 : 0);
+			buffer.putInt(currDrawColorRGB);
+			buffer.putInt(currDrawBGColorRGB);
+			buffer.putInt(viewportOffset);
+			buffer.putLong(screenLine);
+			buffer.putInt(scrollback == null ? 0 : scrollback.getMaxRows());
+			buffer.putInt(scrollback != null && scrollback.isOffHeap() ? 1 : 0);
+			cells.saveState(buffer);
+			if (scrollback != null) {
+				scrollback.saveState(buffer);
+			}
+		} finally {
+			buffer.order(order);
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Replaces everything on the screen with what saveState wrote, at the
+	 * buffer's position, advancing it. The screen must be the same size as
+	 * the one saved. Search highlights are cleared.
+	 *
+	 * @throws IOException
+	 *             If the buffer doesn't hold a saved screen of this size; the
+	 *             screen is left unchanged
+	 */
+	public void restoreState(ByteBuffer buffer) throws IOException {
+		beginUpdate();
+		ByteOrder order = buffer.order();
+		int start = buffer.position();
+		try {
+			buffer.order(ByteOrder.BIG_ENDIAN);
+			if (buffer.remaining() < STATE_HEADER_SIZE) {
+				throw new IOException("Saved screen is cut short");
+			}
+			if (buffer.getInt() != STATE_MAGIC) {
+				throw new IOException("Not a saved screen");
+			}
+			int format = buffer.getInt();
+			if (format != STATE_FORMAT) {
+				throw new IOException("Unknown saved screen format " + format);
+			}
+			int savedColumns = buffer.getInt();
+			int savedRows = buffer.getInt();
+			if (savedColumns != columns || savedRows != rows) {
+				throw new IOException("Saved screen is " + savedColumns + "x"
+						+ savedRows + ", not " + columns + "x" + rows);
+			}
+			int savedCursorX = buffer.getInt();
+			int savedCursorY = buffer.getInt();
+			int savedCursorChar = buffer.getInt();
+			int savedBlankChar = buffer.getInt();
+			int drawColor = buffer.getInt();
+			int drawBGColor = buffer.getInt();
+			boolean drawBlinking = buffer.getInt() != 0;
+			int drawColorRGB = buffer.getInt();
+			int drawBGColorRGB = buffer.getInt();
+			int savedViewportOffset = buffer.getInt();
+			long savedScreenLine = buffer.getLong();
+			int scrollbackSize = buffer.getInt();
+			boolean scrollbackOffHeap = buffer.getInt() != 0;
+			if (!cells.contains(savedCursorX, savedCursorY)
+					|| !isGlyph(savedCursorChar) || !isGlyph(savedBlankChar)
+					|| !isRGBOrNone(drawColorRGB)
+					|| !isRGBOrNone(drawBGColorRGB) || scrollbackSize < 0
+					|| savedViewportOffset < 0
+					|| savedViewportOffset > scrollbackSize
+					|| savedScreenLine < 0
+					|| buffer.remaining() < cells.getStateSize()
+					|| !cells.isValidState(buffer)) {
+				throw new IOException("Malformed saved screen");
+			}
+
+			// Read the scrollback first, since it may yet prove malformed
+			Scrollback savedScrollback = null;
+			if (scrollbackSize > 0) {
+				savedScrollback = new Scrollback(columns, scrollbackSize,
+						scrollbackOffHeap);
+				ByteBuffer scrollbackState = buffer.duplicate();
+				scrollbackState.position(buffer.position()
+						+ cells.getStateSize());
+				try {
+					savedScrollback.restoreState(scrollbackState);
+				} catch (BufferUnderflowException e) {
+					savedScrollback = null;
+				}
+				if (savedScrollback == null
+						|| savedViewportOffset > savedScrollback.getRowCount()
+						|| savedScreenLine < savedScrollback.getRowCount()) {
+					throw new IOException("Malformed saved scrollback");
+				}
+			}
+
+			cells.restoreState(buffer);
+			if (savedScrollback != null) {
+				buffer.position(buffer.position()
+						+ savedScrollback.getStateSize());
+			}
+			scrollback = savedScrollback;
+			cursorX = savedCursorX;
+			cursorY = savedCursorY;
+			cursorChar = savedCursorChar;
+			blankChar = savedBlankChar;
+			currDrawColor = (byte) drawColor;
+			currDrawBGColor = (byte) drawBGColor;
+			currDrawBlinking = drawBlinking;
+			currDrawColorRGB = drawColorRGB;
+			currDrawBGColorRGB = drawBGColorRGB;
+			viewportOffset = savedViewportOffset;
+			screenLine = savedScreenLine;
+			highlightLines = new long[0];
+			highlightStarts = new int[0];
+			highlightEnds = new int[0];
+			markAllDirty();
+		} catch (IOException e) {
+			buffer.position(start);
+			throw e;
+		} finally {
+			buffer.order(order);
+			endUpdate();
+		}
+	}
+
+	private static boolean isGlyph(int character) {
+		return (character & ~CellBuffer.GLYPH_MASK) == 0;
+	}
+
+	private static boolean isRGBOrNone(int rgb) {
+		return rgb == -1 || (rgb & ~0xFFFFFF) == 0;
+	}
+
+	/**
+	 * Saves the screen as saveState does into a file, at the channel's
+	 * position, mapping that part of the file into memory and writing it
+	 * there. The channel's position is moved past what was written, so many
+	 * screens can be saved one after another in one file.
+	 *
+	 * @param channel
+	 *            Must be open for reading and writing. The file is grown if
+	 *            need be. Call force on it to be sure the screen is on disk.
+	 * @throws IOException
+	 */
+	public void saveState(FileChannel channel) throws IOException {
+		writeLock.lock();
+		try {
+			long size = getStateSize();
+			long position = channel.position();
+			MappedByteBuffer buffer = channel.map(MapMode.READ_WRITE,
+					position, size);
+			saveState(buffer);
+			channel.position(position + size);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Restores the screen as restoreState does from a file saved by
+	 * saveState, at the channel's position, mapping the file into memory and
+	 * reading it there. The channel's position is moved past what was read.
+	 *
+	 * @throws IOException
+	 *             If the file doesn't hold a saved screen of this size there;
+	 *             the screen is left unchanged
+	 */
+	public void restoreState(FileChannel channel) throws IOException {
+		long position = channel.position();
+		long size = Math.min(channel.size() - position, Integer.MAX_VALUE);
+		if (size < STATE_HEADER_SIZE) {
+			throw new IOException("Saved screen is cut short");
+		}
+		MappedByteBuffer buffer = channel.map(MapMode.READ_ONLY, position,
+				size);
+		restoreState(buffer);
+		channel.position(position + buffer.position());
+	}
+
+	// TODO: Range check set color methods
+	public void setDrawColor(int i) {
+		writeLock.lock();
+		try {
+			currDrawColor = (byte) i;
+			currDrawColorRGB = -1;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	public void setDrawBGColor(int bgColor) {
+		writeLock.lock();
+		try {
+			currDrawBGColor = (byte) bgColor;
+			currDrawBGColorRGB = -1;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	public void setDrawColorRGB(int rgb) {
+		writeLock.lock();
+		try {
+			currDrawColorRGB = rgb & 0xFFFFFF;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	public void setDrawBGColorRGB(int rgb) {
+		writeLock.lock();
+		try {
+			currDrawBGColorRGB = rgb & 0xFFFFFF;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	public void setDrawBlinking(boolean blinking) {
+		writeLock.lock();
+		try {
+			currDrawBlinking = blinking;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	private void putAtCursor(int character) {
+		cells.set(cursorX, cursorY, getDrawCell(character), currDrawColorRGB,
+				currDrawBGColorRGB);
+		markDirty(cursorX, cursorY);
+		incrementCursor();
+	}
+
+	/**
+	 * Sets cells from the cursor along its row to the current draw colors and
+	 * blinking status, ready for their characters to be set.
+	 */
+	private void fillAtCursor(int count) {
+		cells.fillRect(cursorX, cursorY, count, 1, getDrawCell(0),
+				currDrawColorRGB, currDrawBGColorRGB);
+	}
+
+	/**
+	 * Moves the cursor past characters just written along its row, to the
+	 * next line if they reached the end of the row.
+	 */
+	private void advanceCursor(int count) {
+		markDirty(cursorX, cursorY, count, 1);
+		if (cursorX + count >= columns) {
+			cursorMoveNewline();
+		} else {
+			moveCursor(cursorX + count, cursorY);
+		}
+	}
+
+	/**
+	 * Packs a character with the current draw colors and blinking status.
+	 */
+	private int getDrawCell(int character) {
+		int cell = CellBuffer.pack(character, currDrawColor, currDrawBGColor,
+				currDrawBlinking);
+		if (currDrawColorRGB >= 0) {
+			cell |= CellBuffer.FG_RGB_BIT;
+		}
+		if (currDrawBGColorRGB >= 0) {
+			cell |= CellBuffer.BG_RGB_BIT;
+		}
+		return cell;
+	}
+
+	private void incrementCursor() {
+		if (cursorX + 1 >= columns) {
+			cursorMoveNewline();
+		} else {
+			moveCursor(cursorX + 1, cursorY);
+		}
+	}
+
+	private void cursorMoveNewline() {
+		if (cursorY + 1 >= rows) {
+			moveCursor(0, rows - 1);
+			scrollScreen(1);
+			cursorY = rows - 1;
+		} else {
+			moveCursor(0, cursorY + 1);
+		}
+	}
+
+	/**
+	 * Moves the cursor, redrawing the cells it left and entered if it is
+	 * visible.
+	 */
+	private void moveCursor(int x, int y) {
+		if (cursorVisible) {
+			markDamaged(cursorX, cursorY, 1, 1);
+			markDamaged(x, y, 1, 1);
+		}
+		cursorX = x;
+		cursorY = y;
+	}
+
+	/**
+	 * Returns the character used on the code page to draw the cursor.
+	 * 
+	 * @return
+	 */
+	public int getCursorChar() {
+		writeLock.lock();
+		try {
+			return cursorChar;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Sets the character used on the code page to draw the cursor. If your code
+	 * page doesn't put the cusor at 95 (underscore), change the character used
+	 * here to match your code page.
+	 * 
+	 * @param cursorChar
+	 */
+	public void setCursorChar(int cursorChar) {
+		beginUpdate();
+		try {
+			this.cursorChar = cursorChar;
+			if (cursorVisible) {
+				markDamaged(cursorX, cursorY, 1, 1);
+			}
+		} finally {
+			endUpdate();
+		}
+	}
+
+	/**
+	 * 
+	 * @return
+	 */
+	public int getBlankChar() {
+		writeLock.lock();
+		try {
+			return blankChar;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Sets the character used on the code page to draw empty space. If your
+	 * code page doesn't have a blank space at 32 (ASCII space), set this to
+	 * match your code page.
+	 * 
+	 * @param blankChar
+	 */
+	public void setBlankChar(int blankChar) {
+		beginUpdate();
+		try {
+			this.blankChar = blankChar;
+			if (cursorVisible) {
+				markDamaged(cursorX, cursorY, 1, 1);
+			}
+		} finally {
+			endUpdate();
+		}
+	}
+
+	public int getColumns() {
+		return columns;
+	}
+
+	public int getRows() {
+		return rows;
+	}
+}
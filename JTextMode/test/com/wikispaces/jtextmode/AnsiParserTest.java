@@ -0,0 +1,172 @@
+/**
+ *
+ */
+package com.wikispaces.jtextmode;
+
+import static com.wikispaces.jtextmode.TerminalTests.parse;
+import static com.wikispaces.jtextmode.TerminalTests.row;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class AnsiParserTest {
+	private OffscreenTerminal terminal;
+	private AnsiParser parser;
+
+	@Before
+	public void setUp() {
+		terminal = new OffscreenTerminal(5, 20, false);
+		parser = new AnsiParser(terminal);
+	}
+
+	@Test
+	public void writesTextAtTheCursor() {
+		parse(parser, "Hello");
+		assertEquals("Hello               ", row(terminal, 0));
+		assertEquals(5, terminal.getCursorX());
+		assertEquals(0, terminal.getCursorY());
+	}
+
+	@Test
+	public void lineFeedReturnsToTheStartOfTheLine() {
+		parse(parser, "ab\ncd\r\nef");
+		assertEquals("ab", row(terminal, 0).substring(0, 2));
+		assertEquals("cd", row(terminal, 1).substring(0, 2));
+		assertEquals("ef", row(terminal, 2).substring(0, 2));
+	}
+
+	@Test
+	public void movesTheCursor() {
+		parse(parser, "\033[3;5HX\033[2AY\033[10GZ");
+		assertEquals('X', terminal.getCharAt(4, 2));
+		assertEquals('Y', terminal.getCharAt(5, 0));
+		assertEquals('Z', terminal.getCharAt(9, 0));
+	}
+
+	@Test
+	public void clampsTheCursorToTheScreen() {
+		parse(parser, "\033[99;99HX");
+		assertEquals('X', terminal.getCharAt(19, 4));
+	}
+
+	@Test
+	public void carriesASequenceOverBetweenChunks() {
+		parse(parser, "\033[3");
+		parse(parser, ";5");
+		parse(parser, "HX");
+		assertEquals('X', terminal.getCharAt(4, 2));
+	}
+
+	@Test
+	public void waitsToWrapAtTheLastColumn() {
+		parse(parser, "01234567890123456789");
+		assertEquals("01234567890123456789", row(terminal, 0));
+		assertEquals(0, terminal.getCursorY());
+
+		parse(parser, "Z");
+		assertEquals('9', terminal.getCharAt(19, 0));
+		assertEquals('Z', terminal.getCharAt(0, 1));
+	}
+
+	@Test
+	public void scrollsAtTheBottom() {
+		parse(parser, "1\n2\n3\n4\n5\n6");
+		assertEquals('2', terminal.getCharAt(0, 0));
+		assertEquals('6', terminal.getCharAt(0, 4));
+	}
+
+	@Test
+	public void erasesInLine() {
+		parse(parser, "abcdefgh\033[1;4H\033[K");
+		assertEquals("abc                 ", row(terminal, 0));
+
+		parse(parser, "\r\nabcdefgh\033[2;4H\033[1K");
+		assertEquals("    efgh            ", row(terminal, 1));
+	}
+
+	@Test
+	public void erasesInDisplay() {
+		parse(parser, "aaaa\nbbbb\ncccc\033[2;3H\033[J");
+		assertEquals("aaaa", row(terminal, 0).substring(0, 4));
+		assertEquals("bb  ", row(terminal, 1).substring(0, 4));
+		assertEquals("    ", row(terminal, 2).substring(0, 4));
+	}
+
+	@Test
+	public void erasesInAnRGBBackground() {
+		parse(parser, "text\033[48;2;1;2;3m\033[2J");
+		for (int y = 0; y < terminal.getRows(); y++) {
+			for (int x = 0; x < terminal.getColumns(); x++) {
+				assertEquals(' ', terminal.getCharAt(x, y));
+				assertEquals(0x010203, terminal.getBGColorRGBAt(x, y));
+			}
+		}
+	}
+
+	@Test
+	public void setsPaletteColors() {
+		parse(parser, "\033[31;44mA\033[0mB\033[91;104mC");
+		assertEquals(4, terminal.getColorAt(0, 0));
+		assertEquals(1, terminal.getBGColorAt(0, 0));
+		assertEquals(7, terminal.getColorAt(1, 0));
+		assertEquals(0, terminal.getBGColorAt(1, 0));
+		assertEquals(12, terminal.getColorAt(2, 0));
+		assertEquals(9, terminal.getBGColorAt(2, 0));
+	}
+
+	@Test
+	public void setsExtendedColors() {
+		parse(parser, "\033[38;5;196mA\033[38;2;10;20;30;48;2;40;50;60mB");
+		assertEquals(Palette.xterm256ToRGB(196), terminal.getColorRGBAt(0, 0));
+		assertEquals(0x0A141E, terminal.getColorRGBAt(1, 0));
+		assertEquals(0x28323C, terminal.getBGColorRGBAt(1, 0));
+	}
+
+	@Test
+	public void setsColorsOnTheLastColumn() {
+		parse(parser, "\033[1;20H\033[38;2;1;2;3mZ");
+		assertEquals('Z', terminal.getCharAt(19, 0));
+		assertEquals(0x010203, terminal.getColorRGBAt(19, 0));
+	}
+
+	@Test
+	public void setsBlinking() {
+		parse(parser, "\033[5mA\033[25mB");
+		assertEquals(1, terminal.getBlinkingAt(0, 0));
+		assertEquals(0, terminal.getBlinkingAt(1, 0));
+	}
+
+	@Test
+	public void insertsAndDeletesCharacters() {
+		parse(parser, "abcdef\033[1;2H\033[2P");
+		assertEquals("adef  ", row(terminal, 0).substring(0, 6));
+
+		parse(parser, "\033[2@");
+		assertEquals("a  def", row(terminal, 0).substring(0, 6));
+	}
+
+	@Test
+	public void insertsAndDeletesLines() {
+		parse(parser, "1\n2\n3\033[2;1H\033[L");
+		assertEquals('1', terminal.getCharAt(0, 0));
+		assertEquals(' ', terminal.getCharAt(0, 1));
+		assertEquals('2', terminal.getCharAt(0, 2));
+
+		parse(parser, "\033[M");
+		assertEquals('2', terminal.getCharAt(0, 1));
+		assertEquals('3', terminal.getCharAt(0, 2));
+	}
+
+	@Test
+	public void savesAndRestoresTheCursor() {
+		parse(parser, "\033[2;3H\0337\033[5;5H\0338X");
+		assertEquals('X', terminal.getCharAt(2, 1));
+	}
+
+	@Test
+	public void ignoresSequencesNotUnderstood() {
+		parse(parser, "\033[5zA\033]0;title\007B");
+		assertEquals("AB", row(terminal, 0).substring(0, 2));
+	}
+}
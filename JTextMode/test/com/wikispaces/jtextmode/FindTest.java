@@ -0,0 +1,188 @@
+/**
+ *
+ */
+package com.wikispaces.jtextmode;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class FindTest {
+	private static final int ROWS = 5;
+	private static final int COLUMNS = 40;
+
+	private OffscreenTerminal terminal;
+
+	/**
+	 * Writes 600 lines, more than a search copies out at a time, each
+	 * reading "row " and its line number and a full stop.
+	 */
+	@Before
+	public void setUp() {
+		terminal = newTerminal(1000);
+		assertEquals(596, terminal.getScreenLine());
+		assertEquals(596, terminal.getScrollbackRowCount());
+	}
+
+	private static OffscreenTerminal newTerminal(int scrollbackSize) {
+		OffscreenTerminal terminal = new OffscreenTerminal(ROWS, COLUMNS,
+				false);
+		terminal.setScrollbackSize(scrollbackSize);
+		for (int i = 0; i < 600; i++) {
+			terminal.writeLn("row " + i + ".");
+		}
+		return terminal;
+	}
+
+	@Test
+	public void findsEveryMatchInOrder() {
+		List<TextMatch> matches = terminal.findAll("5.", false);
+		assertEquals(60, matches.size());
+		for (int i = 0; i < matches.size(); i++) {
+			TextMatch match = matches.get(i);
+			assertEquals(i * 10 + 5, match.getLine());
+			assertEquals(("row " + match.getLine()).length() - 1,
+					match.getColumn());
+			assertEquals(2, match.getLength());
+		}
+	}
+
+	@Test
+	public void findsMatchesOnTheSameLineWithoutOverlap() {
+		terminal.writeLn("aaaaa");
+		List<TextMatch> matches = terminal.findAll("aa", false);
+		assertEquals(2, matches.size());
+		assertEquals(new TextMatch(600, 0, 2), matches.get(0));
+		assertEquals(new TextMatch(600, 2, 2), matches.get(1));
+	}
+
+	@Test
+	public void ignoresCaseOnlyWhenAsked() {
+		assertTrue(terminal.findAll("ROW 42.", false).isEmpty());
+		List<TextMatch> matches = terminal.findAll("ROW 42.", true);
+		assertEquals(1, matches.size());
+		assertEquals(new TextMatch(42, 0, 7), matches.get(0));
+	}
+
+	@Test
+	public void findsForwards() {
+		assertEquals(new TextMatch(3, 0, 5),
+				terminal.find("row 3", 0, 0, true, false));
+		assertEquals(new TextMatch(30, 0, 5),
+				terminal.find("row 3", 4, 0, true, false));
+		assertEquals(new TextMatch(599, 0, 7),
+				terminal.find("row 599", 0, 0, true, false));
+		assertNull(terminal.find("row 600", 0, 0, true, false));
+	}
+
+	@Test
+	public void findsBackwards() {
+		long end = terminal.getScreenLine() + ROWS;
+		assertEquals(new TextMatch(399, 0, 5),
+				terminal.find("row 3", end, 0, false, false));
+		assertEquals(new TextMatch(3, 0, 5),
+				terminal.find("row 3", 29, COLUMNS, false, false));
+		assertNull(terminal.find("row 3", 2, COLUMNS, false, false));
+	}
+
+	@Test
+	public void startsFromTheColumnOnTheFirstLineOnly() {
+		assertEquals(new TextMatch(10, 1, 1),
+				terminal.find("o", 10, 1, true, false));
+		assertEquals(new TextMatch(11, 1, 1),
+				terminal.find("o", 10, 2, true, false));
+		assertEquals(new TextMatch(10, 1, 1),
+				terminal.find("o", 10, 1, false, false));
+		assertEquals(new TextMatch(9, 1, 1),
+				terminal.find("o", 10, 0, false, false));
+	}
+
+	@Test
+	public void skipsLinesNoLongerKept() {
+		terminal = newTerminal(100);
+		assertEquals(496, terminal.getScreenLine()
+				- terminal.getScrollbackRowCount());
+
+		assertNull(terminal.find("row 5.", 0, 0, true, false));
+		assertEquals(new TextMatch(500, 0, 6),
+				terminal.find("row 50", 0, 0, true, false));
+		List<TextMatch> matches = terminal.findAll("row 4", false);
+		assertEquals(4, matches.size());
+		assertEquals(496, matches.get(0).getLine());
+	}
+
+	@Test
+	public void searchesWhileLinesAreWritten() throws InterruptedException {
+		terminal.setScrollbackSize(300);
+		Thread writer = new Thread() {
+			@Override
+			public void run() {
+				for (int i = 600; i < 20000; i++) {
+					terminal.writeLn("row " + i + ".");
+				}
+			}
+		};
+		writer.start();
+		try {
+			while (writer.isAlive()) {
+				long previous = -1;
+				for (TextMatch match : terminal.findAll("row", false)) {
+					assertTrue(match.getLine() > previous);
+					assertEquals(0, match.getColumn());
+					previous = match.getLine();
+				}
+			}
+		} finally {
+			writer.join();
+		}
+		assertEquals(300 + ROWS - 1, terminal.findAll("row", false).size());
+	}
+
+	@Test
+	public void showsHighlightsInReverseVideo() {
+		OffscreenTerminal highlighted = new OffscreenTerminal(ROWS, COLUMNS,
+				false);
+		OffscreenTerminal reversed = new OffscreenTerminal(ROWS, COLUMNS,
+				false);
+		OffscreenTerminal plain = new OffscreenTerminal(ROWS, COLUMNS, false);
+		for (OffscreenTerminal t : new OffscreenTerminal[] { highlighted,
+				reversed, plain }) {
+			t.setScrollbackSize(10);
+			t.setDrawColor(14);
+			t.setDrawBGColor(1);
+			t.writeLn("find me here, and me");
+		}
+		for (int x : new int[] { 5, 6, 18, 19 }) {
+			reversed.setColorsAt(x, 0, 1, 14, false);
+		}
+
+		highlighted.setHighlights(highlighted.findAll("me", false));
+		assertFalse(Arrays.equals(plain.renderPixels(),
+				reversed.renderPixels()));
+		assertArrayEquals(reversed.renderPixels(),
+				highlighted.renderPixels());
+
+		// The highlight stays on its line as it scrolls into the scrollback
+		for (OffscreenTerminal t : new OffscreenTerminal[] { highlighted,
+				reversed, plain }) {
+			for (int i = 0; i < ROWS - 1; i++) {
+				t.writeLn("more");
+			}
+			assertEquals(1, t.getScrollbackRowCount());
+			assertTrue(t.setViewportOffset(1));
+		}
+		assertArrayEquals(reversed.renderPixels(),
+				highlighted.renderPixels());
+
+		highlighted.setHighlights(null);
+		assertArrayEquals(plain.renderPixels(), highlighted.renderPixels());
+	}
+}
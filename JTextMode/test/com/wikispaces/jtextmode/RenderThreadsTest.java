@@ -0,0 +1,83 @@
+/**
+ *
+ */
+package com.wikispaces.jtextmode;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class RenderThreadsTest {
+	// More cells than a frame needs to draw to be drawn in bands
+	private static final int ROWS = 60;
+	private static final int COLUMNS = 100;
+
+	private final OffscreenTerminal oneThread = new OffscreenTerminal(ROWS,
+			COLUMNS, true, true);
+	private final OffscreenTerminal eightThreads = new OffscreenTerminal(
+			ROWS, COLUMNS, true, true);
+
+	public RenderThreadsTest() {
+		oneThread.setRenderThreads(1);
+		eightThreads.setRenderThreads(8);
+	}
+
+	/**
+	 * Fills both terminals with the same random cells, some blinking and
+	 * some in RGB colors.
+	 */
+	private void fill(long seed) {
+		Random random = new Random(seed);
+		for (int y = 0; y < ROWS; y++) {
+			for (int x = 0; x < COLUMNS; x++) {
+				int character = random.nextInt(256);
+				int color = random.nextInt(16);
+				int bgColor = random.nextInt(16);
+				boolean blink = random.nextInt(8) == 0;
+				int rgb = random.nextInt(4) == 0 ? random.nextInt(0x1000000)
+						: -1;
+				for (OffscreenTerminal terminal : new OffscreenTerminal[] {
+						oneThread, eightThreads }) {
+					terminal.setCharAt(x, y, character, color, bgColor, blink);
+					if (rgb >= 0) {
+						terminal.setColorRGBAt(x, y, rgb);
+					}
+				}
+			}
+		}
+		oneThread.setCursorPos(random.nextInt(COLUMNS), random.nextInt(ROWS));
+		eightThreads.setCursorPos(oneThread.getCursorX(),
+				oneThread.getCursorY());
+	}
+
+	private static int[] pixels(BufferedImage frame) {
+		return ((DataBufferInt) frame.getRaster().getDataBuffer()).getData();
+	}
+
+	private void assertSamePixels(boolean blinkOn) {
+		assertArrayEquals(pixels(oneThread.render(blinkOn)),
+				pixels(eightThreads.render(blinkOn)));
+	}
+
+	@Test
+	public void drawsTheSameOnOneThreadAsOnMany() {
+		fill(1);
+		assertSamePixels(false);
+
+		// Redraw most cells over what was drawn
+		fill(2);
+		assertSamePixels(false);
+	}
+
+	@Test
+	public void drawsTheSameBlinkPhaseOnOneThreadAsOnMany() {
+		fill(3);
+		assertSamePixels(true);
+		assertSamePixels(false);
+		assertSamePixels(true);
+	}
+}
@@ -0,0 +1,247 @@
+/**
+ *
+ */
+package com.wikispaces.jtextmode;
+
+import static com.wikispaces.jtextmode.TerminalTests.assertSameCells;
+import static com.wikispaces.jtextmode.TerminalTests.parse;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class SaveStateTest {
+	private static final int ROWS = 8;
+	private static final int COLUMNS = 24;
+
+	// Where things are in a saved screen
+	private static final int CURSOR_X = 16;
+	private static final int CELLS = 72;
+	private static final int SCROLLBACK = CELLS + 12 * COLUMNS * ROWS;
+
+	private OffscreenTerminal saved;
+
+	@Before
+	public void setUp() {
+		saved = new OffscreenTerminal(ROWS, COLUMNS, true);
+		saved.setScrollbackSize(50);
+		AnsiParser parser = new AnsiParser(saved);
+		for (int i = 0; i < 30; i++) {
+			parse(parser, "\033[" + (31 + i % 7) + "mline " + i
+					+ " \033[38;2;" + i + ";2;3;5mrgb\033[0m\r\n");
+		}
+		parse(parser, "\033[48;2;9;8;7m\033[3;4Hsaved\033[38;5;100m");
+		saved.setViewportOffset(4);
+	}
+
+	private ByteBuffer save(OffscreenTerminal terminal) {
+		ByteBuffer buffer = ByteBuffer.allocate((int) terminal.getStateSize());
+		terminal.saveState(buffer);
+		assertEquals(buffer.capacity(), buffer.position());
+		buffer.flip();
+		return buffer;
+	}
+
+	private static void assertSameScreen(OffscreenTerminal expected,
+			OffscreenTerminal actual) {
+		assertSameCells(expected, actual);
+		assertEquals(expected.getCursorX(), actual.getCursorX());
+		assertEquals(expected.getCursorY(), actual.getCursorY());
+		assertEquals(expected.getScrollbackSize(), actual.getScrollbackSize());
+		assertEquals(expected.getScrollbackRowCount(),
+				actual.getScrollbackRowCount());
+		assertEquals(expected.getViewportOffset(), actual.getViewportOffset());
+		assertEquals(expected.getScreenLine(), actual.getScreenLine());
+		assertArrayEquals(expected.renderPixels().clone(),
+				actual.renderPixels());
+	}
+
+	/**
+	 * Checks that both draw the same from here on, in their draw colors.
+	 */
+	private static void assertSameAfterDrawing(OffscreenTerminal expected,
+			OffscreenTerminal actual) {
+		expected.setViewportOffset(0);
+		actual.setViewportOffset(0);
+		expected.write("more\nand more");
+		actual.write("more\nand more");
+		assertSameScreen(expected, actual);
+	}
+
+	@Test
+	public void restoresFromABuffer() throws IOException {
+		ByteBuffer buffer = save(saved);
+		OffscreenTerminal restored = new OffscreenTerminal(ROWS, COLUMNS, true);
+		restored.restoreState(buffer);
+		assertEquals(buffer.limit(), buffer.position());
+		assertSameScreen(saved, restored);
+		assertSameAfterDrawing(saved, restored);
+	}
+
+	@Test
+	public void restoresFromADirectBuffer() throws IOException {
+		saved.setScrollbackSize(50, true);
+		for (int i = 0; i < 20; i++) {
+			saved.writeLn("off the heap " + i);
+		}
+		ByteBuffer buffer = ByteBuffer.allocateDirect((int) saved
+				.getStateSize());
+		saved.saveState(buffer);
+		buffer.flip();
+		OffscreenTerminal restored = new OffscreenTerminal(ROWS, COLUMNS, true);
+		restored.restoreState(buffer);
+		assertSameScreen(saved, restored);
+	}
+
+	@Test
+	public void restoresFromAFile() throws IOException {
+		OffscreenTerminal other = new OffscreenTerminal(ROWS, COLUMNS, true);
+		other.writeLn("another screen");
+
+		File file = File.createTempFile("screens", null);
+		file.deleteOnExit();
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+		try {
+			FileChannel channel = randomAccessFile.getChannel();
+			saved.saveState(channel);
+			other.saveState(channel);
+			assertEquals(saved.getStateSize() + other.getStateSize(),
+					channel.position());
+
+			channel.position(0);
+			OffscreenTerminal first = new OffscreenTerminal(ROWS, COLUMNS,
+					true);
+			OffscreenTerminal second = new OffscreenTerminal(ROWS, COLUMNS,
+					true);
+			first.restoreState(channel);
+			second.restoreState(channel);
+			assertSameScreen(saved, first);
+			assertSameScreen(other, second);
+		} finally {
+			randomAccessFile.close();
+		}
+	}
+
+	/**
+	 * Checks that a buffer doesn't restore, and that the screen and the
+	 * buffer are left as they were.
+	 */
+	private static void assertNotRestored(OffscreenTerminal terminal,
+			ByteBuffer buffer) {
+		OffscreenTerminal before = new OffscreenTerminal(terminal.getRows(),
+				terminal.getColumns(), true);
+		ByteBuffer state = ByteBuffer.allocate((int) terminal.getStateSize());
+		terminal.saveState(state);
+		state.flip();
+		try {
+			before.restoreState(state);
+		} catch (IOException e) {
+			throw new AssertionError(e);
+		}
+
+		int position = buffer.position();
+		try {
+			terminal.restoreState(buffer);
+			fail("Malformed screen restored");
+		} catch (IOException e) {
+			// Expected
+		}
+		assertEquals(position, buffer.position());
+		assertSameScreen(before, terminal);
+	}
+
+	@Test
+	public void rejectsAScreenOfAnotherSize() {
+		OffscreenTerminal larger = new OffscreenTerminal(ROWS + 1, COLUMNS,
+				true);
+		larger.writeLn("unchanged");
+		assertNotRestored(larger, save(saved));
+	}
+
+	@Test
+	public void rejectsMalformedSaves() {
+		OffscreenTerminal target = new OffscreenTerminal(ROWS, COLUMNS, true);
+		target.writeLn("unchanged");
+		ByteBuffer good = save(saved);
+
+		// Not a saved screen
+		ByteBuffer buffer = copy(good);
+		buffer.putInt(0, 0x12345678);
+		assertNotRestored(target, buffer);
+
+		// The cursor off the screen
+		buffer = copy(good);
+		buffer.putInt(CURSOR_X, COLUMNS);
+		assertNotRestored(target, buffer);
+
+		// A cell with bits no cell has
+		buffer = copy(good);
+		buffer.putInt(CELLS, -1);
+		assertNotRestored(target, buffer);
+
+		// More scrollback rows than bytes to hold them
+		buffer = copy(good);
+		buffer.putInt(SCROLLBACK, 1000);
+		assertNotRestored(target, buffer);
+
+		// A scrollback row starting past the rows' bytes
+		buffer = copy(good);
+		buffer.putInt(SCROLLBACK + 8, 0x7FFFFFFF);
+		assertNotRestored(target, buffer);
+	}
+
+	@Test
+	public void rejectsSavesCutShort() {
+		OffscreenTerminal target = new OffscreenTerminal(ROWS, COLUMNS, true);
+		ByteBuffer good = save(saved);
+		int[] lengths = { 0, 4, CELLS - 1, CELLS, SCROLLBACK, SCROLLBACK + 8,
+				good.limit() - 1 };
+		for (int length : lengths) {
+			ByteBuffer buffer = copy(good);
+			buffer.limit(length);
+			assertNotRestored(target, buffer);
+		}
+	}
+
+	@Test
+	public void restoresOrRejectsCorruptedSaves() {
+		Random random = new Random(1);
+		ByteBuffer good = save(saved);
+		OffscreenTerminal target = new OffscreenTerminal(ROWS, COLUMNS, true);
+		for (int i = 0; i < 500; i++) {
+			ByteBuffer buffer = copy(good);
+			// Corrupt a few bytes, mostly of the scrollback
+			for (int j = 1 + random.nextInt(3); j > 0; j--) {
+				int at = random.nextInt(4) == 0 ? random.nextInt(SCROLLBACK)
+						: SCROLLBACK + random.nextInt(good.limit()
+								- SCROLLBACK);
+				buffer.put(at, (byte) random.nextInt(256));
+			}
+			try {
+				target.restoreState(buffer);
+			} catch (IOException e) {
+				continue;
+			}
+			// Whatever restores must draw
+			target.renderPixels();
+			target.setViewportOffset(target.getScrollbackRowCount());
+			target.renderPixels();
+		}
+	}
+
+	private static ByteBuffer copy(ByteBuffer buffer) {
+		ByteBuffer copy = ByteBuffer.allocate(buffer.limit());
+		copy.put(buffer.duplicate());
+		copy.flip();
+		return copy;
+	}
+}
@@ -0,0 +1,201 @@
+/**
+ *
+ */
+package com.wikispaces.jtextmode;
+
+import static com.wikispaces.jtextmode.TerminalTests.assertSameCells;
+import static com.wikispaces.jtextmode.TerminalTests.parse;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ScreenDeltaTest {
+	private static final int ROWS = 6;
+	private static final int COLUMNS = 30;
+
+	private OffscreenTerminal screen;
+	private AnsiParser parser;
+	private OffscreenTerminal mirror;
+
+	private ByteArrayOutputStream sent;
+	private ScreenDeltaWriter writer;
+
+	@Before
+	public void setUp() {
+		screen = new OffscreenTerminal(ROWS, COLUMNS, true);
+		parser = new AnsiParser(screen);
+		mirror = new OffscreenTerminal(ROWS, COLUMNS, true);
+		sent = new ByteArrayOutputStream();
+		writer = new ScreenDeltaWriter(screen, Channels.newChannel(sent));
+	}
+
+	/**
+	 * Sends the changes to the screen and applies them to the mirror.
+	 *
+	 * @return The length of the frame sent, or -1 if none was
+	 */
+	private int transfer() throws IOException {
+		sent.reset();
+		if (!writer.send()) {
+			assertEquals(0, sent.size());
+			return -1;
+		}
+		ScreenDeltaReader reader = new ScreenDeltaReader(mirror,
+				Channels.newChannel(new ByteArrayInputStream(sent
+						.toByteArray())));
+		assertTrue(reader.receive());
+		assertFalse(reader.receive());
+		return sent.size();
+	}
+
+	private void assertMirrored() {
+		assertSameCells(screen, mirror);
+		assertEquals(screen.getCursorX(), mirror.getCursorX());
+		assertEquals(screen.getCursorY(), mirror.getCursorY());
+	}
+
+	@Test
+	public void mirrorsTheWholeScreenFirst() throws IOException {
+		parse(parser,
+				"\033[33;44mhello\033[5m world\033[0m\r\n\033[3;10Hthere");
+		assertTrue(transfer() > 0);
+		assertMirrored();
+	}
+
+	@Test
+	public void sendsNothingIfNothingChanged() throws IOException {
+		parse(parser, "hello");
+		transfer();
+		assertEquals(-1, transfer());
+	}
+
+	@Test
+	public void sendsOnlyTheChanges() throws IOException {
+		parse(parser, "hello\r\nworld");
+		int whole = transfer();
+		parse(parser, "\033[1;2HE");
+		int change = transfer();
+		assertTrue(change > 0 && change < whole / 4);
+		assertMirrored();
+	}
+
+	@Test
+	public void mirrorsRGBColors() throws IOException {
+		parse(parser, "\033[38;2;1;2;3;48;2;4;5;6mrgb"
+				+ "\033[38;5;200m256\033[0m\033[2K");
+		parse(parser, "\033[48;2;9;8;7m\033[2;1H\033[K");
+		transfer();
+		assertMirrored();
+		assertEquals(0x090807, mirror.getBGColorRGBAt(COLUMNS - 1, 1));
+	}
+
+	@Test
+	public void mirrorsWideGlyphs() throws IOException {
+		screen.setCharAt(3, 2, 0x2500);
+		screen.setCharAt(4, 2, 0x00FF);
+		transfer();
+		assertMirrored();
+		assertEquals(0x2500, mirror.getCharAt(3, 2));
+	}
+
+	@Test
+	public void mirrorsScrolling() throws IOException {
+		for (int i = 0; i < ROWS; i++) {
+			parse(parser, "line " + i + "\r\n");
+		}
+		transfer();
+		parse(parser, "\033[41mline 6\r\nline 7\r\n");
+		transfer();
+		assertMirrored();
+		assertEquals('6', mirror.getCharAt(5, ROWS - 3));
+
+		// Scrolling the whole screen away sends it whole
+		for (int i = 8; i < 20; i++) {
+			parse(parser, "line " + i + "\r\n");
+		}
+		transfer();
+		assertMirrored();
+	}
+
+	@Test
+	public void keepsInStepOverManyFrames() throws IOException {
+		Random random = new Random(1);
+		for (int frame = 0; frame < 200; frame++) {
+			int writes = random.nextInt(5);
+			for (int i = 0; i < writes; i++) {
+				parse(parser, "\033[" + (1 + random.nextInt(ROWS)) + ";"
+						+ (1 + random.nextInt(COLUMNS)) + "H\033["
+						+ (30 + random.nextInt(8)) + ";"
+						+ (40 + random.nextInt(8)) + "m"
+						+ (char) ('a' + random.nextInt(26)));
+			}
+			if (random.nextInt(10) == 0) {
+				parse(parser, "\033[" + ROWS + ";1H\n\033[38;2;"
+						+ random.nextInt(256) + ";0;0mscrolled");
+			}
+			transfer();
+			assertMirrored();
+		}
+	}
+
+	/**
+	 * Puts a frame's length before it.
+	 */
+	private static byte[] frame(int... bytes) {
+		ByteBuffer frame = ByteBuffer.allocate(4 + bytes.length);
+		frame.putInt(bytes.length);
+		for (int b : bytes) {
+			frame.put((byte) b);
+		}
+		return frame.array();
+	}
+
+	private void assertMalformed(byte[] frame) {
+		ScreenDeltaReader reader = new ScreenDeltaReader(mirror,
+				Channels.newChannel(new ByteArrayInputStream(frame)));
+		try {
+			reader.receive();
+			fail("Malformed frame applied");
+		} catch (IOException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void rejectsMalformedFrames() {
+		// An unknown command
+		assertMalformed(frame(COLUMNS, ROWS, 9));
+		// A negative length
+		assertMalformed(new byte[] { (byte) 0x80, 0, 0, 0 });
+		// A run of cells longer than a row
+		assertMalformed(frame(COLUMNS, ROWS, ScreenDeltaWriter.CELLS, 0, 0,
+				0, COLUMNS + 1));
+		// A frame ending in a command
+		assertMalformed(frame(COLUMNS, ROWS, ScreenDeltaWriter.CELLS, 0, 0,
+				0, 3, 'a', 'b'));
+		// Attributes running past the cells
+		assertMalformed(frame(COLUMNS, ROWS, ScreenDeltaWriter.CELLS, 0, 0,
+				0, 1, 'a', 2, 7));
+	}
+
+	@Test(expected = EOFException.class)
+	public void rejectsAFrameCutShort() throws IOException {
+		byte[] whole = frame(COLUMNS, ROWS, ScreenDeltaWriter.CURSOR, 1, 1);
+		byte[] cut = new byte[whole.length - 1];
+		System.arraycopy(whole, 0, cut, 0, cut.length);
+		new ScreenDeltaReader(mirror,
+				Channels.newChannel(new ByteArrayInputStream(cut))).receive();
+	}
+}
@@ -0,0 +1,178 @@
+/**
+ *
+ */
+package com.wikispaces.jtextmode;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class ScrollbackTest {
+	private static final int COLUMNS = 40;
+	private static final int BLANK = CellBuffer.pack(' ', 7, 0, false);
+
+	private final CellBuffer cells = new CellBuffer(COLUMNS, 1, BLANK);
+
+	/**
+	 * Adds a row reading its number, padded with blanks.
+	 */
+	private void addRow(Scrollback scrollback, int number) {
+		String text = "row " + number;
+		for (int x = 0; x < COLUMNS; x++) {
+			char c = x < text.length() ? text.charAt(x) : ' ';
+			cells.set(x, 0, CellBuffer.pack(c, number % 16, 0, false));
+		}
+		scrollback.addRow(cells, 0);
+	}
+
+	private void assertRow(Scrollback scrollback, int row, int number) {
+		int[] glyphs = new int[COLUMNS];
+		scrollback.copyGlyphs(row, glyphs);
+		String text = "row " + number;
+		for (int x = 0; x < COLUMNS; x++) {
+			char c = x < text.length() ? text.charAt(x) : ' ';
+			assertEquals("row " + row + ", column " + x, c, glyphs[x]);
+		}
+
+		int[] rowCells = new int[COLUMNS];
+		scrollback.copyRow(row, rowCells, new int[COLUMNS], new int[COLUMNS],
+				0);
+		assertEquals(number % 16, CellBuffer.colorOf(rowCells[0]));
+	}
+
+	@Test
+	public void keepsRowsInOrder() {
+		Scrollback scrollback = new Scrollback(COLUMNS, 100, false);
+		for (int i = 0; i < 10; i++) {
+			addRow(scrollback, i);
+		}
+		assertEquals(10, scrollback.getRowCount());
+		for (int i = 0; i < 10; i++) {
+			assertRow(scrollback, i, i);
+		}
+	}
+
+	@Test
+	public void growsToKeepMoreRows() {
+		Scrollback scrollback = new Scrollback(COLUMNS, 10000, false);
+		long initialCapacity = scrollback.getCapacityBytes();
+		for (int i = 0; i < 5000; i++) {
+			addRow(scrollback, i);
+		}
+		assertEquals(5000, scrollback.getRowCount());
+		assertTrue(scrollback.getCapacityBytes() > initialCapacity);
+		for (int i = 0; i < 5000; i++) {
+			assertRow(scrollback, i, i);
+		}
+	}
+
+	@Test
+	public void forgetsTheOldestRows() {
+		Scrollback scrollback = new Scrollback(COLUMNS, 100, false);
+		for (int i = 0; i < 1000; i++) {
+			addRow(scrollback, i);
+		}
+		assertEquals(100, scrollback.getRowCount());
+		for (int i = 0; i < 100; i++) {
+			assertRow(scrollback, i, 900 + i);
+		}
+	}
+
+	@Test
+	public void wrapsAroundTheRing() {
+		Scrollback scrollback = new Scrollback(COLUMNS, 300, false);
+		// Once full, each row added wraps further round without growing
+		for (int i = 0; i < 300; i++) {
+			addRow(scrollback, i);
+		}
+		long capacity = scrollback.getCapacityBytes();
+		for (int i = 300; i < 3000; i++) {
+			addRow(scrollback, i);
+			assertRow(scrollback, 0, i - 299);
+			assertRow(scrollback, 299, i);
+		}
+		assertEquals(capacity, scrollback.getCapacityBytes());
+		for (int i = 0; i < 300; i++) {
+			assertRow(scrollback, i, 2700 + i);
+		}
+	}
+
+	@Test
+	public void sharesTheBytesOfRepeatedRows() {
+		Scrollback scrollback = new Scrollback(COLUMNS, 1000, false);
+		addRow(scrollback, 1);
+		int oneRow = scrollback.getStateSize();
+		for (int i = 0; i < 99; i++) {
+			addRow(scrollback, 1);
+		}
+		assertEquals(100, scrollback.getRowCount());
+		// Each repeat takes only its index entry
+		assertEquals(oneRow + 4 * 99, scrollback.getStateSize());
+		assertRow(scrollback, 99, 1);
+	}
+
+	@Test
+	public void keepsRGBColorsAndWideGlyphs() {
+		Scrollback scrollback = new Scrollback(COLUMNS, 10, false);
+		CellBuffer row = new CellBuffer(COLUMNS, 1, BLANK);
+		row.set(0, 0, CellBuffer.pack(0x2500, 7, 0, false));
+		row.set(1, 0, CellBuffer.pack('a', 0, 0, true)
+				| CellBuffer.FG_RGB_BIT | CellBuffer.BG_RGB_BIT, 0x123456,
+				0x654321);
+		row.set(2, 0, CellBuffer.pack('b', 0, 0, false)
+				| CellBuffer.FG_RGB_BIT, 0xABCDEF, 0);
+		scrollback.addRow(row, 0);
+
+		int[] expectedCells = new int[COLUMNS];
+		int[] expectedColors = new int[COLUMNS];
+		int[] expectedBGColors = new int[COLUMNS];
+		row.copyRow(0, expectedCells, expectedColors, expectedBGColors, 0);
+		int[] rowCells = new int[COLUMNS];
+		int[] colors = new int[COLUMNS];
+		int[] bgColors = new int[COLUMNS];
+		assertEquals(1, scrollback.copyRow(0, rowCells, colors, bgColors, 0));
+		assertArrayEquals(expectedCells, rowCells);
+		assertArrayEquals(expectedColors, colors);
+		assertArrayEquals(expectedBGColors, bgColors);
+		assertEquals(0xFF123456, colors[1]);
+		assertEquals(0xFF654321, bgColors[1]);
+		assertEquals(0x2500, CellBuffer.glyphOf(rowCells[0]));
+	}
+
+	@Test
+	public void keepsRowsOffTheHeapTheSame() {
+		Scrollback heap = new Scrollback(COLUMNS, 200, false);
+		Scrollback direct = new Scrollback(COLUMNS, 200, true);
+		for (int i = 0; i < 1000; i++) {
+			addRow(heap, i / 3);
+			addRow(direct, i / 3);
+		}
+		assertEquals(heap.getRowCount(), direct.getRowCount());
+		for (int i = 0; i < heap.getRowCount(); i++) {
+			assertRow(direct, i, (800 + i) / 3);
+		}
+
+		ByteBuffer heapState = ByteBuffer.allocate(heap.getStateSize());
+		heap.saveState(heapState);
+		ByteBuffer directState = ByteBuffer.allocate(direct.getStateSize());
+		direct.saveState(directState);
+		assertArrayEquals(heapState.array(), directState.array());
+	}
+
+	@Test
+	public void forgetsEveryRowWhenCleared() {
+		Scrollback scrollback = new Scrollback(COLUMNS, 100, true);
+		for (int i = 0; i < 150; i++) {
+			addRow(scrollback, i);
+		}
+		scrollback.clear();
+		assertEquals(0, scrollback.getRowCount());
+		addRow(scrollback, 7);
+		assertEquals(1, scrollback.getRowCount());
+		assertRow(scrollback, 0, 7);
+	}
+}
@@ -0,0 +1,173 @@
+/**
+ *
+ */
+package com.wikispaces.jtextmode;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SharedFramebufferTest {
+	private static final int ROWS = 5;
+	private static final int COLUMNS = 20;
+
+	private File file;
+	private OffscreenTerminal terminal;
+	private SharedFramebuffer shared;
+
+	@Before
+	public void setUp() throws IOException {
+		file = File.createTempFile("jtextmode", ".frame");
+		terminal = new OffscreenTerminal(ROWS, COLUMNS, false);
+		terminal.writeLn("hello");
+		shared = new SharedFramebuffer(terminal, file);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		shared.close();
+		file.delete();
+	}
+
+	/**
+	 * @return The whole file, in native byte order
+	 */
+	private ByteBuffer read() throws IOException {
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			byte[] bytes = new byte[(int) in.length()];
+			in.readFully(bytes);
+			return ByteBuffer.wrap(bytes).order(ByteOrder.nativeOrder());
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void assertChanged(ByteBuffer frame, int x, int y,
+			int width, int height) {
+		assertEquals(x, frame.getInt(48));
+		assertEquals(y, frame.getInt(52));
+		assertEquals(width, frame.getInt(56));
+		assertEquals(height, frame.getInt(60));
+	}
+
+	@Test
+	public void writesTheWholeFirstFrame() throws IOException {
+		int[] pixels = terminal.renderPixels();
+		int charWidth = terminal.getCharWidth();
+		int charHeight = terminal.getCharHeight();
+		int width = COLUMNS * charWidth;
+		int height = ROWS * charHeight;
+
+		ByteBuffer frame = read();
+		assertEquals(SharedFramebuffer.MAGIC, frame.getInt(0));
+		assertEquals(SharedFramebuffer.FORMAT, frame.getInt(4));
+		assertEquals(2, frame.getLong(8));
+		assertEquals(2, shared.getGeneration());
+		assertEquals(width, frame.getInt(16));
+		assertEquals(height, frame.getInt(20));
+		assertEquals(COLUMNS, frame.getInt(24));
+		assertEquals(ROWS, frame.getInt(28));
+		assertEquals(charWidth, frame.getInt(32));
+		assertEquals(charHeight, frame.getInt(36));
+		assertEquals(0, frame.getInt(40));
+		assertEquals(1, frame.getInt(44));
+		assertChanged(frame, 0, 0, width, height);
+
+		int header = SharedFramebuffer.HEADER_SIZE;
+		assertEquals(header + 4 * width * height + 12 * COLUMNS * ROWS,
+				frame.capacity());
+		for (int i = 0; i < pixels.length; i++) {
+			assertEquals("pixel " + i, pixels[i], frame.getInt(header + 4 * i));
+		}
+		int cells = header + 4 * width * height;
+		assertEquals('h', CellBuffer.glyphOf(frame.getInt(cells)));
+		assertEquals('o', CellBuffer.glyphOf(frame.getInt(cells + 4 * 4)));
+		assertEquals(0xFF000000 | terminal.getColorRGBAt(0, 0),
+				frame.getInt(cells + 4 * COLUMNS * ROWS));
+		assertEquals(0xFF000000 | terminal.getBGColorRGBAt(0, 0),
+				frame.getInt(cells + 8 * COLUMNS * ROWS));
+	}
+
+	@Test
+	public void writesOnlyTheCellsChanged() throws IOException {
+		terminal.render();
+		terminal.setCharAt(3, 2, 'X');
+		int[] pixels = terminal.renderPixels();
+		int charWidth = terminal.getCharWidth();
+		int charHeight = terminal.getCharHeight();
+
+		ByteBuffer frame = read();
+		assertEquals(4, frame.getLong(8));
+		assertEquals(4, shared.getGeneration());
+		assertChanged(frame, 3 * charWidth, 2 * charHeight, charWidth,
+				charHeight);
+		int first = (2 * charHeight * COLUMNS + 3) * charWidth;
+		assertEquals(pixels[first], frame.getInt(SharedFramebuffer.HEADER_SIZE
+				+ 4 * first));
+	}
+
+	@Test
+	public void writesNothingWhenNothingChanged() throws IOException {
+		terminal.render();
+		terminal.render();
+		assertEquals(2, read().getLong(8));
+		assertEquals(2, shared.getGeneration());
+	}
+
+	@Test
+	public void goesUpByTwoForEachFrame() throws IOException {
+		for (int i = 1; i <= 10; i++) {
+			terminal.setCharAt(i, 0, 'a' + i);
+			terminal.render();
+			long generation = read().getLong(8);
+			assertEquals(2 * i, generation);
+			assertEquals(0, generation % 2);
+		}
+	}
+
+	@Test
+	public void carriesTheGenerationOverWhenReopened() throws IOException {
+		terminal.render();
+		terminal.setCharAt(0, 0, 'j');
+		terminal.render();
+		shared.close();
+
+		OffscreenTerminal other = new OffscreenTerminal(ROWS, COLUMNS, false);
+		shared = new SharedFramebuffer(other, file);
+		assertEquals(4, shared.getGeneration());
+		other.render();
+		ByteBuffer frame = read();
+		assertEquals(6, frame.getLong(8));
+		assertChanged(frame, 0, 0, frame.getInt(16), frame.getInt(20));
+	}
+
+	@Test
+	public void carriesOnFromAFrameLeftHalfWritten() throws IOException {
+		terminal.render();
+		shared.close();
+		RandomAccessFile out = new RandomAccessFile(file, "rw");
+		try {
+			ByteBuffer generation = ByteBuffer.allocate(8).order(
+					ByteOrder.nativeOrder());
+			generation.putLong(0, 7);
+			out.getChannel().write(generation, 8);
+		} finally {
+			out.close();
+		}
+
+		shared = new SharedFramebuffer(terminal, file);
+		assertEquals(8, shared.getGeneration());
+		terminal.setCharAt(0, 0, 'j');
+		terminal.render();
+		assertEquals(10, read().getLong(8));
+	}
+}
@@ -0,0 +1,127 @@
+/**
+ *
+ */
+package com.wikispaces.jtextmode;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SnapshotTest {
+	private static final int ROWS = 12;
+	private static final int COLUMNS = 30;
+
+	/**
+	 * The characters the writers fill the screen with, each in its own
+	 * colors: the first two by one writer, the others by the other.
+	 */
+	private static final char[] FILLS = { 'A', 'B', 'C', 'D' };
+
+	private OffscreenTerminal terminal;
+	private Thread[] writers;
+
+	@Before
+	public void setUp() {
+		terminal = new OffscreenTerminal(ROWS, COLUMNS, false);
+		fill(terminal, 0);
+	}
+
+	@After
+	public void tearDown() throws InterruptedException {
+		if (writers != null) {
+			for (Thread writer : writers) {
+				writer.interrupt();
+				writer.join();
+			}
+		}
+	}
+
+	/**
+	 * Fills the whole screen with one of the fills, as one update.
+	 */
+	private static void fill(OffscreenTerminal terminal, int fill) {
+		terminal.beginUpdate();
+		try {
+			for (int y = 0; y < ROWS; y++) {
+				for (int x = 0; x < COLUMNS; x++) {
+					terminal.setCharAt(x, y, FILLS[fill], 9 + fill, fill + 1,
+							false);
+				}
+			}
+		} finally {
+			terminal.endUpdate();
+		}
+	}
+
+	/**
+	 * Starts two threads filling the screen over and over until interrupted,
+	 * taking turns with each other's fills.
+	 */
+	private void startWriters() {
+		writers = new Thread[2];
+		for (int i = 0; i < writers.length; i++) {
+			final int first = i * 2;
+			writers[i] = new Thread() {
+				@Override
+				public void run() {
+					for (int n = 0; !isInterrupted(); n++) {
+						fill(terminal, first + n % 2);
+					}
+				}
+			};
+			writers[i].start();
+		}
+	}
+
+	@Test
+	public void copiesOneWholeUpdate() {
+		ScreenSnapshot snapshot = new ScreenSnapshot(COLUMNS, ROWS);
+		startWriters();
+		for (int i = 0; i < 2000; i++) {
+			terminal.copySnapshot(snapshot);
+			int fill = Arrays.binarySearch(FILLS, (char) CellBuffer
+					.glyphOf(snapshot.cells[0]));
+			assertTrue("copy " + i, fill >= 0);
+			for (int c = 0; c < ROWS * COLUMNS; c++) {
+				assertEquals("copy " + i + ", cell " + c, snapshot.cells[0],
+						snapshot.cells[c]);
+				assertEquals("copy " + i + ", cell " + c,
+						snapshot.colorsARGB[0], snapshot.colorsARGB[c]);
+				assertEquals("copy " + i + ", cell " + c,
+						snapshot.bgColorsARGB[0], snapshot.bgColorsARGB[c]);
+			}
+		}
+	}
+
+	@Test
+	public void rendersOneWholeUpdate() {
+		// What the screen looks like filled with each fill
+		int[][] frames = new int[FILLS.length][];
+		for (int fill = 0; fill < FILLS.length; fill++) {
+			OffscreenTerminal filled = new OffscreenTerminal(ROWS, COLUMNS,
+					false);
+			fill(filled, fill);
+			frames[fill] = filled.renderPixels().clone();
+		}
+
+		startWriters();
+		for (int i = 0; i < 2000; i++) {
+			int[] pixels = terminal.renderPixels();
+			// The fills have different background colors, so the top left
+			// pixel tells which one the frame should match
+			int fill = 0;
+			while (fill < FILLS.length - 1 && frames[fill][0] != pixels[0]) {
+				fill++;
+			}
+			if (!Arrays.equals(frames[fill], pixels)) {
+				fail("frame " + i + " is not one of the fills");
+			}
+		}
+	}
+}
@@ -0,0 +1,118 @@
+/**
+ *
+ */
+package com.wikispaces.jtextmode;
+
+import static com.wikispaces.jtextmode.TerminalTests.row;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TerminalOutputStreamTest {
+	private OffscreenTerminal terminal;
+	private TerminalOutputStream stream;
+
+	@Before
+	public void setUp() {
+		terminal = new OffscreenTerminal(5, 20, false);
+		stream = new TerminalOutputStream(terminal, true);
+	}
+
+	private void write(int... bytes) throws IOException {
+		byte[] b = new byte[bytes.length];
+		for (int i = 0; i < bytes.length; i++) {
+			b[i] = (byte) bytes[i];
+		}
+		stream.write(b);
+	}
+
+	@Test
+	public void writesCodePageCharactersAsTheyAre() throws IOException {
+		stream = new TerminalOutputStream(terminal);
+		write('a', 0x82, 0xB0, 'b');
+		stream.close();
+		assertEquals("a\u0082\u00B0b", row(terminal, 0).substring(0, 4));
+	}
+
+	@Test
+	public void decodesCharactersSplitAcrossWrites() throws IOException {
+		// U+00E9 and U+2591, 0x82 and 0xB0 on the code page
+		write('a', 0xC3);
+		write(0xA9, 0xE2);
+		stream.write(0x96);
+		stream.write(0x91);
+		write('b');
+		stream.close();
+		assertEquals("a\u0082\u00B0b", row(terminal, 0).substring(0, 4));
+	}
+
+	@Test
+	public void replacesCharactersNotOnTheCodePage() throws IOException {
+		// U+20AC, then U+1F600, outside the basic multilingual plane
+		write(0xE2, 0x82, 0xAC, 0xF0, 0x9F, 0x98, 0x80, 'a');
+		stream.close();
+		assertEquals("??a", row(terminal, 0).substring(0, 3));
+	}
+
+	@Test
+	public void replacesOverlongSequences() throws IOException {
+		// NUL in two and three bytes, and U+20AC in four
+		write('a', 0xC0, 0x80, 'b', 0xE0, 0x80, 0x80, 'c', 0xF0, 0x82, 0x82,
+				0xAC, 'd');
+		stream.close();
+		assertEquals("a??b?c?d", row(terminal, 0).substring(0, 8));
+	}
+
+	@Test
+	public void replacesEncodedSurrogates() throws IOException {
+		// U+D83D and U+DE00, a surrogate pair encoded one half at a time
+		write('a', 0xED, 0xA0, 0xBD, 0xED, 0xB8, 0x80, 'b');
+		stream.close();
+		assertEquals("a??b", row(terminal, 0).substring(0, 4));
+	}
+
+	@Test
+	public void replacesCharactersCutShort() throws IOException {
+		write(0xC3, 'a', 0xE2, 0x96, 0xC3, 0xA9, 0x80, 'b');
+		stream.close();
+		assertEquals("?a?\u0082?b", row(terminal, 0).substring(0, 6));
+	}
+
+	@Test
+	public void replacesACharacterLeftUnfinishedAtClose() throws IOException {
+		write('a', 0xE2, 0x96);
+		stream.close();
+		assertEquals("a? ", row(terminal, 0).substring(0, 3));
+
+		try {
+			stream.write('b');
+			fail("wrote to a closed stream");
+		} catch (IOException e) {
+			// Expected
+		}
+		assertEquals("a? ", row(terminal, 0).substring(0, 3));
+	}
+
+	@Test
+	public void drawsWhenFlushedWithNoFlushInterval() throws IOException {
+		stream.setFlushInterval(0);
+		write('a', 0xC3, 0xA9);
+		stream.flush();
+		assertEquals("a\u0082", row(terminal, 0).substring(0, 2));
+	}
+
+	@Test
+	public void waitsForTheFlushIntervalToDraw() throws IOException {
+		stream.setFlushInterval(60000);
+		write('a');
+		stream.flush();
+		stream.flush();
+		assertEquals(' ', terminal.getCharAt(0, 0));
+		stream.close();
+		assertEquals('a', terminal.getCharAt(0, 0));
+	}
+}
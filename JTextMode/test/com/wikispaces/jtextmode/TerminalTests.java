@@ -0,0 +1,67 @@
+/**
+ *
+ */
+package com.wikispaces.jtextmode;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Helpers shared by the tests of terminals.
+ */
+final class TerminalTests {
+	private TerminalTests() {
+	}
+
+	/**
+	 * Parses output given as a string of code page characters, one byte each.
+	 */
+	static void parse(AnsiParser parser, String output) {
+		byte[] bytes;
+		try {
+			bytes = output.getBytes("ISO-8859-1");
+		} catch (UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
+		parser.parse(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * @return The characters along a row, with blanks as spaces
+	 */
+	static String row(Terminal terminal, int y) {
+		StringBuilder row = new StringBuilder();
+		for (int x = 0; x < terminal.getColumns(); x++) {
+			row.append((char) terminal.getCharAt(x, y));
+		}
+		return row.toString();
+	}
+
+	/**
+	 * Checks that two terminals of the same size show the same characters
+	 * in the same colors, blinking the same.
+	 */
+	static void assertSameCells(ExtendedTerminal expected,
+			ExtendedTerminal actual) {
+		assertEquals(expected.getRows(), actual.getRows());
+		assertEquals(expected.getColumns(), actual.getColumns());
+		for (int y = 0; y < expected.getRows(); y++) {
+			for (int x = 0; x < expected.getColumns(); x++) {
+				String at = x + ", " + y;
+				assertEquals(at, expected.getCharAt(x, y),
+						actual.getCharAt(x, y));
+				assertEquals(at, expected.getColorAt(x, y),
+						actual.getColorAt(x, y));
+				assertEquals(at, expected.getBGColorAt(x, y),
+						actual.getBGColorAt(x, y));
+				assertEquals(at, expected.getColorRGBAt(x, y),
+						actual.getColorRGBAt(x, y));
+				assertEquals(at, expected.getBGColorRGBAt(x, y),
+						actual.getBGColorRGBAt(x, y));
+				assertEquals(at, expected.getBlinkingAt(x, y),
+						actual.getBlinkingAt(x, y));
+			}
+		}
+	}
+}
@@ -0,0 +1,82 @@
+/**
+ *
+ */
+package com.wikispaces.jtextmode;
+
+import static com.wikispaces.jtextmode.TerminalTests.row;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TerminalWriterTest {
+	private OffscreenTerminal terminal;
+	private TerminalWriter writer;
+
+	@Before
+	public void setUp() {
+		terminal = new OffscreenTerminal(5, 20, false);
+		writer = new TerminalWriter(terminal);
+	}
+
+	@Test
+	public void drawsCharactersOnTheCodePage() throws IOException {
+		writer.write("a\u00E9\u2591\u20ACb");
+		writer.close();
+		assertEquals("a\u0082\u00B0?b", row(terminal, 0).substring(0, 5));
+	}
+
+	@Test
+	public void drawsASurrogatePairAsOneReplacement() throws IOException {
+		writer.write("a\uD83D\uDE00b");
+		writer.write('\uD83D');
+		writer.write('\uDE00');
+		writer.write(new char[] { 'c', '\uD83D' }, 0, 2);
+		writer.write(new char[] { '\uDE00', 'd' }, 0, 2);
+		writer.close();
+		assertEquals("a?b?c?d", row(terminal, 0).substring(0, 7));
+	}
+
+	@Test
+	public void replacesUnpairedSurrogates() throws IOException {
+		// A high surrogate with nothing after it, one followed by another,
+		// and a low surrogate on its own
+		writer.write("\uD83Da\uD83D\uD83D\uDE00b\uDE00c\uDE00");
+		writer.close();
+		assertEquals("?a??b?c?", row(terminal, 0).substring(0, 8));
+	}
+
+	@Test
+	public void refusesOutputOnceClosed() throws IOException {
+		writer.write("a");
+		writer.close();
+		try {
+			writer.write("b");
+			fail("wrote to a closed writer");
+		} catch (IOException e) {
+			// Expected
+		}
+		assertEquals("a ", row(terminal, 0).substring(0, 2));
+	}
+
+	@Test
+	public void drawsWhenFlushedWithNoFlushInterval() throws IOException {
+		writer.setFlushInterval(0);
+		writer.write("a\u00E9");
+		writer.flush();
+		assertEquals("a\u0082", row(terminal, 0).substring(0, 2));
+	}
+
+	@Test
+	public void waitsForTheFlushIntervalToDraw() throws IOException {
+		writer.setFlushInterval(60000);
+		writer.write("a");
+		writer.flush();
+		assertEquals(' ', terminal.getCharAt(0, 0));
+		writer.close();
+		assertEquals('a', terminal.getCharAt(0, 0));
+	}
+}